@@ -0,0 +1,86 @@
+package VTNT_JASS;
+
+/**
+   Area functions of the six Russian vowels from "Acoustic Theory of
+   Speech Production", Chapter 2.3, Gunnar Fant, 1970, and a neutral
+   tube. Fant gives the areas in cm^2 in sections of .5 cm from the lips
+   to the glottis.
+*/
+public class FantVowels {
+
+    /** Names of the vowels, the neutral tube is "-". */
+    public static final String[] NAMES = {"a","o","u","i_","i","e"};
+
+    private static final double[] fantData_a =  new double[] {5, 5, 5, 5, 6.5,       8, 8, 8, 8, 8,
+                                                              8, 8, 8, 6.5, 5,       4, 3.2, 1.6, 2.6, 2.6,
+                                                              2, 1.6, 1.3, 1, .65,   .65, .65, 1, 1.6, 2.6,
+                                                              4, 1, 1.3, 1.6, 2.6};
+    private static final double[] fantData_o =  new double[] {3.2,3.2,3.2,3.2,6.5,   13,13,16,13,10.5,
+                                                              10.5,8,8,6.5,6.5,       5,5,4,3.2,2,
+                                                              1.6,2.6,1.3,.65,.65,    1,1,1.3,1.6,2,
+                                                              3.2,4,5,5,1.3,          1.3,1.6,2.6};
+    private static final double[] fantData_u =  new double[] {.65,.65,.32,.32,2,  5,10.5,13,13,13,
+                                                              13,10.5,8,6.5,5,    3.2,2.6,2,2,2,
+                                                              1.6,1.3,2,1.6,1,     1,1,1.3,1.6,3.2,
+                                                              5,8,8,10.5,10.5,    10.5,2,2,2.6,      2.6};
+    private static final double[] fantData_i_ =  new double[] {6.5,6.5,2,6.5,8,   8,8,5,3.2,2.6,
+                                                               2,2,1.6,1.3,1,     1,1.3,1.6,2.6,2,
+                                                               4,5,6.5,6.5,8,     10.5,10.5,10.5,10.5,10.5,
+                                                               13,13,10.5,10.5,6, 3.2,3.2,3.2,3.2};
+    private static final double[] fantData_i =  new double[] {4,4,3.2,1.6,1.3,              1,.65,.65,.65,.65,
+                                                              .65,.65,.65,1.3,2.6,          4,6.5,8,8,10.5,
+                                                              10.5,10.5,10.5,10.5,10.5,     10.5,10.5,10.5,8,8,
+                                                              2,2,2.6,3.2};
+    private static final double[] fantData_e =  new double[] {8,8,5,5,4,               2.6,2,2.6,2.6,3.2,
+                                                              4,4,4,5,5,               6.5,8,6.5,8,10.5,
+                                                              10.5,10.5,10.5,10.5,8,   8,6.5,6.5,6.5,6.5,
+                                                              1.3,1.6,2,2.6};
+    
+    private static final double[] fantData__ =  new double[] {5, 5, 5, 5, 5,       5, 5, 5, 5, 5,
+                                                              5, 5, 5, 5, 5,       5, 5, 5, 5, 5,
+                                                              5, 5, 5, 5, 5,   5, 5, 5, 5, 5,
+                                                              5, 5, 5, 5, 5};
+
+    /** Get Fant data of a vowel.
+        @param p one of NAMES or "-".
+        @return areas in cm^2, lips to glottis.
+    */
+    public static double[] getAreas(String p) {
+        if(p.equals("a")) {
+            return fantData_a;
+        } else if(p.equals("o")) {
+            return fantData_o;
+        } else if(p.equals("u")) {
+            return fantData_u;
+        } else if(p.equals("i_")) {
+            return fantData_i_;
+        } else if(p.equals("i")) {
+            return fantData_i;
+        } else if(p.equals("e")) {
+            return fantData_e;
+        } else if(p.equals("-")) {
+            return fantData__;
+        }
+        throw new IllegalArgumentException("Unknown vowel "+p);
+    }
+
+    /** Interpolate and invert Fant data to tube radii.
+        @param p one of NAMES or "-".
+        @param tract returns radii in m, glottis to lips.
+    */
+    public static void getRadii(String p, double[] tract) {
+        double[] f_a = getAreas(p);
+        double C = (f_a.length-1.)/(tract.length-1);
+        for(int i=0;i<tract.length;i++) {
+            double k = i*C;
+            int ki = (int)k;
+            double kfrac = k-ki;
+            int i1 = ki;
+            int i2 = i1+1;
+            if(i2>f_a.length-1) {
+                i2 = i1;
+            }
+            tract[tract.length-i-1] = Math.sqrt((f_a[i1]*(1-kfrac)+f_a[i2]*kfrac)/Math.PI)/100;
+        }
+    }
+}
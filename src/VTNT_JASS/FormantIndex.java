@@ -0,0 +1,486 @@
+package VTNT_JASS;
+
+import jass.generators.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
+
+/**
+   Inverse lookup from formants (F1, F2, F3) to the vocal tract shapes of
+   a FormantTable, for steering a tube by vowel quality. The points of
+   the table are stored in a k-d tree over the log formant frequencies,
+   so equal ratios count equally for all three. The tree is implicit: the
+   entries are sorted so the median of every range is its node and the
+   children are the two halves, with the split dimension cycling with
+   depth, so the file needs no pointers and is memory mapped as is. Each
+   entry has the radii, length, velum and lip area multiplier the shaper
+   of the table set for its point.
+   <p>
+   A query finds the k+1 nearest entries and blends the k nearest with
+   weights 1/d^2-1/d_(k+1)^2, which vanish for an entry just as it
+   leaves the k nearest, so the result moves continuously with the
+   target. Queries do not allocate or lock (the caller owns a Query) and
+   can run at control rate on the audio thread:
+   <pre>
+   FormantIndex index = new FormantIndex("vowels.kdt");
+   FormantIndex.Query q = new FormantIndex.Query(index,4);
+   ...
+   index.query(f1,f2,f3,q);
+   index.apply(q,tm,tube); // setRadius() and changeTubeModel()
+   </pre>
+   The index is built from a table on all cores with build().
+*/
+
+public class FormantIndex {
+    private static final int MAGIC = 0x564b4454; // "VKDT"
+    private static final int HEADER = 16; // magic, nEntries, nRadii, shape size
+    private static final int DIM = 3;
+    private final int nEntries;
+    private final int nRadii;
+    private final int shapeSize; // radii, length, velum, lips
+    private final ByteBuffer buf;
+    private final int shapeOffset;
+
+    /** Scratch space and result of a query, owned by one thread.
+     */
+    public static class Query {
+        /** Interpolated radii in m, glottis to lips. */
+        public final double[] radii;
+        /** Interpolated length in m. */
+        public double length;
+        /** Interpolated velum opening. */
+        public double velum;
+        /** Interpolated lip area multiplier. */
+        public double lips;
+        /** Distance to the nearest entry, in natural log units of frequency. */
+        public double distance;
+        private final int k;
+        private final double[] target = new double[DIM];
+        private final int[] best; // k+1 nearest, sorted by distance
+        private final double[] bestD2;
+        private int nBest;
+
+        /** Create query.
+            @param index index to query.
+            @param k number of entries blended.
+        */
+        public Query(FormantIndex index, int k) {
+            this.k = k;
+            radii = new double[index.getNRadii()];
+            best = new int[k+1];
+            bestD2 = new double[k+1];
+        }
+    }
+
+    /** Open an index.
+        @param fn file written by build().
+    */
+    public FormantIndex(String fn) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(fn,"r");
+        try {
+            long size = raf.length();
+            if(size > Integer.MAX_VALUE) {
+                throw new IOException(fn+": too large to map");
+            }
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,0,size);
+        } finally {
+            raf.close();
+        }
+        if(buf.getInt(0) != MAGIC) {
+            throw new IOException(fn+": not a FormantIndex");
+        }
+        nEntries = buf.getInt(4);
+        nRadii = buf.getInt(8);
+        shapeSize = buf.getInt(12);
+        shapeOffset = HEADER+4*DIM*nEntries;
+        if(buf.capacity() != shapeOffset+4L*shapeSize*nEntries) {
+            throw new IOException(fn+": truncated");
+        }
+    }
+
+    /** Get number of entries.
+        @return number of entries.
+    */
+    public int getNEntries() {
+        return nEntries;
+    }
+
+    /** Get number of radii of an entry.
+        @return number of radii.
+    */
+    public int getNRadii() {
+        return nRadii;
+    }
+
+    /** Find the shape for target formants. Does not allocate.
+        @param f1 first formant in Hz.
+        @param f2 second formant in Hz.
+        @param f3 third formant in Hz.
+        @param q query, receives the blended shape.
+        @return nearest entry, -1 if the index is empty.
+    */
+    public int query(double f1, double f2, double f3, Query q) {
+        q.target[0] = Math.log(f1);
+        q.target[1] = Math.log(f2);
+        q.target[2] = Math.log(f3);
+        q.nBest = 0;
+        search(0,nEntries,0,q);
+        if(q.nBest == 0) {
+            return -1;
+        }
+        int nBlend = Math.min(q.k,q.nBest);
+        double cutoff = q.nBest > q.k ? 1/q.bestD2[q.k] : 0;
+        double sum = 0;
+        for(int i=0;i<q.radii.length;i++) {
+            q.radii[i] = 0;
+        }
+        q.length = q.velum = q.lips = 0;
+        if(q.bestD2[0] == 0) {
+            nBlend = 1; // exact hit
+        }
+        for(int j=0;j<nBlend;j++) {
+            double w = nBlend == 1 ? 1 : 1/q.bestD2[j] - cutoff;
+            int pos = shapeOffset+4*shapeSize*q.best[j];
+            for(int i=0;i<nRadii;i++) {
+                q.radii[i] += w*buf.getFloat(pos+4*i);
+            }
+            q.length += w*buf.getFloat(pos+4*nRadii);
+            q.velum += w*buf.getFloat(pos+4*nRadii+4);
+            q.lips += w*buf.getFloat(pos+4*nRadii+8);
+            sum += w;
+        }
+        if(sum <= 0) { // all k at the same distance as the next one
+            return blendEqual(q,nBlend);
+        }
+        for(int i=0;i<nRadii;i++) {
+            q.radii[i] /= sum;
+        }
+        q.length /= sum;
+        q.velum /= sum;
+        q.lips /= sum;
+        q.distance = Math.sqrt(q.bestD2[0]);
+        return q.best[0];
+    }
+
+    /** Set a tube to the result of a query and call changeTubeModel().
+        @param q query.
+        @param tm tube model of the vocal tract, getNRadii() radii.
+        @param tube the tube.
+    */
+    public void apply(Query q, TubeModel tm, RightLoadedWebsterTube tube) {
+        for(int i=0;i<nRadii;i++) {
+            tm.setRadius(i,q.radii[i]);
+        }
+        tm.setLength(q.length);
+        tube.velumNasal = q.velum;
+        tube.lipAreaMultiplier = q.lips;
+        tube.changeTubeModel();
+    }
+
+    /* Average of the nBlend nearest. */
+    private int blendEqual(Query q, int nBlend) {
+        for(int i=0;i<nRadii;i++) {
+            q.radii[i] = 0;
+        }
+        q.length = q.velum = q.lips = 0;
+        for(int j=0;j<nBlend;j++) {
+            int pos = shapeOffset+4*shapeSize*q.best[j];
+            for(int i=0;i<nRadii;i++) {
+                q.radii[i] += buf.getFloat(pos+4*i)/nBlend;
+            }
+            q.length += buf.getFloat(pos+4*nRadii)/nBlend;
+            q.velum += buf.getFloat(pos+4*nRadii+4)/nBlend;
+            q.lips += buf.getFloat(pos+4*nRadii+8)/nBlend;
+        }
+        q.distance = Math.sqrt(q.bestD2[0]);
+        return q.best[0];
+    }
+
+    /* k+1 nearest in the subtree of entries lo to hi. */
+    private void search(int lo, int hi, int depth, Query q) {
+        if(lo >= hi) {
+            return;
+        }
+        int mid = (lo+hi)>>>1;
+        int pos = HEADER+4*DIM*mid;
+        double d2 = 0;
+        for(int d=0;d<DIM;d++) {
+            double diff = q.target[d]-buf.getFloat(pos+4*d);
+            d2 += diff*diff;
+        }
+        insert(q,mid,d2);
+        int dim = depth%DIM;
+        double diff = q.target[dim]-buf.getFloat(pos+4*dim);
+        if(diff < 0) {
+            search(lo,mid,depth+1,q);
+            if(q.nBest <= q.k || diff*diff < q.bestD2[q.nBest-1]) {
+                search(mid+1,hi,depth+1,q);
+            }
+        } else {
+            search(mid+1,hi,depth+1,q);
+            if(q.nBest <= q.k || diff*diff < q.bestD2[q.nBest-1]) {
+                search(lo,mid,depth+1,q);
+            }
+        }
+    }
+
+    /* Insert entry into the sorted k+1 nearest. */
+    private static void insert(Query q, int entry, double d2) {
+        if(q.nBest == q.k+1) {
+            if(d2 >= q.bestD2[q.k]) {
+                return;
+            }
+        } else {
+            q.nBest++;
+        }
+        int j = q.nBest-1;
+        while(j > 0 && q.bestD2[j-1] > d2) {
+            q.best[j] = q.best[j-1];
+            q.bestD2[j] = q.bestD2[j-1];
+            j--;
+        }
+        q.best[j] = entry;
+        q.bestD2[j] = d2;
+    }
+
+    /** Build an index from all points of a table with F1, F2 and F3, on all cores.
+        The shapes are recomputed with the shaper of the table.
+        @param table formant table.
+        @param fn output file.
+        @param nThreads number of threads, 0 for one per core.
+        @return number of entries.
+    */
+    public static int build(final FormantTable table, String fn, int nThreads) throws IOException {
+        if(nThreads <= 0) {
+            nThreads = Runtime.getRuntime().availableProcessors();
+        }
+        if(table.createShaper() == null) {
+            throw new IOException("FormantIndex: no shaper for the table");
+        }
+        // points with the first three formants
+        long nPoints = table.getNPoints();
+        int n = 0;
+        for(long p=0;p<nPoints;p++) {
+            if(valid(table,p)) {
+                n++;
+            }
+        }
+        final long[] rows = new long[n];
+        final float[][] coords = new float[DIM][n];
+        n = 0;
+        for(long p=0;p<nPoints;p++) {
+            if(valid(table,p)) {
+                rows[n] = p;
+                for(int d=0;d<DIM;d++) {
+                    coords[d][n] = (float)Math.log(table.getValue(p,d));
+                }
+                n++;
+            }
+        }
+        final int nEntries = n;
+        final int[] perm = new int[nEntries];
+        for(int i=0;i<nEntries;i++) {
+            perm[i] = i;
+        }
+        // split the top of the tree here, the subtrees below on the workers
+        int nTop = 0;
+        while((1<<nTop) < 4*nThreads && (nEntries>>nTop) > 1024) {
+            nTop++;
+        }
+        final int[] ranges = new int[2<<nTop];
+        int nRanges = splitTop(perm,coords,0,nEntries,0,nTop,ranges,0)/2;
+        final int depthBelow = nTop;
+        final AtomicInteger next = new AtomicInteger();
+        final int nr = nRanges;
+        runWorkers(nThreads,new Runnable() {
+                public void run() {
+                    int i;
+                    while((i = next.getAndIncrement()) < nr) {
+                        buildTree(perm,coords,ranges[2*i],ranges[2*i+1],depthBelow);
+                    }
+                }
+            },fn);
+        // write coordinates and shapes in tree order
+        final int nRadii = table.getNRadii();
+        final int shapeSize = nRadii+3;
+        final int shapeOffset = HEADER+4*DIM*nEntries;
+        long size = shapeOffset+4L*shapeSize*nEntries;
+        if(size > Integer.MAX_VALUE) {
+            throw new IOException(fn+": too large to map");
+        }
+        RandomAccessFile raf = new RandomAccessFile(fn,"rw");
+        raf.setLength(0);
+        raf.setLength(size);
+        final MappedByteBuffer out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,0,size);
+        raf.close();
+        out.putInt(0,MAGIC);
+        out.putInt(4,nEntries);
+        out.putInt(8,nRadii);
+        out.putInt(12,shapeSize);
+        final int chunk = 256;
+        final AtomicInteger nextChunk = new AtomicInteger();
+        runWorkers(nThreads,new Runnable() {
+                public void run() {
+                    ByteBuffer b = out.duplicate();
+                    FormantSweep.Shaper shaper = table.createShaper();
+                    FormantSweep.Axis[] axes = table.getAxes();
+                    double[] params = new double[axes.length];
+                    TubeModel tm = new TubeModel(nRadii);
+                    RightLoadedWebsterTube tube = FormantSweep.createTube(table.getSrate(),tm,nRadii);
+                    int c;
+                    while((c = nextChunk.getAndIncrement())*chunk < nEntries) {
+                        for(int i=c*chunk;i<Math.min(nEntries,(c+1)*chunk);i++) {
+                            int e = perm[i];
+                            for(int d=0;d<DIM;d++) {
+                                b.putFloat(HEADER+4*(DIM*i+d),coords[d][e]);
+                            }
+                            table.getParams(rows[e],params);
+                            shaper.shape(params,tm,tube);
+                            int pos = shapeOffset+4*shapeSize*i;
+                            for(int k=0;k<nRadii;k++) {
+                                b.putFloat(pos+4*k,(float)tm.getRadius(k));
+                            }
+                            b.putFloat(pos+4*nRadii,(float)tm.getLength());
+                            b.putFloat(pos+4*nRadii+4,(float)tube.velumNasal);
+                            b.putFloat(pos+4*nRadii+8,(float)tube.lipAreaMultiplier);
+                        }
+                    }
+                }
+            },fn);
+        out.force();
+        return nEntries;
+    }
+
+    /* True if F1, F2 and F3 of a point were found. */
+    private static boolean valid(FormantTable table, long p) {
+        for(int d=0;d<DIM;d++) {
+            float f = table.getValue(p,d);
+            if(!(f > 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Build the top levels of the tree and collect the ranges of the
+       subtrees left, returns number of ints written to ranges. */
+    private static int splitTop(int[] perm, float[][] coords, int lo, int hi, int depth, int nTop, int[] ranges, int nr) {
+        if(depth == nTop || hi-lo <= 1) {
+            ranges[nr] = lo;
+            ranges[nr+1] = hi;
+            return nr+2;
+        }
+        int mid = (lo+hi)>>>1;
+        select(perm,coords[depth%DIM],lo,hi,mid);
+        nr = splitTop(perm,coords,lo,mid,depth+1,nTop,ranges,nr);
+        return splitTop(perm,coords,mid+1,hi,depth+1,nTop,ranges,nr);
+    }
+
+    /* Sort the entries lo to hi into a k-d tree. */
+    private static void buildTree(int[] perm, float[][] coords, int lo, int hi, int depth) {
+        while(hi-lo > 1) {
+            int mid = (lo+hi)>>>1;
+            select(perm,coords[depth%DIM],lo,hi,mid);
+            buildTree(perm,coords,lo,mid,depth+1);
+            lo = mid+1;
+            depth++;
+        }
+    }
+
+    /* Quickselect: put the entry with rank k of lo to hi at k, smaller ones before, larger after. */
+    private static void select(int[] perm, float[] c, int lo, int hi, int k) {
+        hi--;
+        while(hi > lo) {
+            int m = (lo+hi)>>>1; // median of three pivot
+            if(c[perm[m]] < c[perm[lo]]) swap(perm,m,lo);
+            if(c[perm[hi]] < c[perm[lo]]) swap(perm,hi,lo);
+            if(c[perm[hi]] < c[perm[m]]) swap(perm,hi,m);
+            float pivot = c[perm[m]];
+            int i = lo, j = hi;
+            while(i <= j) {
+                while(c[perm[i]] < pivot) i++;
+                while(c[perm[j]] > pivot) j--;
+                if(i <= j) {
+                    swap(perm,i,j);
+                    i++;
+                    j--;
+                }
+            }
+            if(k <= j) {
+                hi = j;
+            } else if(k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static void swap(int[] a, int i, int j) {
+        int t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    /* Run the same task on nThreads threads and wait, throws if a
+       worker failed as the index fn would be incomplete. */
+    private static void runWorkers(int nThreads, final Runnable task, String fn) throws IOException {
+        final AtomicInteger failed = new AtomicInteger();
+        Thread[] workers = new Thread[nThreads];
+        for(int w=0;w<nThreads;w++) {
+            workers[w] = new Thread("FormantIndex-"+w) {
+                    public void run() {
+                        try {
+                            task.run();
+                        } catch(RuntimeException e) {
+                            System.out.println("FormantIndex: "+e);
+                            failed.incrementAndGet();
+                        }
+                    }
+                };
+            workers[w].start();
+        }
+        for(int w=0;w<nThreads;w++) {
+            try {
+                workers[w].join();
+            } catch(InterruptedException e) {
+                System.out.println("FormantIndex: interrupted");
+            }
+        }
+        if(failed.get() > 0) {
+            throw new IOException("FormantIndex: could not build "+fn+", "+failed.get()+" workers failed");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length >= 2 && args[0].equals("build")) {
+            long t0 = System.nanoTime();
+            int n = build(new FormantTable(args[1]),args[2],args.length > 3 ? Integer.parseInt(args[3]) : 0);
+            System.out.println(n+" entries, "+(System.nanoTime()-t0)/1.e9+" s");
+        } else if(args.length >= 5 && args[0].equals("query")) {
+            FormantIndex index = new FormantIndex(args[1]);
+            Query q = new Query(index,4);
+            double f1 = Double.parseDouble(args[2]);
+            double f2 = Double.parseDouble(args[3]);
+            double f3 = Double.parseDouble(args[4]);
+            int nearest = index.query(f1,f2,f3,q);
+            int nRepeat = 100000;
+            long t0 = System.nanoTime();
+            for(int i=0;i<nRepeat;i++) {
+                index.query(f1*(1+.001*(i%7)),f2,f3,q);
+            }
+            double us = (System.nanoTime()-t0)/1.e3/nRepeat;
+            index.query(f1,f2,f3,q);
+            System.out.println("nearest "+nearest+" at distance "+q.distance+", length "+q.length+
+                               ", velum "+q.velum+", lips "+q.lips+", "+us+" us per query");
+            for(int i=0;i<q.radii.length;i++) {
+                System.out.print(q.radii[i]+" ");
+            }
+            System.out.println();
+        } else {
+            System.out.println("Usage: java VTNT_JASS.FormantIndex build table.idx index.kdt [nThreads]");
+            System.out.println("       java VTNT_JASS.FormantIndex query index.kdt F1 F2 F3");
+        }
+    }
+}
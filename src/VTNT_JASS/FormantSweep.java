@@ -0,0 +1,477 @@
+package VTNT_JASS;
+
+import jass.generators.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
+
+/**
+   Computes formants F1-F4, their bandwidths and the spectral tilt of a
+   RightLoadedWebsterTube for every point of a grid of articulatory
+   parameters, concurrently on all cores. A Shaper maps the parameters
+   of a point to the tube (area function, length, velum, lip area
+   multiplier, ...). Each point is evaluated either in the frequency
+   domain with a TubeTransferFunction (fast, continuum limit) or in the
+   time domain from the FFT of the impulse response of the tube (the
+   finite difference solver as it sounds). Workers own a tube each and
+   take chunks of consecutive points, so the cost per point is just the
+   evaluation.
+   <p>
+   The result is a table of N_VALUES floats per point, in the order of
+   VALUE_NAMES, big endian, points in grid order with the last axis
+   varying fastest, so the row of a point follows from its grid indices
+   and the file can be memory mapped (see FormantTable). Values that
+   were not found (fewer than N_FORMANTS peaks, no -3dB point) are NaN.
+   The grid, the shaper and the method are described by a small text
+   index file next to the table.
+*/
+
+public class FormantSweep {
+    /** Evaluate with TubeTransferFunction. */
+    public static final int FREQUENCY_DOMAIN = 0;
+    /** Evaluate from the impulse response of the tube. */
+    public static final int TIME_DOMAIN = 1;
+    /** Number of formants per point. */
+    public static final int N_FORMANTS = 4;
+    /** Number of values per point. */
+    public static final int N_VALUES = 2*N_FORMANTS+1;
+    /** Names of the values of a point, in table order. Tilt is in dB per octave. */
+    public static final String[] VALUE_NAMES = {"F1","F2","F3","F4","B1","B2","B3","B4","tilt"};
+    private static final int CHUNK = 64; // points per work item
+
+    /** One parameter of the grid, n values evenly spaced from min to max.
+     */
+    public static class Axis {
+        public final String name;
+        public final double min;
+        public final double max;
+        public final int n;
+
+        /** Create axis.
+            @param name name of the parameter.
+            @param min first value.
+            @param max last value.
+            @param n number of values.
+        */
+        public Axis(String name, double min, double max, int n) {
+            this.name = name;
+            this.min = min;
+            this.max = max;
+            this.n = n;
+        }
+
+        /** Get value of the parameter.
+            @param i index, 0 to n-1.
+            @return value.
+        */
+        public double value(int i) {
+            return n > 1 ? min + i*(max-min)/(n-1) : min;
+        }
+    }
+
+    /** Sets the tube for the parameters of a grid point. Called from
+        all workers concurrently, each with its own tube.
+     */
+    public interface Shaper {
+        /** Get number of radii of the TubeModel.
+            @return number of radii.
+        */
+        int getNRadii();
+
+        /** Set the shape and settings of a tube; changeTubeModel() is called afterwards.
+            @param params value of each axis.
+            @param tm tube model of the vocal tract.
+            @param tube the tube.
+        */
+        void shape(double[] params, TubeModel tm, RightLoadedWebsterTube tube);
+    }
+
+    /** Shapes the tube from the five parameters front, round, length,
+        velum and lips. The area function is blended from the Fant vowels
+        /a/, /u/ and /i/: front goes from the /a/-/u/ line (0) to /i/ (1),
+        round from /a/ (0) to /u/ (1). Length is in m (at least .15),
+        velum sets velumNasal and lips lipAreaMultiplier.
+     */
+    public static class VowelShaper implements Shaper {
+        private final double[] areaA, areaU, areaI;
+
+        public VowelShaper() {
+            int n = VTNTRender.DEFAULT_N_RADII;
+            areaA = new double[n];
+            areaU = new double[n];
+            areaI = new double[n];
+            FantVowels.getRadii("a",areaA);
+            FantVowels.getRadii("u",areaU);
+            FantVowels.getRadii("i",areaI);
+            for(int i=0;i<n;i++) {
+                areaA[i] *= areaA[i];
+                areaU[i] *= areaU[i];
+                areaI[i] *= areaI[i];
+            }
+        }
+
+        /** Get the axes this shaper expects, with the given number of values each.
+            @param nFront values of front.
+            @param nRound values of round.
+            @param nLength values of length, .15 to .19 m.
+            @param nVelum values of velum, 0 to .4.
+            @param nLips values of lips, .5 to 2.
+            @return axes.
+        */
+        public static Axis[] axes(int nFront, int nRound, int nLength, int nVelum, int nLips) {
+            return new Axis[] {new Axis("front",0,1,nFront),
+                               new Axis("round",0,1,nRound),
+                               new Axis("length",.15,.19,nLength),
+                               new Axis("velum",0,.4,nVelum),
+                               new Axis("lips",.5,2,nLips)};
+        }
+
+        public int getNRadii() {
+            return areaA.length;
+        }
+
+        public void shape(double[] params, TubeModel tm, RightLoadedWebsterTube tube) {
+            double front = params[0];
+            double round = params[1];
+            for(int i=0;i<areaA.length;i++) {
+                double area = (1-front)*((1-round)*areaA[i] + round*areaU[i]) + front*areaI[i];
+                tm.setRadius(i,Math.sqrt(area));
+            }
+            tm.setLength(params[2]);
+            tube.velumNasal = params[3];
+            tube.lipAreaMultiplier = params[4];
+        }
+    }
+
+    private final Axis[] axes;
+    private final Shaper shaper;
+    private final int method;
+    private final float srate;
+    private final int nThreads;
+    private double fMax = 5000;
+    private double df = 20;
+    private boolean useLipModel = true;
+    private volatile long wallNanos = 0;
+
+    /** Create sweep.
+        @param axes grid axes, in the order the shaper expects them.
+        @param shaper sets the tube for a point.
+        @param method FREQUENCY_DOMAIN or TIME_DOMAIN.
+        @param srate sampling rate of the tube in Hz.
+        @param nThreads number of worker threads, 0 for one per core.
+    */
+    public FormantSweep(Axis[] axes, Shaper shaper, int method, float srate, int nThreads) {
+        this.axes = axes;
+        this.shaper = shaper;
+        this.method = method;
+        this.srate = srate;
+        if(nThreads <= 0) {
+            nThreads = Runtime.getRuntime().availableProcessors();
+        }
+        this.nThreads = nThreads;
+    }
+
+    /** Set the frequency range searched for formants and the tilt.
+        @param fMax highest frequency in Hz.
+        @param df grid spacing in Hz (frequency domain) or upper bound of the FFT resolution (time domain).
+    */
+    public void setFrequencyRange(double fMax, double df) {
+        this.fMax = fMax;
+        this.df = df;
+    }
+
+    /** Load lips with the radiation impedance (default) or use an open end.
+        @param useLipModel true for radiation load.
+    */
+    public void setUseLipModel(boolean useLipModel) {
+        this.useLipModel = useLipModel;
+    }
+
+    /** Get number of grid points.
+        @return product of the axis lengths.
+    */
+    public long getNPoints() {
+        long n = 1;
+        for(int i=0;i<axes.length;i++) {
+            n *= axes[i].n;
+        }
+        return n;
+    }
+
+    /** Get the parameters of a grid point.
+        @param point row in the table.
+        @param params value of each axis.
+    */
+    public void getParams(long point, double[] params) {
+        getParams(axes,point,params);
+    }
+
+    /** Get the parameters of a grid point, last axis varying fastest.
+        @param axes grid axes.
+        @param point row in the table.
+        @param params value of each axis.
+    */
+    public static void getParams(Axis[] axes, long point, double[] params) {
+        for(int i=axes.length-1;i>=0;i--) {
+            params[i] = axes[i].value((int)(point % axes[i].n));
+            point /= axes[i].n;
+        }
+    }
+
+    /** Get wall clock time of last sweep().
+        @return seconds.
+    */
+    public double getElapsedSeconds() {
+        return wallNanos/1.e9;
+    }
+
+    /** Compute all points and write table prefix.tab and index prefix.idx.
+        @param prefix path and start of the file names.
+        @return number of points with missing values.
+    */
+    public long sweep(String prefix) throws IOException {
+        final long nPoints = getNPoints();
+        final long nChunks = (nPoints+CHUNK-1)/CHUNK;
+        final AtomicLong next = new AtomicLong();
+        final AtomicLong incomplete = new AtomicLong();
+        final AtomicInteger failed = new AtomicInteger();
+        File tableFile = new File(prefix+".tab");
+        RandomAccessFile raf = new RandomAccessFile(tableFile,"rw");
+        raf.setLength(0);
+        final FileChannel channel = raf.getChannel();
+        long startNanos = System.nanoTime();
+        Thread[] workers = new Thread[(int)Math.min(nThreads,nChunks)];
+        for(int w=0;w<workers.length;w++) {
+            workers[w] = new Thread("FormantSweep-"+w) {
+                    public void run() {
+                        Worker worker = new Worker();
+                        ByteBuffer bytes = ByteBuffer.allocate(CHUNK*N_VALUES*4);
+                        long c;
+                        try {
+                            while((c = next.getAndIncrement()) < nChunks) {
+                                long first = c*CHUNK;
+                                long last = Math.min(nPoints,first+CHUNK);
+                                bytes.clear();
+                                for(long p=first;p<last;p++) {
+                                    if(!worker.evaluate(p)) {
+                                        incomplete.incrementAndGet();
+                                    }
+                                    for(int k=0;k<N_VALUES;k++) {
+                                        bytes.putFloat((float)worker.values[k]);
+                                    }
+                                }
+                                bytes.flip();
+                                long pos = first*N_VALUES*4;
+                                while(bytes.hasRemaining()) {
+                                    pos += channel.write(bytes,pos);
+                                }
+                            }
+                        } catch(IOException e) {
+                            System.out.println("FormantSweep: "+e);
+                            failed.incrementAndGet();
+                        }
+                    }
+                };
+            workers[w].start();
+        }
+        for(int w=0;w<workers.length;w++) {
+            try {
+                workers[w].join();
+            } catch(InterruptedException e) {
+                System.out.println("FormantSweep: interrupted");
+            }
+        }
+        channel.close();
+        raf.close();
+        wallNanos = System.nanoTime()-startNanos;
+        if(failed.get() > 0) {
+            throw new IOException("FormantSweep: could not write "+tableFile);
+        }
+        writeIndex(prefix+".idx",tableFile.getName());
+        return incomplete.get();
+    }
+
+    /* Index: table file, method, sampling rate, shaper, value names and axes. */
+    private void writeIndex(String fn, String tableName) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(fn));
+        out.println("# FormantSweep index");
+        out.println("table "+tableName);
+        out.println("method "+(method == TIME_DOMAIN ? "time" : "frequency"));
+        out.println("srate "+srate);
+        out.println("shaper "+shaper.getClass().getName());
+        out.println("nradii "+shaper.getNRadii());
+        out.print("values");
+        for(int i=0;i<N_VALUES;i++) {
+            out.print(" "+VALUE_NAMES[i]);
+        }
+        out.println();
+        for(int i=0;i<axes.length;i++) {
+            out.println("axis "+axes[i].name+" "+axes[i].min+" "+axes[i].max+" "+axes[i].n);
+        }
+        out.close();
+        if(out.checkError()) {
+            throw new IOException("FormantSweep: could not write "+fn);
+        }
+    }
+
+    /* Tube of the VTNT patch for a tube model of .17 m with radii of 1 cm. */
+    static RightLoadedWebsterTube createTube(float srate, TubeModel tm, int nRadii) {
+        tm.setLength(.17);
+        TubeModel tmNasal = new TubeModel(6);
+        tmNasal.setLength(.11);
+        for(int i=0;i<6;i++) {
+            tmNasal.setRadius(i,.005);
+        }
+        for(int i=0;i<nRadii;i++) {
+            tm.setRadius(i,.01);
+        }
+        return new RightLoadedWebsterTube(srate,tm,.15,tmNasal,.11,.5);
+    }
+
+    /* Tube and scratch space of one worker thread. */
+    private class Worker {
+        final double[] values = new double[N_VALUES];
+        private final double[] params = new double[axes.length];
+        private final TubeModel tm;
+        private final RightLoadedWebsterTube tube;
+        private final TubeTransferFunction tf;
+        private final IRPFilter irp;
+        private final int bits;
+        private final double[] freq, db;
+        private final int nFreq;
+        private final double[] formants = new double[N_FORMANTS];
+        private final double[] bandwidths = new double[N_FORMANTS];
+
+        Worker() {
+            tm = new TubeModel(shaper.getNRadii());
+            tube = createTube(srate,tm,shaper.getNRadii());
+            tube.setOutputVelocity(true);
+            tube.setFlowNoiseLevel(0);
+            tube.useLipModel = useLipModel;
+            if(method == TIME_DOMAIN) {
+                tf = null;
+                irp = new IRPFilter();
+                int b = 1;
+                while(srate/(1<<b) > df/2) {
+                    b++;
+                }
+                bits = b;
+                nFreq = Math.min((1<<bits)/2,(int)(fMax*(1<<bits)/srate));
+            } else {
+                tf = new TubeTransferFunction(tube);
+                irp = null;
+                bits = 0;
+                nFreq = (int)(fMax/df);
+            }
+            freq = new double[nFreq];
+            db = new double[nFreq];
+            for(int i=0;i<nFreq;i++) {
+                freq[i] = method == TIME_DOMAIN ? (i+1)*srate/(1<<bits) : (i+1)*df;
+            }
+        }
+
+        /* Evaluate a point into values, false if some are missing. */
+        boolean evaluate(long point) {
+            getParams(point,params);
+            shaper.shape(params,tm,tube);
+            tube.changeTubeModel();
+            int n;
+            if(tf != null) {
+                tf.magnitudeDb(freq,db,nFreq);
+                n = tf.findFormants(freq,db,nFreq,formants,bandwidths);
+            } else {
+                tube.reset();
+                float[][] res = irp.computeIRP(tube,bits,srate);
+                for(int i=0;i<nFreq;i++) {
+                    db[i] = res[i+1][0];
+                }
+                n = findPeaks(freq,db,nFreq,formants,bandwidths);
+            }
+            boolean complete = n == N_FORMANTS;
+            for(int i=0;i<N_FORMANTS;i++) {
+                values[i] = i < n ? formants[i] : Double.NaN;
+                values[N_FORMANTS+i] = i < n && bandwidths[i] > 0 ? bandwidths[i] : Double.NaN;
+                complete &= i >= n || bandwidths[i] > 0;
+            }
+            values[2*N_FORMANTS] = tilt(freq,db,nFreq);
+            return complete;
+        }
+    }
+
+    /** Find peaks of a sampled magnitude response by parabolic interpolation
+        of the dB values, and the -3dB points by linear interpolation.
+        @param freq increasing frequencies in Hz, evenly spaced.
+        @param db magnitudes in dB at freq.
+        @param n number of frequencies.
+        @param formants formant frequencies in Hz.
+        @param bandwidths bandwidths in Hz, -1 if a -3dB point is not found.
+        @return number of formants found, at most formants.length.
+    */
+    public static int findPeaks(double[] freq, double[] db, int n, double[] formants, double[] bandwidths) {
+        int nFormants = 0;
+        double step = n > 1 ? freq[1]-freq[0] : 0;
+        for(int i=1;i<n-1 && nFormants<formants.length;i++) {
+            if(db[i] > db[i-1] && db[i] >= db[i+1]) {
+                double a = db[i-1]-2*db[i]+db[i+1];
+                double delta = a != 0 ? .5*(db[i-1]-db[i+1])/a : 0;
+                double max = db[i] - .25*(db[i-1]-db[i+1])*delta;
+                double lower = -1, upper = -1;
+                for(int j=i-1;j>=0 && db[j]<=db[j+1];j--) {
+                    if(db[j] < max-3) {
+                        lower = freq[j] + step*(max-3-db[j])/(db[j+1]-db[j]);
+                        break;
+                    }
+                }
+                for(int j=i+1;j<n && db[j]<=db[j-1];j++) {
+                    if(db[j] < max-3) {
+                        upper = freq[j] - step*(max-3-db[j])/(db[j-1]-db[j]);
+                        break;
+                    }
+                }
+                formants[nFormants] = freq[i] + delta*step;
+                bandwidths[nFormants] = lower<0 || upper<0 ? -1 : upper-lower;
+                nFormants++;
+            }
+        }
+        return nFormants;
+    }
+
+    /** Spectral tilt as the slope of the least squares line through the
+        magnitude response against octaves.
+        @param freq frequencies in Hz.
+        @param db magnitudes in dB at freq.
+        @param n number of frequencies.
+        @return tilt in dB per octave.
+    */
+    public static double tilt(double[] freq, double[] db, int n) {
+        double sx = 0, sy = 0, sxx = 0, sxy = 0;
+        for(int i=0;i<n;i++) {
+            double x = Math.log(freq[i])/Math.log(2);
+            sx += x;
+            sy += db[i];
+            sxx += x*x;
+            sxy += x*db[i];
+        }
+        return (n*sxy-sx*sy)/(n*sxx-sx*sx);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1) {
+            System.out.println("Usage: java VTNT_JASS.FormantSweep outprefix [frequency|time] [nFront nRound nLength nVelum nLips] [nThreads] [srate]");
+            return;
+        }
+        int method = args.length > 1 && args[1].equals("time") ? TIME_DOMAIN : FREQUENCY_DOMAIN;
+        int[] n = {21,21,5,3,3};
+        for(int i=0;i<n.length && 2+i<args.length;i++) {
+            n[i] = Integer.parseInt(args[2+i]);
+        }
+        int nThreads = args.length > 7 ? Integer.parseInt(args[7]) : 0;
+        float srate = args.length > 8 ? Float.parseFloat(args[8]) : 44100;
+        FormantSweep sweep = new FormantSweep(VowelShaper.axes(n[0],n[1],n[2],n[3],n[4]),new VowelShaper(),
+                                              method,srate,nThreads);
+        long incomplete = sweep.sweep(args[0]);
+        System.out.println(sweep.getNPoints()+" points, "+incomplete+" incomplete, "+sweep.nThreads+" threads, "+
+                           sweep.getElapsedSeconds()+" s");
+    }
+}
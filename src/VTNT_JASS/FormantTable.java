@@ -0,0 +1,165 @@
+package VTNT_JASS;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+   Read only view of a table written by FormantSweep. The index file is
+   parsed and the table is memory mapped, so opening is fast whatever the
+   size of the table and values are read from the page cache on demand.
+   Reading values does not allocate and is thread safe.
+*/
+
+public class FormantTable {
+    private String tableName;
+    private String method;
+    private float srate;
+    private String shaperName;
+    private int nRadii;
+    private FormantSweep.Axis[] axes;
+    private long nPoints;
+    private ByteBuffer table;
+
+    /** Open table.
+        @param indexFile index file (prefix.idx) written by FormantSweep.
+    */
+    public FormantTable(String indexFile) throws IOException {
+        Vector<FormantSweep.Axis> axisList = new Vector<FormantSweep.Axis>();
+        BufferedReader in = new BufferedReader(new FileReader(indexFile));
+        String line;
+        while((line = in.readLine()) != null) {
+            line = line.trim();
+            if(line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            StringTokenizer st = new StringTokenizer(line);
+            String key = st.nextToken();
+            if(key.equals("table")) {
+                tableName = st.nextToken();
+            } else if(key.equals("method")) {
+                method = st.nextToken();
+            } else if(key.equals("srate")) {
+                srate = Float.parseFloat(st.nextToken());
+            } else if(key.equals("shaper")) {
+                shaperName = st.nextToken();
+            } else if(key.equals("nradii")) {
+                nRadii = Integer.parseInt(st.nextToken());
+            } else if(key.equals("values")) {
+                if(st.countTokens() != FormantSweep.N_VALUES) {
+                    in.close();
+                    throw new IOException(indexFile+": "+st.countTokens()+" values, expected "+FormantSweep.N_VALUES);
+                }
+            } else if(key.equals("axis")) {
+                String name = st.nextToken();
+                double min = Double.parseDouble(st.nextToken());
+                double max = Double.parseDouble(st.nextToken());
+                int n = Integer.parseInt(st.nextToken());
+                axisList.addElement(new FormantSweep.Axis(name,min,max,n));
+            }
+        }
+        in.close();
+        if(tableName == null) {
+            throw new IOException(indexFile+": no table");
+        }
+        axes = axisList.toArray(new FormantSweep.Axis[0]);
+        nPoints = 1;
+        for(int i=0;i<axes.length;i++) {
+            nPoints *= axes[i].n;
+        }
+        File tableFile = new File(new File(indexFile).getAbsoluteFile().getParentFile(),tableName);
+        long size = nPoints*FormantSweep.N_VALUES*4;
+        if(size > Integer.MAX_VALUE) {
+            throw new IOException(tableFile+": too large to map");
+        }
+        RandomAccessFile raf = new RandomAccessFile(tableFile,"r");
+        try {
+            if(raf.length() != size) {
+                throw new IOException(tableFile+": "+raf.length()+" bytes, expected "+size);
+            }
+            table = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,0,size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Get number of points.
+        @return number of rows of the table.
+    */
+    public long getNPoints() {
+        return nPoints;
+    }
+
+    /** Get the axes of the grid.
+        @return axes, first axis varies slowest.
+    */
+    public FormantSweep.Axis[] getAxes() {
+        return axes;
+    }
+
+    /** Get the parameters of a point.
+        @param point row.
+        @param params value of each axis.
+    */
+    public void getParams(long point, double[] params) {
+        FormantSweep.getParams(axes,point,params);
+    }
+
+    /** Get a value of a point.
+        @param point row.
+        @param k index in FormantSweep.VALUE_NAMES.
+        @return value, NaN if not found.
+    */
+    public float getValue(long point, int k) {
+        return table.getFloat((int)((point*FormantSweep.N_VALUES+k)*4));
+    }
+
+    /** Get all values of a point.
+        @param point row.
+        @param values FormantSweep.N_VALUES values.
+    */
+    public void getValues(long point, float[] values) {
+        int pos = (int)(point*FormantSweep.N_VALUES*4);
+        for(int k=0;k<FormantSweep.N_VALUES;k++) {
+            values[k] = table.getFloat(pos+4*k);
+        }
+    }
+
+    /** Get evaluation method.
+        @return "frequency" or "time".
+    */
+    public String getMethod() {
+        return method;
+    }
+
+    /** Get sampling rate of the tube.
+        @return sampling rate in Hz.
+    */
+    public float getSrate() {
+        return srate;
+    }
+
+    /** Get number of radii set by the shaper.
+        @return number of radii.
+    */
+    public int getNRadii() {
+        return nRadii;
+    }
+
+    /** Create the shaper the table was computed with, to get back the
+        tube of a point. It must have a public constructor without arguments.
+        @return shaper, or null if it can not be created.
+    */
+    public FormantSweep.Shaper createShaper() {
+        try {
+            return Class.forName(shaperName).asSubclass(FormantSweep.Shaper.class).getDeclaredConstructor().newInstance();
+        } catch(ReflectiveOperationException e) {
+            System.out.println("FormantTable: can not create shaper "+shaperName+": "+e);
+            return null;
+        } catch(ClassCastException e) {
+            System.out.println("FormantTable: "+shaperName+" is not a FormantSweep.Shaper");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package VTNT_JASS;
+
+import jass.engine.*;
+import jass.generators.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
+
+/**
+   Fundamental frequency and open quotient of the TwoMassModel on a grid
+   of pitch factor q, lung pressure ps and glottal rest area Ag0, so a
+   controller can ask for a pitch instead of a q. Every grid point is
+   simulated from rest to steady state (without a vocal tract, p1 = 0)
+   and measured: f0 from the autocorrelation of the flow, 0 if it does
+   not oscillate periodically, and the open quotient as the fraction of the time the
+   flow is more than 5% of its peak to peak above its minimum. The table
+   is built on all cores with build() and memory mapped when opened.
+   <p>
+   The inverse lookup interpolates f0 along q at the current ps and Ag0
+   and finds the q with the requested f0 closest to the current q, so q
+   moves smoothly along an f0 contour. It does not allocate and can run
+   at control rate on the audio thread:
+   <pre>
+   PitchTable table = new PitchTable("pitch.tab");
+   ...
+   table.setF0(twoMassModel.getVars(),f0);
+   </pre>
+*/
+
+public class PitchTable {
+    private static final int MAGIC = 0x564b5054; // "VKPT"
+    private static final int HEADER = 88; // magic, integrator, srate, 3 axes of min, max, n, pad
+    private static final double SETTLE_SECONDS = .3; // before measuring
+    private static final int WINDOW = 4096; // samples correlated
+    private static final int MIN_LAG = 20; // 2205 Hz at 44100
+    private static final double MIN_F0 = 40; // Hz
+    private final int integrator;
+    private final double srate;
+    private final FormantSweep.Axis qAxis, psAxis, ag0Axis;
+    private final ByteBuffer buf;
+
+    /** Open a table.
+        @param fn file written by build().
+    */
+    public PitchTable(String fn) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(fn,"r");
+        try {
+            long size = raf.length();
+            if(size > Integer.MAX_VALUE) {
+                throw new IOException(fn+": too large to map");
+            }
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,0,size);
+        } finally {
+            raf.close();
+        }
+        if(buf.getInt(0) != MAGIC) {
+            throw new IOException(fn+": not a PitchTable");
+        }
+        integrator = buf.getInt(4);
+        srate = buf.getDouble(8);
+        qAxis = readAxis(buf,16,"q");
+        psAxis = readAxis(buf,40,"ps");
+        ag0Axis = readAxis(buf,64,"Ag0");
+        if(buf.capacity() != HEADER+8L*qAxis.n*psAxis.n*ag0Axis.n) {
+            throw new IOException(fn+": truncated");
+        }
+    }
+
+    /** Get the q axis.
+        @return axis of the pitch factor.
+    */
+    public FormantSweep.Axis getQAxis() {
+        return qAxis;
+    }
+
+    /** Get the ps axis.
+        @return axis of the lung pressure.
+    */
+    public FormantSweep.Axis getPsAxis() {
+        return psAxis;
+    }
+
+    /** Get the Ag0 axis.
+        @return axis of the glottal rest area in cm^2.
+    */
+    public FormantSweep.Axis getAg0Axis() {
+        return ag0Axis;
+    }
+
+    /** Get the integrator the table was measured with.
+        @return TwoMassModel.EXPLICIT or TwoMassModel.IMPLICIT.
+    */
+    public int getIntegrator() {
+        return integrator;
+    }
+
+    /** Get the sampling rate the table was measured at.
+        @return sampling rate in Hz.
+    */
+    public double getSrate() {
+        return srate;
+    }
+
+    /** Get f0 at a grid point.
+        @param iq index on the q axis.
+        @param ips index on the ps axis.
+        @param iag0 index on the Ag0 axis.
+        @return f0 in Hz, 0 if the model does not oscillate.
+    */
+    public float getF0(int iq, int ips, int iag0) {
+        return buf.getFloat(HEADER+8*index(iq,ips,iag0));
+    }
+
+    /** Get open quotient at a grid point.
+        @param iq index on the q axis.
+        @param ips index on the ps axis.
+        @param iag0 index on the Ag0 axis.
+        @return open quotient, 0 to 1.
+    */
+    public float getOpenQuotient(int iq, int ips, int iag0) {
+        return buf.getFloat(HEADER+8*index(iq,ips,iag0)+4);
+    }
+
+    /** Interpolate f0. Parameters are clamped to the table.
+        @param q pitch factor.
+        @param ps lung pressure.
+        @param Ag0 glottal rest area in cm^2.
+        @return f0 in Hz, 0 if the model does not oscillate at most of the neighbouring grid points.
+    */
+    public double getF0(double q, double ps, double Ag0) {
+        return interpolate(q,ps,Ag0,0);
+    }
+
+    /** Interpolate the open quotient. Parameters are clamped to the table.
+        @param q pitch factor.
+        @param ps lung pressure.
+        @param Ag0 glottal rest area in cm^2.
+        @return open quotient.
+    */
+    public double getOpenQuotient(double q, double ps, double Ag0) {
+        return interpolate(q,ps,Ag0,4);
+    }
+
+    /** Find the q giving a pitch at a lung pressure and rest area. Of all
+        q with that f0 the one closest to qNear is taken. If f0 is out of
+        reach the q with the closest f0 is returned. Does not allocate.
+        @param f0 requested pitch in Hz.
+        @param ps lung pressure.
+        @param Ag0 glottal rest area in cm^2.
+        @param qNear current q.
+        @return q, NaN if the model does not oscillate for any q.
+    */
+    public double findQ(double f0, double ps, double Ag0, double qNear) {
+        int ips = cell(psAxis,ps);
+        double sps = fraction(psAxis,ps,ips);
+        int iag0 = cell(ag0Axis,Ag0);
+        double sag0 = fraction(ag0Axis,Ag0,iag0);
+        double bestQ = Double.NaN, bestDq = Double.MAX_VALUE;
+        double closestQ = Double.NaN, closestDf = Double.MAX_VALUE;
+        double fPrev = 0;
+        for(int i=0;i<qAxis.n;i++) {
+            double f = bilinear(i,ips,sps,iag0,sag0,0);
+            if(f > 0) {
+                double df = Math.abs(f-f0);
+                if(df < closestDf || (df == closestDf && Math.abs(qAxis.value(i)-qNear) < Math.abs(closestQ-qNear))) {
+                    closestDf = df;
+                    closestQ = qAxis.value(i);
+                }
+                if(fPrev > 0 && (fPrev-f0)*(f-f0) <= 0 && fPrev != f) {
+                    double q = qAxis.value(i-1) + (f0-fPrev)/(f-fPrev)*(qAxis.value(i)-qAxis.value(i-1));
+                    if(Math.abs(q-qNear) < bestDq) {
+                        bestDq = Math.abs(q-qNear);
+                        bestQ = q;
+                    }
+                }
+            }
+            fPrev = f;
+        }
+        return Double.isNaN(bestQ) ? closestQ : bestQ;
+    }
+
+    /** Set q of a model for a pitch at its current ps and Ag0. Does not allocate.
+        @param vars parameters of the model.
+        @param f0 requested pitch in Hz.
+        @return true if q was set, false if the model does not oscillate for any q.
+    */
+    public boolean setF0(TwoMassModel.Vars vars, double f0) {
+        double q = findQ(f0,vars.ps,1.e4*vars.Ag0,vars.q);
+        if(Double.isNaN(q)) {
+            return false;
+        }
+        vars.q = q;
+        return true;
+    }
+
+    /* Index of a grid point, q fastest. */
+    private int index(int iq, int ips, int iag0) {
+        return (iag0*psAxis.n+ips)*qAxis.n+iq;
+    }
+
+    /* Trilinear interpolation of the float at offset in the points. */
+    private double interpolate(double q, double ps, double Ag0, int offset) {
+        int iq = cell(qAxis,q);
+        double sq = fraction(qAxis,q,iq);
+        int ips = cell(psAxis,ps);
+        double sps = fraction(psAxis,ps,ips);
+        int iag0 = cell(ag0Axis,Ag0);
+        double sag0 = fraction(ag0Axis,Ag0,iag0);
+        double v0 = bilinear(iq,ips,sps,iag0,sag0,offset);
+        double v1 = qAxis.n > 1 ? bilinear(iq+1,ips,sps,iag0,sag0,offset) : 0;
+        if(offset == 0) { // only grid points that oscillate count, if they are the nearer half
+            if(v0 == 0) {
+                return sq >= .5 ? v1 : 0;
+            } else if(v1 == 0) {
+                return sq <= .5 ? v0 : 0;
+            }
+        }
+        return (1-sq)*v0 + sq*v1;
+    }
+
+    /* Interpolation over ps and Ag0 at q index iq. For f0 only the grid
+       points that oscillate are used, and 0 is returned unless they have
+       at least half the weight. */
+    private double bilinear(int iq, int ips, double sps, int iag0, double sag0, int offset) {
+        double v = 0, sum = 0;
+        for(int a=0;a<2;a++) {
+            double wa = a == 0 ? 1-sag0 : sag0;
+            if(wa == 0) {
+                continue;
+            }
+            for(int p=0;p<2;p++) {
+                double w = p == 0 ? wa*(1-sps) : wa*sps;
+                if(w == 0) {
+                    continue;
+                }
+                float x = buf.getFloat(HEADER+8*index(iq,ips+p,iag0+a)+offset);
+                if(offset == 0 && x == 0) {
+                    continue;
+                }
+                v += w*x;
+                sum += w;
+            }
+        }
+        if(offset == 0) {
+            return sum >= .5 ? v/sum : 0;
+        }
+        return v;
+    }
+
+    /* Index of the grid cell of x, clamped. */
+    private static int cell(FormantSweep.Axis axis, double x) {
+        if(axis.n < 2) {
+            return 0;
+        }
+        int i = (int)Math.floor((x-axis.min)/(axis.max-axis.min)*(axis.n-1));
+        return Math.max(0,Math.min(axis.n-2,i));
+    }
+
+    /* Position of x in cell i, clamped to 0 to 1. */
+    private static double fraction(FormantSweep.Axis axis, double x, int i) {
+        if(axis.n < 2) {
+            return 0;
+        }
+        double s = (x-axis.value(i))/(axis.value(i+1)-axis.value(i));
+        return Math.max(0,Math.min(1,s));
+    }
+
+    private static FormantSweep.Axis readAxis(ByteBuffer b, int pos, String name) {
+        return new FormantSweep.Axis(name,b.getDouble(pos),b.getDouble(pos+8),b.getInt(pos+16));
+    }
+
+    private static void writeAxis(ByteBuffer b, int pos, FormantSweep.Axis axis) {
+        b.putDouble(pos,axis.min);
+        b.putDouble(pos+8,axis.max);
+        b.putInt(pos+16,axis.n);
+    }
+
+    /** Measure f0 and open quotient of a flow.
+        @param y flow.
+        @param start first sample used, WINDOW samples plus one period must follow.
+        @param srate sampling rate in Hz.
+        @param c scratch space, at least srate/MIN_F0+2 long.
+        @param result receives f0 in Hz (0 if the flow does not oscillate) and the open quotient.
+    */
+    static void measure(float[] y, int start, double srate, double[] c, double[] result) {
+        int maxLag = Math.min(y.length-start-WINDOW,(int)(srate/MIN_F0));
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE, mean = 0;
+        for(int i=start;i<start+WINDOW;i++) {
+            min = Math.min(min,y[i]);
+            max = Math.max(max,y[i]);
+            mean += y[i];
+        }
+        mean /= WINDOW;
+        double threshold = min + .05*(max-min);
+        int nOpen = 0;
+        for(int i=start;i<start+WINDOW;i++) {
+            if(y[i] > threshold) {
+                nOpen++;
+            }
+        }
+        result[0] = 0;
+        result[1] = max-min < 1.e-6 ? (min > 0 ? 1 : 0) : nOpen/(double)WINDOW; // 1 cm^3/s
+        if(max-min < 1.e-6) {
+            return;
+        }
+        double cMax = 0;
+        for(int lag=MIN_LAG;lag<=maxLag;lag++) {
+            double s = 0, n1 = 0, n2 = 0;
+            for(int i=start;i<start+WINDOW;i++) {
+                double a = y[i]-mean;
+                double b = y[i+lag]-mean;
+                s += a*b;
+                n1 += a*a;
+                n2 += b*b;
+            }
+            c[lag] = s/Math.sqrt(n1*n2+1.e-300);
+            cMax = Math.max(cMax,c[lag]);
+        }
+        if(cMax < .8) {
+            return;
+        }
+        // first peak close to the highest, refined with a parabola
+        for(int lag=MIN_LAG+1;lag<maxLag;lag++) {
+            if(c[lag] >= .9*cMax && c[lag] >= c[lag-1] && c[lag] >= c[lag+1]) {
+                double d = c[lag-1]-2*c[lag]+c[lag+1];
+                double shift = d < 0 ? .5*(c[lag-1]-c[lag+1])/d : 0;
+                result[0] = srate/(lag+shift);
+                return;
+            }
+        }
+    }
+
+    /** Measure all grid points on all cores and write a table.
+        @param qAxis pitch factors.
+        @param psAxis lung pressures.
+        @param ag0Axis glottal rest areas in cm^2.
+        @param integrator TwoMassModel.EXPLICIT or TwoMassModel.IMPLICIT.
+        @param srate sampling rate in Hz.
+        @param fn output file.
+        @param nThreads number of threads, 0 for one per core.
+        @return number of points where the model oscillates.
+    */
+    public static int build(final FormantSweep.Axis qAxis, final FormantSweep.Axis psAxis, final FormantSweep.Axis ag0Axis,
+                            final int integrator, final double srate, String fn, int nThreads) throws IOException {
+        if(nThreads <= 0) {
+            nThreads = Runtime.getRuntime().availableProcessors();
+        }
+        final int nPoints = qAxis.n*psAxis.n*ag0Axis.n;
+        long size = HEADER+8L*nPoints;
+        if(size > Integer.MAX_VALUE) {
+            throw new IOException(fn+": too large to map");
+        }
+        RandomAccessFile raf = new RandomAccessFile(fn,"rw");
+        raf.setLength(0);
+        raf.setLength(size);
+        final MappedByteBuffer out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,0,size);
+        raf.close();
+        out.putInt(0,MAGIC);
+        out.putInt(4,integrator);
+        out.putDouble(8,srate);
+        writeAxis(out,16,qAxis);
+        writeAxis(out,40,psAxis);
+        writeAxis(out,64,ag0Axis);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger nVoiced = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        Thread[] workers = new Thread[Math.min(nThreads,nPoints)];
+        for(int w=0;w<workers.length;w++) {
+            workers[w] = new Thread("PitchTable-"+w) {
+                    public void run() {
+                        int bufferSize = 512;
+                        TwoMassModel model = new TwoMassModel(bufferSize,srate);
+                        model.setIntegrator(integrator);
+                        TwoMassModel.Vars vars = model.getVars();
+                        int nBuffers = (int)Math.ceil((SETTLE_SECONDS*srate+WINDOW+srate/MIN_F0+1)/bufferSize);
+                        float[] y = new float[nBuffers*bufferSize];
+                        int start = y.length-WINDOW-(int)(srate/MIN_F0)-1;
+                        double[] c = new double[(int)(srate/MIN_F0)+2];
+                        double[] result = new double[2];
+                        ByteBuffer b = out.duplicate();
+                        int p;
+                        try {
+                            while((p = next.getAndIncrement()) < nPoints) {
+                                vars.q = qAxis.value(p%qAxis.n);
+                                vars.ps = psAxis.value(p/qAxis.n%psAxis.n);
+                                vars.Ag0 = 1.e-4*ag0Axis.value(p/qAxis.n/psAxis.n);
+                                model.reset();
+                                for(int i=0;i<nBuffers;i++) {
+                                    float[] x = model.getBuffer(model.getTime()+1);
+                                    System.arraycopy(x,0,y,i*bufferSize,bufferSize);
+                                }
+                                measure(y,start,srate,c,result);
+                                if(result[0] > 0) {
+                                    nVoiced.incrementAndGet();
+                                }
+                                b.putFloat(HEADER+8*p,(float)result[0]);
+                                b.putFloat(HEADER+8*p+4,(float)result[1]);
+                            }
+                        } catch(BufferNotAvailableException e) {
+                            System.out.println("PitchTable: "+e);
+                            failed.incrementAndGet();
+                        }
+                    }
+                };
+            workers[w].start();
+        }
+        for(int w=0;w<workers.length;w++) {
+            try {
+                workers[w].join();
+            } catch(InterruptedException e) {
+                System.out.println("PitchTable: interrupted");
+            }
+        }
+        out.force();
+        if(failed.get() > 0) {
+            throw new IOException("PitchTable: could not compute "+fn);
+        }
+        return nVoiced.get();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length >= 2 && args[0].equals("build")) {
+            int nq = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+            int nps = args.length > 3 ? Integer.parseInt(args[3]) : 24;
+            int nag0 = args.length > 4 ? Integer.parseInt(args[4]) : 9;
+            int integrator = args.length > 5 && args[5].equals("implicit") ? TwoMassModel.IMPLICIT : TwoMassModel.EXPLICIT;
+            int nThreads = args.length > 6 ? Integer.parseInt(args[6]) : 0;
+            double srate = args.length > 7 ? Double.parseDouble(args[7]) : 44100;
+            // slider ranges of VTNTDemo, Ag0 where the model oscillates
+            FormantSweep.Axis qAxis = new FormantSweep.Axis("q",.05,6,nq);
+            FormantSweep.Axis psAxis = new FormantSweep.Axis("ps",250,6000,nps);
+            FormantSweep.Axis ag0Axis = new FormantSweep.Axis("Ag0",-.1,.3,nag0);
+            long t0 = System.nanoTime();
+            int nVoiced = build(qAxis,psAxis,ag0Axis,integrator,srate,args[1],nThreads);
+            System.out.println(nq*nps*nag0+" points, "+nVoiced+" oscillate, "+(System.nanoTime()-t0)/1.e9+" s");
+        } else if(args.length >= 5 && args[0].equals("query")) {
+            PitchTable table = new PitchTable(args[1]);
+            double f0 = Double.parseDouble(args[2]);
+            double ps = Double.parseDouble(args[3]);
+            double Ag0 = Double.parseDouble(args[4]);
+            double q = table.findQ(f0,ps,Ag0,1);
+            int nRepeat = 100000;
+            long t0 = System.nanoTime();
+            for(int i=0;i<nRepeat;i++) {
+                table.findQ(f0*(1+.001*(i%7)),ps,Ag0,q);
+            }
+            double us = (System.nanoTime()-t0)/1.e3/nRepeat;
+            System.out.println("q "+q+", table f0 "+table.getF0(q,ps,Ag0)+", open quotient "+
+                               table.getOpenQuotient(q,ps,Ag0)+", "+us+" us per lookup");
+            if(!Double.isNaN(q)) { // check against the model
+                TwoMassModel model = new TwoMassModel(512,table.getSrate());
+                model.setIntegrator(table.getIntegrator());
+                TwoMassModel.Vars vars = model.getVars();
+                vars.q = q;
+                vars.ps = ps;
+                vars.Ag0 = 1.e-4*Ag0;
+                model.reset();
+                int nBuffers = (int)Math.ceil((SETTLE_SECONDS*table.getSrate()+WINDOW+table.getSrate()/MIN_F0+1)/512);
+                float[] y = new float[nBuffers*512];
+                for(int i=0;i<nBuffers;i++) {
+                    System.arraycopy(model.getBuffer(i+1),0,y,i*512,512);
+                }
+                double[] result = new double[2];
+                measure(y,y.length-WINDOW-(int)(table.getSrate()/MIN_F0)-1,table.getSrate(),
+                        new double[(int)(table.getSrate()/MIN_F0)+2],result);
+                System.out.println("model f0 "+result[0]+", open quotient "+result[1]);
+            }
+        } else {
+            System.out.println("Usage: java VTNT_JASS.PitchTable build pitch.tab [nq nps nAg0] [explicit|implicit] [nThreads] [srate]");
+            System.out.println("       java VTNT_JASS.PitchTable query pitch.tab f0 ps Ag0");
+        }
+    }
+}
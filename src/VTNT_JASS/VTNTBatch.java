@@ -0,0 +1,182 @@
+package VTNT_JASS;
+
+import jass.engine.*;
+import jass.render.*;
+import jass.generators.*;
+import java.io.*;
+import java.util.*;
+
+/**
+   Renders the VTNT patch (TwoMassModel driving a RightLoadedWebsterTube)
+   for a list of area functions and glottal settings, concurrently on all
+   cores, one .wav file per job. Each line of the job file is
+   <pre>
+   ps q Ag0 seconds r_0 r_1 ... r_n-1
+   </pre>
+   with lung pressure ps, pitch factor q, glottal rest area Ag0 in
+   cm^2, duration in seconds and the tube radii in m, glottis to lips.
+   Lines starting with # are skipped.
+   <p>
+   Output level: as in VTNTRender, the lip pressure has no fixed scale
+   and peaks between about 1.25 and 2.6 at ps=800, so main() scales the
+   output by a gain (default VTNTRender.DEFAULT_GAIN) and reports the
+   jobs whose peak level exceeds full scale, which are clipped.
+*/
+
+public class VTNTBatch {
+
+    /** Parameters of one clip.
+     */
+    public static class Job {
+        public double ps;
+        public double q;
+        public double Ag0; // in cm^2
+        public double seconds;
+        public double[] radii;
+    }
+
+    /** One graph instance, reset for every job.
+     */
+    public static class Patch implements BatchRenderer.Patch<Job> {
+        private final TubeModel tm;
+        private final RightLoadedWebsterTube filter;
+        private final TwoMassModel twoMass;
+        private final FilterContainer filterContainer;
+        private final int bufferSize;
+        private final float srate;
+
+        /** Build graph.
+            @param srate sampling rate in Hz.
+            @param bufferSize buffer size.
+            @param nTubeSections number of radii per job.
+            @param tubeLength length of vocal tract in m.
+        */
+        public Patch(float srate,int bufferSize,int nTubeSections,double tubeLength) {
+            this.srate = srate;
+            this.bufferSize = bufferSize;
+            double tubeLengthNasal = .11;
+            double minLen = .15;
+            double cflNumber = .5;
+            tm = new TubeModel(nTubeSections);
+            tm.setLength(tubeLength);
+            TubeModel tmNasal = new TubeModel(6);
+            tmNasal.setLength(tubeLengthNasal);
+            for(int i=0;i<6;i++) {
+                tmNasal.setRadius(i,.005);
+            }
+            filter = new RightLoadedWebsterTube(srate,tm,minLen,tmNasal,tubeLengthNasal,cflNumber);
+            filter.useLipModel = false;
+            filterContainer = new FilterContainer(srate,bufferSize,filter);
+            twoMass = new TwoMassModel(bufferSize,srate);
+            filter.setTwoMassModel(twoMass);
+            try {
+                filterContainer.addSource(new Silence(bufferSize));
+            } catch(SinkIsFullException e) {
+                System.out.println(this+" "+e);
+            }
+        }
+
+        public void configure(Job job) {
+            for(int i=0;i<job.radii.length;i++) {
+                tm.setRadius(i,job.radii[i]);
+            }
+            filter.changeTubeModel();
+            filter.reset();
+            TwoMassModel.Vars vars = twoMass.getVars();
+            vars.ps = job.ps;
+            vars.q = job.q;
+            vars.Ag0 = 1.e-4*job.Ag0;
+            twoMass.reset();
+            vars.setVars(); // no interpolation from previous job
+        }
+
+        /** Get the tube, e.g., to change settings not in Job.
+            @return tube filter.
+        */
+        public RightLoadedWebsterTube getFilter() {
+            return filter;
+        }
+
+        /** Get the glottis driving the tube.
+            @return two mass model.
+        */
+        public TwoMassModel getTwoMassModel() {
+            return twoMass;
+        }
+
+        public Source getOutput() {
+            return filterContainer;
+        }
+
+        public long getNFrames(Job job) {
+            return (long)Math.ceil(job.seconds*srate/bufferSize);
+        }
+    }
+
+    /** Read jobs from a file.
+        @param fn file name.
+        @return jobs.
+    */
+    public static List<Job> readJobs(String fn) throws IOException {
+        Vector<Job> jobs = new Vector<Job>();
+        BufferedReader in = new BufferedReader(new FileReader(fn));
+        String line;
+        while((line = in.readLine()) != null) {
+            line = line.trim();
+            if(line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            StringTokenizer st = new StringTokenizer(line," \t,");
+            Job job = new Job();
+            job.ps = Double.parseDouble(st.nextToken());
+            job.q = Double.parseDouble(st.nextToken());
+            job.Ag0 = Double.parseDouble(st.nextToken());
+            job.seconds = Double.parseDouble(st.nextToken());
+            job.radii = new double[st.countTokens()];
+            for(int i=0;i<job.radii.length;i++) {
+                job.radii[i] = Double.parseDouble(st.nextToken());
+            }
+            jobs.addElement(job);
+        }
+        in.close();
+        return jobs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2) {
+            System.out.println("Usage: java VTNT_JASS.VTNTBatch jobfile outprefix [nThreads] [srate] [tubeLength] [gain]");
+            return;
+        }
+        int nThreads = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        final float srate = args.length > 3 ? Float.parseFloat(args[3]) : 44100;
+        final double tubeLength = args.length > 4 ? Double.parseDouble(args[4]) : .17;
+        float gain = args.length > 5 ? Float.parseFloat(args[5]) : VTNTRender.DEFAULT_GAIN;
+        final int bufferSize = 512;
+        List<Job> jobs = readJobs(args[0]);
+        if(jobs.size() == 0) {
+            System.out.println("No jobs in "+args[0]);
+            return;
+        }
+        final int nTubeSections = jobs.get(0).radii.length;
+        BatchRenderer<Job> renderer = new BatchRenderer<Job>(new BatchRenderer.PatchFactory<Job>() {
+                public BatchRenderer.Patch<Job> create() {
+                    return new Patch(srate,bufferSize,nTubeSections,tubeLength);
+                }
+            },nThreads,bufferSize,srate);
+        float[] peaks = new float[jobs.size()];
+        int failed = renderer.render(jobs,BatchRenderer.<Job>wavFiles(args[1],srate,WavFileWriter.PCM_16,gain,peaks));
+        System.out.println(jobs.size()+" jobs, "+failed+" failed, "+renderer.getNThreads()+" threads, "+
+                           renderer.getElapsedSeconds()+" s, realtime factor "+renderer.getRealTimeFactor());
+        float maxPeak = 0;
+        int nClipped = 0;
+        for(int i=0;i<peaks.length;i++) {
+            maxPeak = Math.max(maxPeak,peaks[i]);
+            if(peaks[i] > 1) {
+                System.out.println("job "+i+": peak level "+peaks[i]+", CLIPPED");
+                nClipped++;
+            }
+        }
+        System.out.println("peak level "+maxPeak+" with gain "+gain+
+                           (nClipped > 0 ? ", "+nClipped+" jobs CLIPPED, use a smaller gain" : ""));
+    }
+}
@@ -25,6 +25,7 @@ public class VTNTDemo implements Runnable {
     Controller a_controlPanelTwoMass; // Ishizak-Flanagan model
     //Airway airway=null;
     FormantsPlotter formantsPlotter;
+    FormantTracker formantTracker; // live formants of the output
     boolean useTwoMassModel = true; // or if false use Rosenberg model
     float srate;
     boolean slideStarted = false;
@@ -50,6 +51,9 @@ public class VTNTDemo implements Runnable {
         if(formantsPlotter != null) {
             formantsPlotter.close();
         }
+        if(formantTracker != null) {
+            formantTracker.stop();
+        }
     }
     
     public VTNTDemo(String[] args) {
@@ -150,6 +154,7 @@ public class VTNTDemo implements Runnable {
         tm.setLength(tubeLength);
         tmNasal.setLength(tubeLengthNasal);
         player = new SourcePlayer(bufferSize,bufferSizeJavaSound,srate);
+        player.setUseRenderPlan(true);
         double c= 350; // vel. of sound
         double minLen = .15;
         double minLenNasal = tubeLengthNasal;
@@ -159,6 +164,8 @@ public class VTNTDemo implements Runnable {
         final RightLoadedWebsterTube filterCopy = new RightLoadedWebsterTube(srate,tm,minLen,tmNasal,minLenNasal,cflNumber);
         filterCopy.setOutputVelocity(true); // to display formants correctly
         filterCopy.useLipModel = !filterCopy.useLipModel; // set to false (will be reset later on)
+        // formants are computed from the settings of filterCopy, it is not run
+        final TubeTransferFunction transferFunction = new TubeTransferFunction(filterCopy);
 
         final FilterContainer filterContainer = new FilterContainer(srate,bufferSize,filter);
         final GlottalWave source = new GlottalWave(srate,bufferSize);
@@ -176,7 +183,9 @@ public class VTNTDemo implements Runnable {
             } else {
                 filterContainer.addSource(source);
             }
-            player.addSource(filterContainer);
+            formantTracker = new FormantTracker(bufferSize,srate);
+            formantTracker.addSource(filterContainer);
+            player.addSource(formantTracker);
             //player.addSource(twoMassSource);
             
         } catch(Exception e) {}
@@ -351,20 +360,18 @@ public class VTNTDemo implements Runnable {
                     for(int i=0;i<nTubeSections;i++) {
                         tm.setRadius(i,tract[i]);
                     }
-                    filter.changeTubeModel();
+                    filter.postTubeModelChange();
                     handleReset();
                     //updateFormantsPlot();
                     
                 }
                 
                 private void updateFormantsPlot() {
-                    filterCopy.changeTubeModel();
-                    filterCopy.reset();
                     if(formantsPlotter == null) {
                         formantsPlotter = new FormantsPlotter();
                         formantsPlotter.setLocation(300,500);
                     }
-                    formantsPlotter.plotFormants(filterCopy,srate);
+                    formantsPlotter.plotFormants(transferFunction,srate);
                     //formantsPlotter.dumpData(filterCopy,srate);
                 }
 
@@ -373,35 +380,35 @@ public class VTNTDemo implements Runnable {
                     switch(k) {
 
                     case 0:
-                        filter.multDSecond = this.val[k];
+                        filter.postParameter(RightLoadedWebsterTube.PARAM_MULT_D_SECOND,this.val[k]);
                         filterCopy.multDSecond = this.val[k];
-                        filter.changeTubeModel();
                         break;
                     case 1:
-                        filter.multDWall = this.val[k];
+                        filter.postParameter(RightLoadedWebsterTube.PARAM_MULT_D_WALL,this.val[k]);
                         filterCopy.multDWall = this.val[k];
                         break;
                     case 2:
-                        filter.setWallPressureCoupling((double)this.val[k]);
+                        filter.postParameter(RightLoadedWebsterTube.PARAM_WALL_PRESSURE_COUPLING,this.val[k]);
                         filterCopy.setWallPressureCoupling((double)this.val[k]);
-                        filter.changeTubeModel();
                         break;
                     case 3:
-                    	filter.lipAreaMultiplier = (double)this.val[k];
+                    	filter.postParameter(RightLoadedWebsterTube.PARAM_LIP_AREA_MULTIPLIER,this.val[k]);
                     	filterCopy.lipAreaMultiplier = (double)this.val[k];
-                        filter.changeTubeModel();
                         break;
                     case 4:
                         tm.setLength((double)this.val[k]);
-                        filter.changeTubeModel();
+                        filter.postTubeModelChange();
                         break;
                     default:
                         double r=Math.sqrt(val[k]/Math.PI);
                         tm.setRadius(k-nAuxSliders,r/100);// in meters
                         //tmAirway.setRadius(k-nAuxSliders,r);// in cm
-                        filter.changeTubeModel();
+                        filter.postTubeModelChange();
                         break;
                     }
+                    if(formantsPlotter != null) {
+                        updateFormantsPlot(); // cheap, follows the sliders
+                    }
                 }
             };
 
@@ -477,21 +484,21 @@ public class VTNTDemo implements Runnable {
                 public void onSlider(int k) {
                     switch(k) {
                     case 0:
-                        filter.velumNasal = this.val[k];
+                        filter.postParameter(RightLoadedWebsterTube.PARAM_VELUM_NASAL,this.val[k]);
                         filterCopy.velumNasal = this.val[k];
                         break;
                     case 1:
-                        filter.mouthNoseBalance = this.val[k];
+                        filter.postParameter(RightLoadedWebsterTube.PARAM_MOUTH_NOSE_BALANCE,this.val[k]);
                         filterCopy.mouthNoseBalance = this.val[k];
                         break;
                     case 2:
                         tmNasal.setLength((double)this.val[k]);
-                        filter.changeTubeModel();
+                        filter.postTubeModelChange();
                         break;
                     default:
                         double r=Math.sqrt(this.val[k]/Math.PI);
                         tmNasal.setRadius(k-nAuxSlidersNasal,r/100);// in meters
-                        filter.changeTubeModel();
+                        filter.postTubeModelChange();
                         break;
                     }
                 }
@@ -672,6 +679,20 @@ public class VTNTDemo implements Runnable {
         a_controlPanelTwoMass.setLocation(p);
 
         player.start();
+        formantTracker.start();
+        // show the tracked formants in the title of the VT panel
+        new javax.swing.Timer(200,new java.awt.event.ActionListener() {
+                double[] f = new double[FormantTracker.N_FORMANTS];
+                double[] bw = new double[FormantTracker.N_FORMANTS];
+                public void actionPerformed(java.awt.event.ActionEvent e) {
+                    int n = formantTracker.getFormants(f,bw);
+                    String str = "Vocal Tract";
+                    for(int i=0;i<n;i++) {
+                        str += "  F"+(i+1)+"="+(int)f[i];
+                    }
+                    a_controlPanel.setTitle(str);
+                }
+            }).start();
 
         try {
             Thread.sleep(1000);
@@ -771,7 +792,7 @@ public class VTNTDemo implements Runnable {
                     	
                     	a_controlPanelRosenberg.setSliders(valRosenberg,minRosenberg,maxRosenberg,namesRosenberg);
                     	a_controlPanel.setSliders(val,min,max,names);
-                    	filter.changeTubeModel();
+                    	filter.postTubeModelChange();
                     }
                     
                 }
@@ -781,72 +802,7 @@ public class VTNTDemo implements Runnable {
         
     }
 
-    double[] fantData_a =  new double[] {5, 5, 5, 5, 6.5,       8, 8, 8, 8, 8,
-                                                8, 8, 8, 6.5, 5,       4, 3.2, 1.6, 2.6, 2.6,
-                                                2, 1.6, 1.3, 1, .65,   .65, .65, 1, 1.6, 2.6,
-                                                4, 1, 1.3, 1.6, 2.6};
-    double[] fantData_o =  new double[] {3.2,3.2,3.2,3.2,6.5,   13,13,16,13,10.5,
-                                                10.5,8,8,6.5,6.5,       5,5,4,3.2,2,
-                                                1.6,2.6,1.3,.65,.65,    1,1,1.3,1.6,2,
-                                                3.2,4,5,5,1.3,          1.3,1.6,2.6};
-    double[] fantData_u =  new double[] {.65,.65,.32,.32,2,  5,10.5,13,13,13,
-                                                13,10.5,8,6.5,5,    3.2,2.6,2,2,2,
-                                                1.6,1.3,2,1.6,1,     1,1,1.3,1.6,3.2,
-                                                5,8,8,10.5,10.5,    10.5,2,2,2.6,      2.6};
-    double[] fantData_i_ =  new double[] {6.5,6.5,2,6.5,8,   8,8,5,3.2,2.6,
-                                                 2,2,1.6,1.3,1,     1,1.3,1.6,2.6,2,
-                                                 4,5,6.5,6.5,8,     10.5,10.5,10.5,10.5,10.5,
-                                                 13,13,10.5,10.5,6, 3.2,3.2,3.2,3.2};
-    double[] fantData_i =  new double[] {4,4,3.2,1.6,1.3,              1,.65,.65,.65,.65,
-                                                .65,.65,.65,1.3,2.6,          4,6.5,8,8,10.5,
-                                                10.5,10.5,10.5,10.5,10.5,     10.5,10.5,10.5,8,8,
-                                                2,2,2.6,3.2};
-    double[] fantData_e =  new double[] {8,8,5,5,4,               2.6,2,2.6,2.6,3.2,
-                                                4,4,4,5,5,               6.5,8,6.5,8,10.5,
-                                                10.5,10.5,10.5,10.5,8,   8,6.5,6.5,6.5,6.5,
-                                                1.3,1.6,2,2.6};
-    
-    double[] fantData__ =  new double[] {5, 5, 5, 5, 5,       5, 5, 5, 5, 5,
-                                                5, 5, 5, 5, 5,       5, 5, 5, 5, 5,
-                                                5, 5, 5, 5, 5,   5, 5, 5, 5, 5,
-                                                5, 5, 5, 5, 5};
-
     public void preset(String p) {
-        double[] f_a=null;
-        if (p=="a") {
-            f_a = fantData_a;
-        }
-		if (p=="o") {
-            f_a = fantData_o;
-        }
-        if (p=="u") {
-            f_a = fantData_u;
-        }
-        if (p=="i_") {
-            f_a = fantData_i_;
-        }
-        if (p=="i") {
-            f_a = fantData_i;
-        }
-        if (p=="e") {
-            f_a = fantData_e;
-        }
-        if (p=="-") {
-            f_a = fantData__;
-        }
-        // interpolate and invert Fant data
-        double C = (f_a.length-1.)/(tract.length-1);
-        for(int i=0;i<tract.length;i++) {
-            double k = i*C;
-            int ki = (int)k;
-            double kfrac = k-ki;
-            int i1 = ki;
-            int i2 = i1+1;
-            if(i2>f_a.length-1) {
-                i2 = i1;
-            }
-           
-            tract[tract.length-i-1] = Math.sqrt((f_a[i1]*(1-kfrac)+f_a[i2]*kfrac)/Math.PI)/100;
-        }
+        FantVowels.getRadii(p,tract);
     }
 }
\ No newline at end of file
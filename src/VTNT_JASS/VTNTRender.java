@@ -0,0 +1,357 @@
+package VTNT_JASS;
+
+import jass.engine.*;
+import jass.render.*;
+import jass.generators.*;
+import java.io.*;
+import java.util.*;
+
+/**
+   Headless rendering of the VTNT patch (TwoMassModel driving a
+   RightLoadedWebsterTube) along a trajectory of vocal tract shapes and
+   glottal settings, as fast as possible, to a .wav file. Each line of a
+   text trajectory is a keyframe
+   <pre>
+   seconds ps q Ag0 velum length r_0 r_1 ... r_n-1
+   </pre>
+   with time in seconds, lung pressure ps, pitch factor q, glottal rest
+   area Ag0 in cm^2, velum opening (see
+   RightLoadedWebsterTube.velumNasal), tract length in m and the tube
+   radii in m, glottis to lips. Instead of the radii a vowel from
+   FantVowels.NAMES can be given. Fields are separated by white space or
+   commas, lines starting with # are skipped. A file ending in .bin is
+   binary: an int n followed by keyframes of 6+n doubles in the same
+   order (as written by DataOutputStream).
+   <p>
+   The file is streamed: keyframes are read only a little ahead of the
+   render position and posted to an AreaTrajectory, so memory does not
+   grow with the length of the session. The tube follows the areas,
+   length and velum piecewise linearly; ps, q and Ag0 are interpolated
+   to the end of every buffer and ramped over it by the TwoMassModel.
+   <p>
+   Output level: the tube output (pressure at the lips) has no fixed
+   scale. At ps=800, the TwoMassModel default, it peaks between about
+   1.25 and 2.6 depending on the vowel, and it grows faster than ps
+   (about 7 at ps=1500). main() therefore applies a gain (default
+   DEFAULT_GAIN) through OfflineRenderer.setGain() before writing, and
+   reports the peak level written. PCM output is clipped at full scale,
+   32 bit float output is written unclipped.
+*/
+
+public class VTNTRender {
+    /** Number of radii used for vowel names if the first keyframe does not set it. */
+    public static final int DEFAULT_N_RADII = 40;
+
+    /** Gain used by main() if none given, keeps ps=800 below full scale. */
+    public static final float DEFAULT_GAIN = .25f;
+
+    /** One keyframe.
+     */
+    public static class Frame {
+        public double seconds;
+        public double ps;
+        public double q;
+        public double Ag0; // in cm^2
+        public double velum;
+        public double length;
+        public double[] radii;
+    }
+
+    /** Reads keyframes one at a time.
+     */
+    public interface FrameReader {
+        /** Get number of radii of every keyframe.
+            @return number of radii.
+        */
+        int getNRadii();
+
+        /** Read the next keyframe.
+            @param frame keyframe to fill, with getNRadii() radii.
+            @return false at end of file.
+        */
+        boolean next(Frame frame) throws IOException;
+
+        /** Close the file.
+         */
+        void close() throws IOException;
+    }
+
+    /** Reads a text trajectory.
+     */
+    public static class TextReader implements FrameReader {
+        private BufferedReader in;
+        private String pending; // first keyframe line, read to find the number of radii
+        private int nRadii;
+        private int lineNumber = 0;
+
+        /** Open file.
+            @param fn file name.
+        */
+        public TextReader(String fn) throws IOException {
+            in = new BufferedReader(new FileReader(fn));
+            pending = readLine();
+            nRadii = DEFAULT_N_RADII;
+            if(pending != null) {
+                int n = new StringTokenizer(pending," \t,").countTokens()-6;
+                if(n > 1) {
+                    nRadii = n;
+                }
+            }
+        }
+
+        public int getNRadii() {
+            return nRadii;
+        }
+
+        public boolean next(Frame frame) throws IOException {
+            String line = pending != null ? pending : readLine();
+            pending = null;
+            if(line == null) {
+                return false;
+            }
+            StringTokenizer st = new StringTokenizer(line," \t,");
+            int n = st.countTokens()-6;
+            if(n != nRadii && n != 1) {
+                throw new IOException("Line "+lineNumber+": "+n+" radii, expected "+nRadii);
+            }
+            frame.seconds = Double.parseDouble(st.nextToken());
+            frame.ps = Double.parseDouble(st.nextToken());
+            frame.q = Double.parseDouble(st.nextToken());
+            frame.Ag0 = Double.parseDouble(st.nextToken());
+            frame.velum = Double.parseDouble(st.nextToken());
+            frame.length = Double.parseDouble(st.nextToken());
+            if(n == 1) {
+                FantVowels.getRadii(st.nextToken(),frame.radii);
+            } else {
+                for(int i=0;i<nRadii;i++) {
+                    frame.radii[i] = Double.parseDouble(st.nextToken());
+                }
+            }
+            return true;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private String readLine() throws IOException {
+            String line;
+            while((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if(line.length() != 0 && !line.startsWith("#")) {
+                    return line;
+                }
+            }
+            return null;
+        }
+    }
+
+    /** Reads a binary trajectory.
+     */
+    public static class BinaryReader implements FrameReader {
+        private DataInputStream in;
+        private int nRadii;
+
+        /** Open file.
+            @param fn file name.
+        */
+        public BinaryReader(String fn) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(fn)));
+            nRadii = in.readInt();
+        }
+
+        public int getNRadii() {
+            return nRadii;
+        }
+
+        public boolean next(Frame frame) throws IOException {
+            try {
+                frame.seconds = in.readDouble();
+            } catch(EOFException e) {
+                return false;
+            }
+            frame.ps = in.readDouble();
+            frame.q = in.readDouble();
+            frame.Ag0 = in.readDouble();
+            frame.velum = in.readDouble();
+            frame.length = in.readDouble();
+            for(int i=0;i<nRadii;i++) {
+                frame.radii[i] = in.readDouble();
+            }
+            return true;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private final VTNTBatch.Patch patch;
+    private final OfflineRenderer renderer;
+    private final int bufferSize;
+    private final float srate;
+    private final int depth; // keyframes read ahead at most
+    private final AreaTrajectory trajectory;
+    // glottal settings of the keyframes posted and the last one passed
+    private final long[] gTime;
+    private final double[] gPs, gQ, gAg0;
+    private int gHead = 0, gFill = 0;
+
+    /** Create renderer for keyframes of nRadii radii.
+        @param srate sampling rate in Hz.
+        @param bufferSize buffer size.
+        @param nRadii number of radii of a keyframe.
+        @param depth number of keyframes read ahead at most.
+    */
+    public VTNTRender(float srate, int bufferSize, int nRadii, int depth) {
+        this.srate = srate;
+        this.bufferSize = bufferSize;
+        this.depth = depth;
+        patch = new VTNTBatch.Patch(srate,bufferSize,nRadii,.17);
+        renderer = new OfflineRenderer(bufferSize,srate);
+        renderer.addSource(patch.getOutput());
+        trajectory = new AreaTrajectory(nRadii,depth,64);
+        gTime = new long[depth+1];
+        gPs = new double[depth+1];
+        gQ = new double[depth+1];
+        gAg0 = new double[depth+1];
+    }
+
+    /** Get the tube, e.g., to change settings before rendering.
+        @return tube filter.
+    */
+    public RightLoadedWebsterTube getFilter() {
+        return patch.getFilter();
+    }
+
+    /** Get the renderer, e.g., for the gain and the realtime factor.
+        @return renderer.
+    */
+    public OfflineRenderer getRenderer() {
+        return renderer;
+    }
+
+    /** Render a trajectory to a .wav file, up to the time of its last keyframe.
+        @param in keyframes, in order of time.
+        @param fn output file name.
+        @param format one of WavFileWriter.PCM_16, PCM_24, FLOAT_32.
+        @return number of buffers rendered.
+    */
+    public long render(FrameReader in, String fn, int format) throws IOException, BufferNotAvailableException {
+        Frame frame = new Frame();
+        frame.radii = new double[in.getNRadii()];
+        if(!in.next(frame)) {
+            return 0;
+        }
+        RightLoadedWebsterTube filter = patch.getFilter();
+        filter.setAreaTrajectory(null);
+        VTNTBatch.Job job = new VTNTBatch.Job();
+        job.ps = frame.ps;
+        job.q = frame.q;
+        job.Ag0 = frame.Ag0;
+        job.radii = frame.radii;
+        filter.velumNasal = frame.velum;
+        patch.configure(job);
+        filter.setAreaTrajectory(trajectory);
+        long start = filter.getSampleTime();
+        gHead = gFill = 0;
+        long lastTime = start+Math.round(frame.seconds*srate);
+        post(lastTime,frame);
+        boolean more = true;
+        renderer.open(fn,format);
+        TwoMassModel.Vars vars = patch.getTwoMassModel().getVars();
+        long nframes = 0;
+        long t = start;
+        while(more || t < lastTime) {
+            long end = t+bufferSize;
+            // read until a keyframe beyond this buffer is posted
+            while(more && lastTime <= end && trajectory.getFill() < depth && gFill <= depth) {
+                more = in.next(frame);
+                if(more) {
+                    long time = start+Math.round(frame.seconds*srate);
+                    if(time < lastTime) {
+                        throw new IOException("Keyframe at "+frame.seconds+" s out of order");
+                    }
+                    post(time,frame);
+                    lastTime = time;
+                }
+            }
+            // glottal settings at the end of the buffer
+            while(gFill > 1 && gTime[(gHead+1)%gTime.length] <= end) {
+                gHead = (gHead+1)%gTime.length;
+                gFill--;
+            }
+            int i0 = gHead;
+            if(gFill > 1) {
+                int i1 = (gHead+1)%gTime.length;
+                double s = Math.max(0,(end-gTime[i0])/(double)(gTime[i1]-gTime[i0]));
+                vars.ps = (1-s)*gPs[i0] + s*gPs[i1];
+                vars.q = (1-s)*gQ[i0] + s*gQ[i1];
+                vars.Ag0 = 1.e-4*((1-s)*gAg0[i0] + s*gAg0[i1]);
+            } else {
+                vars.ps = gPs[i0];
+                vars.q = gQ[i0];
+                vars.Ag0 = 1.e-4*gAg0[i0];
+            }
+            renderer.renderFrames(1);
+            nframes++;
+            t = end;
+        }
+        renderer.close();
+        return nframes;
+    }
+
+    /* Post keyframe at time in samples to the tube and the glottal settings. */
+    private void post(long time, Frame frame) {
+        trajectory.post(time,frame.radii,frame.length,frame.velum);
+        int i = (gHead+gFill)%gTime.length;
+        gTime[i] = time;
+        gPs[i] = frame.ps;
+        gQ[i] = frame.q;
+        gAg0[i] = frame.Ag0;
+        gFill++;
+    }
+
+    /** Open a trajectory file, binary if its name ends in .bin.
+        @param fn file name.
+        @return reader.
+    */
+    public static FrameReader open(String fn) throws IOException {
+        if(fn.endsWith(".bin")) {
+            return new BinaryReader(fn);
+        } else {
+            return new TextReader(fn);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2) {
+            System.out.println("Usage: java VTNT_JASS.VTNTRender trajectory out.wav [srate] [16|24|32] [overSamplingFactor] [gain]");
+            return;
+        }
+        float srate = args.length > 2 ? Float.parseFloat(args[2]) : 44100;
+        int format = WavFileWriter.PCM_16;
+        if(args.length > 3) {
+            if(args[3].equals("24")) {
+                format = WavFileWriter.PCM_24;
+            } else if(args[3].equals("32")) {
+                format = WavFileWriter.FLOAT_32;
+            }
+        }
+        int overSamplingFactor = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        float gain = args.length > 5 ? Float.parseFloat(args[5]) : DEFAULT_GAIN;
+        FrameReader in = open(args[0]);
+        VTNTRender vtntRender = new VTNTRender(srate,512,in.getNRadii(),64);
+        vtntRender.getRenderer().setGain(gain);
+        if(overSamplingFactor != 1) {
+            vtntRender.getFilter().setOverSamplingFactor(overSamplingFactor);
+        }
+        long nframes = vtntRender.render(in,args[1],format);
+        in.close();
+        OfflineRenderer renderer = vtntRender.getRenderer();
+        System.out.println(nframes*512/srate+" s rendered, realtime factor "+renderer.getRealTimeFactor());
+        System.out.println("peak level "+renderer.getPeak()+" with gain "+gain+
+                           (renderer.getPeak() > 1 && format != WavFileWriter.FLOAT_32 ? ", CLIPPED, use a smaller gain" : ""));
+    }
+}
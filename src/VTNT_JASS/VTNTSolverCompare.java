@@ -0,0 +1,271 @@
+package VTNT_JASS;
+
+import jass.generators.*;
+
+/**
+   Compares the double precision solver of RightLoadedWebsterTube with
+   another solver layout (default SOLVER_SOA_FLOAT) on the Fant vowels.
+   For each vowel the impulse response of the tube (velocity output, no
+   flow noise, no glottis model) is rendered with both, and the formants
+   are found as the peaks of its spectrum. Reports the formants of the
+   reference, the deviation of the test solver in Hz and the SNR of the
+   test output relative to the reference. Then the same is done for
+   glides between the vowels, with the radii moved every buffer and an
+   impulse train as input, which exercises the coefficients for moving
+   geometry, and the time per buffer of both is reported for a static
+   and a moving tract. Usage:
+   <pre>
+   java VTNT_JASS.VTNTSolverCompare [solver] [srate] [nTubeSections] [cflNumber]
+   </pre>
+*/
+public class VTNTSolverCompare {
+    static final int FFT_BITS = 15;
+    static final int N_FORMANTS = 4;
+    static final double F_MIN = 100; // ignore peaks below this (Hz)
+    static final int PEAK_HALFWIDTH = 40; // peak must be maximum within this many bins
+
+    private float srate;
+    private int nTubeSections;
+    private double cflNumber;
+    private int bufferSize = 512;
+
+    /** Create.
+        @param srate sampling rate in Hz.
+        @param nTubeSections number of sections of the vocal tract.
+        @param cflNumber CFL number.
+    */
+    public VTNTSolverCompare(float srate, int nTubeSections, double cflNumber) {
+        this.srate = srate;
+        this.nTubeSections = nTubeSections;
+        this.cflNumber = cflNumber;
+    }
+
+    /** Render impulse response of a vowel.
+        @param vowel one of FantVowels.NAMES.
+        @param solver solver layout of RightLoadedWebsterTube.
+        @param n number of samples, multiple of 512.
+        @return impulse response.
+    */
+    public double[] impulseResponse(String vowel, int solver, int n) {
+        RightLoadedWebsterTube filter = makeTube(vowel,solver);
+        float[] in = new float[bufferSize];
+        float[] out = new float[bufferSize];
+        double[] y = new double[n];
+        for(int b=0;b<n/bufferSize;b++) {
+            in[0] = b==0 ? 1 : 0;
+            filter.filter(out,in,bufferSize,0);
+            for(int k=0;k<bufferSize;k++) {
+                y[b*bufferSize+k] = out[k];
+            }
+        }
+        return y;
+    }
+
+    /** Render a glide from one vowel to another, driven by a 100 Hz
+        impulse train. The radii move linearly over the first half and
+        then stay at the second vowel.
+        @param from first vowel, one of FantVowels.NAMES.
+        @param to second vowel, one of FantVowels.NAMES.
+        @param solver solver layout of RightLoadedWebsterTube.
+        @param n number of samples, multiple of 512.
+        @return output.
+    */
+    public double[] glide(String from, String to, int solver, int n) {
+        TubeModel tm = new TubeModel(nTubeSections);
+        RightLoadedWebsterTube filter = makeTube(from,solver,tm);
+        double[] r0 = new double[nTubeSections];
+        double[] r1 = new double[nTubeSections];
+        FantVowels.getRadii(from,r0);
+        FantVowels.getRadii(to,r1);
+        float[] in = new float[bufferSize];
+        float[] out = new float[bufferSize];
+        double[] y = new double[n];
+        int nbuf = n/bufferSize;
+        int period = (int)(srate/100);
+        for(int b=0;b<nbuf;b++) {
+            double s = Math.min(1,2.*(b+1)/nbuf);
+            for(int i=0;i<nTubeSections;i++) {
+                tm.setRadius(i,(1-s)*r0[i]+s*r1[i]);
+            }
+            filter.changeTubeModel();
+            for(int k=0;k<bufferSize;k++) {
+                in[k] = (b*bufferSize+k)%period == 0 ? 1 : 0;
+            }
+            filter.filter(out,in,bufferSize,0);
+            for(int k=0;k<bufferSize;k++) {
+                y[b*bufferSize+k] = out[k];
+            }
+        }
+        return y;
+    }
+
+    /** Measure speed of a solver on a vowel. Renders nrounds times nbuf
+        buffers, the first round is warm up.
+        @param vowel one of FantVowels.NAMES.
+        @param solver solver layout of RightLoadedWebsterTube.
+        @param nbuf number of buffers per round.
+        @param nrounds number of rounds.
+        @return fastest round in nanoseconds per buffer.
+    */
+    public long time(String vowel, int solver, int nbuf, int nrounds) {
+        RightLoadedWebsterTube filter = makeTube(vowel,solver);
+        float[] in = new float[bufferSize];
+        float[] out = new float[bufferSize];
+        long best = Long.MAX_VALUE;
+        for(int r=0;r<nrounds;r++) {
+            long t0 = System.nanoTime();
+            for(int b=0;b<nbuf;b++) {
+                in[0] = b%100==0 ? 1 : 0; // decays to silence in between
+                filter.filter(out,in,bufferSize,0);
+            }
+            if(r > 0) {
+                best = Math.min(best,(System.nanoTime()-t0)/nbuf);
+            }
+        }
+        return best;
+    }
+
+    /** Measure speed of a solver on a glide, renders the glide nrounds
+        times, the first round is warm up.
+        @param from first vowel, one of FantVowels.NAMES.
+        @param to second vowel, one of FantVowels.NAMES.
+        @param solver solver layout of RightLoadedWebsterTube.
+        @param n number of samples per round, multiple of 512.
+        @param nrounds number of rounds.
+        @return fastest round in nanoseconds per buffer.
+    */
+    public long timeGlide(String from, String to, int solver, int n, int nrounds) {
+        long best = Long.MAX_VALUE;
+        for(int r=0;r<nrounds;r++) {
+            long t0 = System.nanoTime();
+            glide(from,to,solver,n);
+            if(r > 0) {
+                best = Math.min(best,(System.nanoTime()-t0)/(n/bufferSize));
+            }
+        }
+        return best;
+    }
+
+    private RightLoadedWebsterTube makeTube(String vowel, int solver) {
+        return makeTube(vowel,solver,new TubeModel(nTubeSections));
+    }
+
+    private RightLoadedWebsterTube makeTube(String vowel, int solver, TubeModel tm) {
+        double tubeLength = .17;
+        double tubeLengthNasal = .11;
+        tm.setLength(tubeLength);
+        TubeModel tmNasal = new TubeModel(6);
+        tmNasal.setLength(tubeLengthNasal);
+        for(int i=0;i<6;i++) {
+            tmNasal.setRadius(i,.005);
+        }
+        double[] tract = new double[nTubeSections];
+        FantVowels.getRadii(vowel,tract);
+        for(int i=0;i<nTubeSections;i++) {
+            tm.setRadius(i,tract[i]);
+        }
+        RightLoadedWebsterTube filter = new RightLoadedWebsterTube(srate,tm,.15,tmNasal,tubeLengthNasal,cflNumber,solver);
+        filter.useLipModel = false;
+        filter.setOutputVelocity(true);
+        filter.setFlowNoiseLevel(0);
+        filter.changeTubeModel();
+        filter.reset();
+        return filter;
+    }
+
+    /** Find formants as the lowest peaks of the spectrum, with parabolic
+        interpolation of the log magnitude.
+        @param y impulse response, length 2^FFT_BITS.
+        @return formant frequencies in Hz, 0 if not found.
+    */
+    public double[] formants(double[] y) {
+        int n = y.length;
+        double[] xr = y.clone();
+        double[] xi = new double[n];
+        new FFT(FFT_BITS).doFFT(xr,xi,false);
+        double[] mag = new double[n/2];
+        for(int i=0;i<n/2;i++) {
+            mag[i] = Math.log(xr[i]*xr[i]+xi[i]*xi[i]+1.e-300);
+        }
+        double[] f = new double[N_FORMANTS];
+        int nf = 0;
+        int iMin = (int)(F_MIN*n/srate);
+        for(int i=Math.max(iMin,PEAK_HALFWIDTH);i<n/2-PEAK_HALFWIDTH && nf<N_FORMANTS;i++) {
+            boolean isPeak = true;
+            for(int j=i-PEAK_HALFWIDTH;j<=i+PEAK_HALFWIDTH && isPeak;j++) {
+                if(mag[j] > mag[i]) {
+                    isPeak = false;
+                }
+            }
+            if(isPeak) {
+                double den = mag[i-1]-2*mag[i]+mag[i+1];
+                double di = den != 0 ? .5*(mag[i-1]-mag[i+1])/den : 0;
+                f[nf++] = (i+di)*srate/n;
+                i += PEAK_HALFWIDTH;
+            }
+        }
+        return f;
+    }
+
+    /** SNR of y relative to reference x.
+        @param x reference.
+        @param y test.
+        @return SNR in dB.
+    */
+    public static double snr(double[] x, double[] y) {
+        double e = 0, s = 0;
+        for(int i=0;i<x.length;i++) {
+            s += x[i]*x[i];
+            e += (x[i]-y[i])*(x[i]-y[i]);
+        }
+        return 10*Math.log10(s/e);
+    }
+
+    public static void main(String[] args) {
+        int solver = args.length > 0 ? Integer.parseInt(args[0]) : RightLoadedWebsterTube.SOLVER_SOA_FLOAT;
+        float srate = args.length > 1 ? Float.parseFloat(args[1]) : 44100;
+        int nTubeSections = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+        double cflNumber = args.length > 3 ? Double.parseDouble(args[3]) : .5;
+        VTNTSolverCompare cmp = new VTNTSolverCompare(srate,nTubeSections,cflNumber);
+        int n = 1<<FFT_BITS;
+        double maxDev = 0;
+        double minSnr = Double.POSITIVE_INFINITY;
+        for(int iv=0;iv<FantVowels.NAMES.length;iv++) {
+            String vowel = FantVowels.NAMES[iv];
+            double[] x = cmp.impulseResponse(vowel,RightLoadedWebsterTube.SOLVER_INTERLEAVED,n);
+            double[] y = cmp.impulseResponse(vowel,solver,n);
+            double[] fx = cmp.formants(x);
+            double[] fy = cmp.formants(y);
+            StringBuilder sb = new StringBuilder(vowel+":");
+            for(int i=0;i<N_FORMANTS;i++) {
+                double dev = Math.abs(fy[i]-fx[i]);
+                maxDev = Math.max(maxDev,dev);
+                sb.append(" F"+(i+1)+"="+Math.round(fx[i])+" ("+String.format("%.3f",dev)+")");
+            }
+            double s = snr(x,y);
+            minSnr = Math.min(minSnr,s);
+            sb.append(" SNR="+String.format("%.1f",s)+" dB");
+            System.out.println(sb);
+        }
+        System.out.println("max formant deviation "+String.format("%.3f",maxDev)+" Hz, min SNR "+
+                           String.format("%.1f",minSnr)+" dB"+(maxDev<1 ? ", within 1 Hz" : ", NOT within 1 Hz"));
+        double minGlideSnr = Double.POSITIVE_INFINITY;
+        for(int iv=0;iv<FantVowels.NAMES.length;iv++) {
+            String from = FantVowels.NAMES[iv];
+            String to = FantVowels.NAMES[(iv+1)%FantVowels.NAMES.length];
+            double[] x = cmp.glide(from,to,RightLoadedWebsterTube.SOLVER_INTERLEAVED,n);
+            double[] y = cmp.glide(from,to,solver,n);
+            double s = snr(x,y);
+            minGlideSnr = Math.min(minGlideSnr,s);
+            System.out.println(from+"->"+to+": SNR="+String.format("%.1f",s)+" dB");
+        }
+        System.out.println("min glide SNR "+String.format("%.1f",minGlideSnr)+" dB");
+        int nbuf = 1000;
+        long refNanos = cmp.time("a",RightLoadedWebsterTube.SOLVER_INTERLEAVED,nbuf,6);
+        long testNanos = cmp.time("a",solver,nbuf,6);
+        System.out.println("static: reference "+refNanos/1000+" us/buffer, solver "+solver+" "+testNanos/1000+" us/buffer");
+        refNanos = cmp.timeGlide("a","i",RightLoadedWebsterTube.SOLVER_INTERLEAVED,n,6);
+        testNanos = cmp.timeGlide("a","i",solver,n,6);
+        System.out.println("moving: reference "+refNanos/1000+" us/buffer, solver "+solver+" "+testNanos/1000+" us/buffer");
+    }
+}
@@ -8,6 +8,13 @@ import java.util.*;
    This is needed only when using the ThreadMixer which would result in deadlocks on
    closed loops. So you have to explicitly mark source connections passive to eliminate
    loops. When using only 1 thread this is not needed.
+   <p>
+   A passive connection always delivers the previous frame of its source
+   (see Out.getPreviousBuffer(long)), i.e., delays by one frame. The
+   source must also be reached through an active connection, or it is
+   never computed. An unmarked loop is cut where the pull meets a unit
+   that is computing the same frame; that unit delivers its previous
+   frame too.
    @author Kees van den Doel (kvdoel@cs.ubc.ca)
 */
 
@@ -22,7 +29,7 @@ public abstract class InOut extends Out implements Sink {
     */
     public synchronized Object addSource(Source s) throws SinkIsFullException {
         sourceContainer.addElement(s);
-        sourcePassivity.addElement(new Boolean(false));
+        sourcePassivity.addElement(Boolean.FALSE);
         s.setTime(getTime());
         return null;
     }
@@ -34,7 +41,7 @@ public abstract class InOut extends Out implements Sink {
     */
     public synchronized Object addSource(Source s,boolean p) throws SinkIsFullException {
         sourceContainer.addElement(s);
-        sourcePassivity.addElement(new Boolean(p));
+        sourcePassivity.addElement(Boolean.valueOf(p));
         s.setTime(getTime());
         return null;
     }
@@ -64,23 +71,31 @@ public abstract class InOut extends Out implements Sink {
         srcBuffers = new float[1][];
     }
 
-    /** Call all the sources and cache their returned buffers.
+    /* True if connection i is passive. Units that override addSource()
+       may not record passivity, their connections are active. */
+    boolean isPassive(int i) {
+        return i < sourcePassivity.size() && sourcePassivity.elementAt(i).booleanValue();
+    }
+
+    /** Call all the sources and cache their returned buffers. Indexes the
+        container directly so nothing is allocated per buffer.
      */
     private final void callSources() {
-        Source [] src = sourceContainer.toArray(new Source[0]);
-        int n = src.length; // number of sources
+        Vector<Source> src = sourceContainer;
+        int n = src.size(); // number of sources
         int n_buf = srcBuffers.length; // number of source buffers allocated
 
         if(n_buf < n) {
             srcBuffers = new float[n][];
         }
         try {
+            long t = getTime();
             for(int i=0;i<n;i++) {
-                //if(sourcePassivity.elementAt(i).booleanValue()) {
-                //    srcBuffers[i] = (src[i]).getBuffer();
-                //} else {
-                    srcBuffers[i] = (src[i]).getBuffer(getTime());
-                    //}
+                if(isPassive(i)) {
+                    srcBuffers[i] = getPreviousBuffer(src.elementAt(i),t);
+                } else {
+                    srcBuffers[i] = src.elementAt(i).getBuffer(t);
+                }
             }
         } catch(BufferNotAvailableException e) {
             System.out.println("InOut.callSources: "+this+" "+e);
@@ -95,14 +110,18 @@ public abstract class InOut extends Out implements Sink {
        @param t timestamp of buffer = frame index. 
     */
     public synchronized float[] getBuffer(long t) throws BufferNotAvailableException {
-        copyToOld();
         if(t == (getTime()+1)) { // requested next buffer
+            swapBuffers();
             setTime(t);
             callSources();
-            computeBuffer(); // use cached source buffers to compute buf.
+            computeBufferTimed(); // use cached source buffers to compute buf.
+            endBuffer();
         } else if(t != getTime()) { // neither current or next buffer requested: deny request
             System.out.println("Error! "+this+" Out.java: t="+t+" currentTime="+getTime());
             throw new BufferNotAvailableException();
+        } else if(isComputing()) {
+            // pulled again by a loop while computing frame t: previous frame
+            return bufOld;
         }
         // return new or old buffer:
         return buf;
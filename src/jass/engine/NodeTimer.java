@@ -0,0 +1,136 @@
+package jass.engine;
+
+/**
+   Histogram of render times of one unit. Times are in nanoseconds and
+   binned logarithmically with 4 bins per octave, so percentiles are
+   accurate to about 20%. Written by the render thread only; readers on
+   other threads see a recent, not necessarily consistent, state.
+*/
+
+public final class NodeTimer {
+    private static final int NBINS = 4*64;
+
+    private final String name;
+    private final long[] bins = new long[NBINS];
+    private volatile long count;
+    private volatile long totalNanos;
+    private volatile long maxNanos;
+    private long startNanos; // for start()/stop() pairs
+
+    /** Create.
+        @param name name of the timed unit.
+    */
+    public NodeTimer(String name) {
+        this.name = name;
+    }
+
+    /** Get name.
+        @return name of the timed unit.
+    */
+    public String getName() {
+        return name;
+    }
+
+    /** Start timing, to be followed by stop() on the same thread.
+     */
+    public void start() {
+        startNanos = System.nanoTime();
+    }
+
+    /** Stop timing and record time since start().
+     */
+    public void stop() {
+        record(System.nanoTime()-startNanos);
+    }
+
+    /** Record one render time.
+        @param nanos time in nanoseconds.
+    */
+    public void record(long nanos) {
+        if(nanos < 1) {
+            nanos = 1;
+        }
+        bins[bin(nanos)]++;
+        count = count+1;
+        totalNanos = totalNanos+nanos;
+        if(nanos > maxNanos) {
+            maxNanos = nanos;
+        }
+    }
+
+    // 4*floor(log2(x)) + next two bits of x
+    private static int bin(long nanos) {
+        int msb = 63-Long.numberOfLeadingZeros(nanos);
+        if(msb < 2) {
+            return (int)nanos;
+        }
+        return 4*msb + (int)((nanos >> (msb-2)) & 3);
+    }
+
+    // upper edge of bin
+    private static long binTop(int b) {
+        if(b < 8) {
+            return b+1;
+        }
+        int msb = b/4;
+        long sub = b%4;
+        return ((4+sub+1) << (msb-2));
+    }
+
+    /** Get a percentile of the recorded times.
+        @param p percentile in [0 100].
+        @return time in nanoseconds below which p percent of the renders fell.
+    */
+    public long getPercentileNanos(double p) {
+        long n = count;
+        if(n == 0) {
+            return 0;
+        }
+        long target = (long)Math.ceil(n*p/100);
+        if(target < 1) {
+            target = 1;
+        }
+        long acc = 0;
+        for(int b=0;b<NBINS;b++) {
+            acc += bins[b];
+            if(acc >= target) {
+                long top = binTop(b);
+                return top < maxNanos ? top : maxNanos;
+            }
+        }
+        return maxNanos;
+    }
+
+    /** Get number of recorded renders.
+        @return count.
+    */
+    public long getCount() {
+        return count;
+    }
+
+    /** Get mean render time.
+        @return mean in nanoseconds.
+    */
+    public double getMeanNanos() {
+        long n = count;
+        return n == 0 ? 0 : totalNanos/(double)n;
+    }
+
+    /** Get longest render time.
+        @return maximum in nanoseconds.
+    */
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /** Clear all recorded times.
+     */
+    public void reset() {
+        for(int b=0;b<NBINS;b++) {
+            bins[b] = 0;
+        }
+        count = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+    }
+}
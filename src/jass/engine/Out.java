@@ -12,7 +12,7 @@ public abstract class Out implements Source {
        The current time of this object, measured in number of frames of
        length bufferSize. So this is the number of frames processed.
     */
-    private long currentTime;
+    private volatile long currentTime;
 
     /** Buffer length of processed audio buffers. */
     protected int bufferSize;
@@ -20,18 +20,75 @@ public abstract class Out implements Source {
     /** The current buffer. */
     protected float[] buf;
 
-        /** The old buffer. */
+    /** The old buffer, i.e. the previous frame. */
     protected float[] bufOld;
 
     /** To provide access to the old buffer without locking whole class */
     protected Object lock;
 
-    protected void copyToOld() {
+    /** True from swapBuffers() until computeBuffer() has filled buf. Guarded by lock. */
+    private boolean computing = false;
+
+    /** Profiling timer, null when not profiling. */
+    private NodeTimer timer = null;
+
+    /** Attach a timer recording the duration of each computeBuffer(), or
+        detach with null. See RenderProfiler.
+        @param timer timer or null.
+    */
+    public void setTimer(NodeTimer timer) {
+        this.timer = timer;
+    }
+
+    /** Get profiling timer.
+        @return timer or null if not profiling.
+    */
+    public NodeTimer getTimer() {
+        return timer;
+    }
+
+    /** Call computeBuffer(), timing it if a timer is attached.
+     */
+    protected final void computeBufferTimed() {
+        NodeTimer timer = this.timer;
+        if(timer == null) {
+            computeBuffer();
+        } else {
+            long t0 = System.nanoTime();
+            computeBuffer();
+            timer.record(System.nanoTime()-t0);
+        }
+    }
+
+    /** Make the current buffer the old one and reuse the old one for the
+        next frame. Swaps references, no data is copied. computeBuffer() has to
+        write all of buf[] as it will contain the frame before the previous one.
+        Until endBuffer() buf is marked as being computed.
+    */
+    protected void swapBuffers() {
+        synchronized(lock) {
+            float[] tmp = bufOld;
+            bufOld = buf;
+            buf = tmp;
+            computing = true;
+        }
+    }
+
+    /** Mark buf as computed, after swapBuffers() and computeBuffer().
+     */
+    protected void endBuffer() {
         synchronized(lock) {
-            System.arraycopy(bufOld,0,buf,0,buf.length);
+            computing = false;
         }
     }
 
+    /** Check if the current frame is being computed, i.e., buf is not valid yet.
+        @return true between swapBuffers() and endBuffer().
+    */
+    protected boolean isComputing() {
+        return computing;
+    }
+
    /**
       Create at time 0 (which you may want to change by calling setTime()
       if objects are created in the middle of some jass.sis process). 
@@ -62,7 +119,7 @@ public abstract class Out implements Source {
     /** Get current time.
         @return current time.
     */
-    public synchronized long getTime() {
+    public long getTime() {
         return currentTime;
     }
     
@@ -102,6 +159,10 @@ public abstract class Out implements Source {
     public void setBufferSize(int bufferSize) {
         this.bufferSize = bufferSize;
         buf = new float[bufferSize];
+        bufOld = new float[bufferSize];
+        if(lock == null) {
+            lock = new Object();
+        }
         clearBuffer();
     }
     
@@ -127,10 +188,11 @@ public abstract class Out implements Source {
        @param t timestamp of buffer = frame index. 
     */
     public synchronized float[] getBuffer(long t) throws BufferNotAvailableException {
-        copyToOld();
         if(t == currentTime+1) { // requested next buffer
+            swapBuffers();
             setTime(t);
-            computeBuffer();
+            computeBufferTimed();
+            endBuffer();
         } else if(t != currentTime) { // neither current or next buffer requested: deny request
             System.out.println("Error! "+this+" Out.java: t="+t+" currentTime="+currentTime);
             throw new BufferNotAvailableException();
@@ -140,7 +202,23 @@ public abstract class Out implements Source {
     }
 
     /**
-       Get old buffer in cache. Deliberately not synchronized.
+       Compute frame t without locking or checking the time. Used by
+       RenderPlan, which has already brought all inputs up to date.
+       @param t timestamp of buffer = frame index.
+    */
+    void renderFrame(long t) {
+        swapBuffers();
+        currentTime = t;
+        computeBufferTimed();
+        endBuffer();
+    }
+
+    /**
+       Get old buffer in cache, i.e. the frame before the current time of
+       this unit. Triggers no computation. Deliberately not synchronized
+       on this. Which frame that is for a consumer depends on whether this
+       unit has already computed the consumer's frame, use
+       getPreviousBuffer(t) to get a fixed one.
     */
     public float[] getBuffer() throws BufferNotAvailableException {
         synchronized(lock) {
@@ -148,6 +226,30 @@ public abstract class Out implements Source {
         }
     }
 
+    /**
+       Get frame t-1 without triggering computation, for a consumer
+       computing frame t over a passive connection. This is the previous
+       frame whether or not this unit has computed frame t yet, so the
+       delay of a passive connection is always one frame. If this unit is
+       still computing frame t-1 on another thread, or is more than one
+       frame behind, the last completed frame is returned.
+       @param t frame the consumer is computing.
+       @return buffer of frame t-1.
+    */
+    public float[] getPreviousBuffer(long t) {
+        synchronized(lock) {
+            return currentTime == t-1 && !computing ? buf : bufOld;
+        }
+    }
+
+    /* Frame t-1 of any source, for passive connections. */
+    static float[] getPreviousBuffer(Source s,long t) throws BufferNotAvailableException {
+        if(s instanceof Out) {
+            return ((Out)s).getPreviousBuffer(t);
+        }
+        return s.getBuffer();
+    }
+
 
 }
 
@@ -0,0 +1,316 @@
+package jass.engine;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+   Mixer that renders its inputs in parallel on a ForkJoinPool. The
+   graph below the mixer is partitioned into independent subgraphs
+   (inputs which share no units), each partition is compiled into a
+   RenderPlan and run as one task per frame. The thread asking for the
+   buffer runs one partition itself and then waits on a lock-free
+   countdown for the others.
+
+   Unlike ThreadMixer there is no thread per source, and sources can be
+   added and removed while running: the partitioning is rebuilt on the
+   calling thread and picked up by the audio thread at the next frame.
+   By default all pool tasks share one pool with as many workers as
+   there are cores beyond the audio thread.
+*/
+
+public final class ParallelMixer extends Out implements Sink {
+
+    private static ForkJoinPool sharedPool = null;
+
+    private final ForkJoinPool pool;
+    private final Object editLock = new Object();
+    private final Vector<Source> sourceContainer = new Vector<Source>();
+    private final Vector<Float> gainContainer = new Vector<Float>();
+    private volatile Schedule schedule;
+    private final AtomicInteger nPending = new AtomicInteger();
+    private volatile BufferNotAvailableException failure = null;
+    private float[] tmp_buf; // scratchpad
+
+    /*
+      Immutable (apart from gains) description of how to render one
+      frame. Replaced as a whole when sources are added or removed.
+    */
+    private final class Schedule {
+        final Source[] src;
+        final float[] gains;
+        final RenderPlan[] plans;  // one per partition
+        final PartitionTask[] tasks; // one per partition but the last, which runs inline
+        final int[] planOfSource;  // partition of each source
+        final int[] rootOfSource;  // index of each source in the roots of its plan
+
+        Schedule(Source[] src,float[] gains) {
+            this.src = src;
+            this.gains = gains;
+            int n = src.length;
+            planOfSource = new int[n];
+            rootOfSource = new int[n];
+            // union sources which reach a common unit
+            int[] parent = new int[n];
+            IdentityHashMap<Source,Integer> owner = new IdentityHashMap<Source,Integer>();
+            for(int i=0;i<n;i++) {
+                parent[i] = i;
+                Source[] nodes = RenderPlan.compile(new Source[] {src[i]}).getNodes();
+                for(int k=0;k<nodes.length;k++) {
+                    Integer j = owner.get(nodes[k]);
+                    if(j == null) {
+                        owner.put(nodes[k],i);
+                    } else {
+                        parent[find(parent,i)] = find(parent,j);
+                    }
+                }
+            }
+            int nPlans = 0;
+            int[] planOfRoot = new int[n];
+            Arrays.fill(planOfRoot,-1);
+            for(int i=0;i<n;i++) {
+                int r = find(parent,i);
+                if(planOfRoot[r] < 0) {
+                    planOfRoot[r] = nPlans++;
+                }
+                planOfSource[i] = planOfRoot[r];
+            }
+            plans = new RenderPlan[nPlans];
+            tasks = new PartitionTask[nPlans > 0 ? nPlans-1 : 0];
+            for(int p=0;p<nPlans;p++) {
+                Vector<Source> roots = new Vector<Source>();
+                for(int i=0;i<n;i++) {
+                    if(planOfSource[i] == p) {
+                        rootOfSource[i] = roots.size();
+                        roots.addElement(src[i]);
+                    }
+                }
+                plans[p] = RenderPlan.compile(roots.toArray(new Source[0]));
+                if(p < nPlans-1) {
+                    tasks[p] = new PartitionTask(plans[p]);
+                }
+            }
+        }
+    }
+
+    private static int find(int[] parent,int i) {
+        while(parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /* Runs one partition on a pool worker. Reinitialized and reused every frame. */
+    private final class PartitionTask extends ForkJoinTask<Void> {
+        private static final long serialVersionUID = 1L;
+        final RenderPlan plan;
+        long t;
+
+        PartitionTask(RenderPlan plan) {
+            this.plan = plan;
+        }
+
+        public Void getRawResult() {
+            return null;
+        }
+
+        protected void setRawResult(Void v) {
+        }
+
+        protected boolean exec() {
+            try {
+                plan.run(t);
+            } catch(BufferNotAvailableException e) {
+                failure = e;
+            } finally {
+                nPending.decrementAndGet();
+            }
+            return true;
+        }
+    }
+
+    /** Get the pool shared by all ParallelMixers created without an explicit pool.
+        It has one worker per core, less one for the audio thread.
+        @return shared pool.
+    */
+    public static synchronized ForkJoinPool getSharedPool() {
+        if(sharedPool == null) {
+            int n = Runtime.getRuntime().availableProcessors()-1;
+            sharedPool = new ForkJoinPool(n < 1 ? 1 : n);
+        }
+        return sharedPool;
+    }
+
+    /** Create mixer running on the shared pool.
+        @param bufferSize Buffer size used for real-time rendering.
+    */
+    public ParallelMixer(int bufferSize) {
+        this(bufferSize,getSharedPool());
+    }
+
+    /** Create mixer running on a given pool.
+        @param bufferSize Buffer size used for real-time rendering.
+        @param pool pool to run partitions on.
+    */
+    public ParallelMixer(int bufferSize,ForkJoinPool pool) {
+        super(bufferSize);
+        this.pool = pool;
+        tmp_buf = new float[bufferSize];
+        schedule = new Schedule(new Source[0],new float[0]);
+    }
+
+    /** add source to Sink. Can be called while running.
+        @param s Source to add.
+        @return object representing Source in Sink (may be null).
+    */
+    public Object addSource(Source s) throws SinkIsFullException {
+        synchronized(editLock) {
+            s.setTime(getTime());
+            sourceContainer.addElement(s);
+            gainContainer.addElement(1.f);
+            rebuild();
+        }
+        return null;
+    }
+
+    /** Remove Source. Can be called while running.
+        @param s Source to remove.
+    */
+    public void removeSource(Source s) {
+        synchronized(editLock) {
+            int i = sourceContainer.indexOf(s);
+            if(i < 0) {
+                return;
+            }
+            sourceContainer.removeElementAt(i);
+            gainContainer.removeElementAt(i);
+            rebuild();
+        }
+    }
+
+    private void rebuild() {
+        // keep gains set since the last rebuild
+        float[] oldGains = schedule.gains;
+        Source[] oldSrc = schedule.src;
+        for(int i=0;i<oldSrc.length;i++) {
+            int k = sourceContainer.indexOf(oldSrc[i]);
+            if(k >= 0) {
+                gainContainer.setElementAt(oldGains[i],k);
+            }
+        }
+        int n = sourceContainer.size();
+        float[] gains = new float[n];
+        for(int i=0;i<n;i++) {
+            gains[i] = gainContainer.elementAt(i);
+        }
+        schedule = new Schedule(sourceContainer.toArray(new Source[0]),gains);
+    }
+
+    /** Get array of sources.
+        @return array of the Sources.
+    */
+    public Source [] getSources() {
+        return schedule.src.clone();
+    }
+
+    /** Set input gain. Sources have gain 1 when added.
+        @param k index of source
+        @param g input gain
+    */
+    public void setGain(int k, float g) {
+        float[] gains = schedule.gains;
+        if(k<0 || k >= gains.length) {
+            return;
+        } else {
+            gains[k] = g;
+        }
+    }
+
+    /** Get input gain control vector.
+        @return input gains
+    */
+    public float[] getGains() {
+        return schedule.gains;
+    }
+
+    /** Get number of independent partitions the inputs are rendered in.
+        @return number of partitions.
+    */
+    public int getNPartitions() {
+        return schedule.plans.length;
+    }
+
+    /**
+       Reset time of self and all inputs
+       @param t time to reset to. Patch must be in a state s.t. none of the current times == t
+    */
+    public synchronized void resetTime(long t) {
+        setTime(t);
+        Source[] src = schedule.src;
+        for(int i=0;i<src.length;i++) {
+            if(src[i] instanceof Out) {
+                if(((Out)src[i]).getTime() != t) {
+                    ((Out)src[i]).resetTime(t);
+                }
+            }
+        }
+    }
+
+    /** Render all partitions for the current time and mix them.
+     */
+    protected void computeBuffer() {
+        Schedule sch = schedule;
+        long t = getTime();
+        RenderPlan[] plans = sch.plans;
+        int nPlans = plans.length;
+        // plans compiled while running may lag the current frame
+        for(int p=0;p<nPlans;p++) {
+            if(plans[p].getTime() != t-1) {
+                plans[p].setTime(t-1);
+            }
+        }
+        if(nPlans > 0) {
+            PartitionTask[] tasks = sch.tasks;
+            nPending.set(tasks.length);
+            for(int p=0;p<tasks.length;p++) {
+                PartitionTask task = tasks[p];
+                task.reinitialize();
+                task.t = t;
+                pool.execute(task);
+            }
+            try {
+                plans[nPlans-1].run(t);
+            } catch(BufferNotAvailableException e) {
+                failure = e;
+            }
+            int spins = 0;
+            while(nPending.get() > 0) {
+                if(++spins < 1000) {
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+            }
+            if(failure != null) {
+                System.out.println("ParallelMixer: "+this+" "+failure);
+                failure = null;
+            }
+        }
+        int bufsz = getBufferSize();
+        for(int k=0;k<bufsz;k++) {
+            tmp_buf[k] = 0;
+        }
+        Source[] src = sch.src;
+        float[] gains = sch.gains;
+        for(int i=0;i<src.length;i++) {
+            float[] tmpsrc = plans[sch.planOfSource[i]].getOutput(sch.rootOfSource[i]);
+            float g = gains[i];
+            for(int k=0;k<bufsz;k++) {
+                tmp_buf[k] += g*tmpsrc[k];
+            }
+        }
+        for(int k=0;k<bufsz;k++) {
+            buf[k] = tmp_buf[k];
+        }
+    }
+}
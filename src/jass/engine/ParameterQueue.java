@@ -0,0 +1,102 @@
+package jass.engine;
+import java.util.concurrent.atomic.*;
+
+/**
+   Lock-free queue of control parameter changes from any number of
+   control threads (GUI, controllers) to one audio thread. Parameters
+   are identified by an index 0,...,nParameters-1 and carry a double.
+   Posting a parameter that is already pending just replaces its value,
+   so repeated updates between two audio buffers coalesce and the queue
+   can never overflow. A unit drains the queue at the start of its
+   buffer computation and applies the changes through a Receiver; neither
+   side ever blocks the other.
+*/
+
+public final class ParameterQueue {
+
+    /** Applies drained parameter changes. Called on the thread calling drain().
+     */
+    public interface Receiver {
+        /** Apply a parameter change.
+            @param id parameter index.
+            @param value latest value posted.
+        */
+        void setParameter(int id, double value);
+    }
+
+    private final int nParameters;
+    private final AtomicLongArray values;   // latest value of each parameter, as raw double bits
+    private final AtomicIntegerArray pending; // 1 if parameter is in the queue
+    private final AtomicIntegerArray ring;  // ids of pending parameters, -1 if slot is free
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // next slot to claim by producers
+    private long head = 0; // next slot to read, owned by the consumer
+
+    /** Create queue.
+        @param nParameters number of parameters.
+    */
+    public ParameterQueue(int nParameters) {
+        this.nParameters = nParameters;
+        values = new AtomicLongArray(nParameters);
+        pending = new AtomicIntegerArray(nParameters);
+        int sz = 1;
+        while(sz < nParameters) {
+            sz <<= 1;
+        }
+        ring = new AtomicIntegerArray(sz);
+        for(int i=0;i<sz;i++) {
+            ring.set(i,-1);
+        }
+        mask = sz-1;
+    }
+
+    /** Get number of parameters.
+        @return number of parameters.
+    */
+    public int getNParameters() {
+        return nParameters;
+    }
+
+    /** Post a parameter change. Safe to call from any thread, never blocks.
+        @param id parameter index.
+        @param value new value.
+    */
+    public void post(int id, double value) {
+        values.set(id,Double.doubleToRawLongBits(value));
+        if(pending.getAndSet(id,1) == 0) {
+            // at most one slot per parameter is in use, so the ring can't be full
+            int slot = (int)(tail.getAndIncrement() & mask);
+            ring.set(slot,id);
+        }
+    }
+
+    /** Apply all pending changes. Must be called from one thread only (the audio thread).
+        A change posted while draining is applied now or on the next call.
+        @param receiver object to apply the changes to.
+        @return number of changes applied.
+    */
+    public int drain(Receiver receiver) {
+        int n = 0;
+        while(true) {
+            int slot = (int)(head & mask);
+            int id = ring.get(slot);
+            if(id < 0) {
+                // empty, or a producer claimed the slot but did not fill it yet
+                return n;
+            }
+            ring.set(slot,-1);
+            head++;
+            // clear flag before reading, so a concurrent post re-queues rather than gets lost
+            pending.set(id,0);
+            receiver.setParameter(id,Double.longBitsToDouble(values.get(id)));
+            n++;
+        }
+    }
+
+    /** Check if there are pending changes.
+        @return true if drain() would apply something.
+    */
+    public boolean isEmpty() {
+        return ring.get((int)(head & mask)) < 0;
+    }
+}
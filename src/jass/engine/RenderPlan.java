@@ -0,0 +1,231 @@
+package jass.engine;
+import java.util.*;
+
+/**
+   Flat execution plan for a filtergraph. The Sink/Source topology
+   below a set of root Sources is walked once by compile() and
+   flattened into an array of nodes in topological order (inputs before
+   the units that consume them). run(t) then computes frame t by
+   visiting that array front to back, so no unit is pulled recursively,
+   no monitor is taken and nothing is allocated per frame.
+
+   Passive connections (see InOut) are not followed when walking the
+   graph: the consumer gets the previous frame of the source with
+   Out.getPreviousBuffer(t), as in the pull model, so marking an edge
+   of a loop passive cuts the loop there. A passive source that is not
+   also reached through an active connection is not in the plan and
+   is never computed. A loop without a passive edge is cut where the
+   depth first walk meets a unit it has entered but not finished, and
+   the unit at the end of that edge sees the previous frame. That
+   depends on the order of the roots and of the sources of each unit,
+   but the pull model, which recurses in the same order, cuts the loop
+   at the same edge, so both give the same output.
+
+   Units that drive their own inputs (any Sink that is not an InOut, such
+   as ThreadMixer) and Sources that are not an Out are kept as opaque
+   nodes and are asked for their buffer with getBuffer(t) as before.
+
+   The plan is a snapshot: if sources are added or removed afterwards
+   compile a new plan. compile() only reads the graph, so it can run on
+   another thread while the audio thread runs the old plan; the buffers
+   a unit reads its inputs from are sized by run().
+*/
+
+public final class RenderPlan {
+
+    private static final int KIND_OUT = 0;    // Out without inputs, just computeBuffer()
+    private static final int KIND_INOUT = 1;  // InOut, gather inputs then computeBuffer()
+    private static final int KIND_OPAQUE = 2; // anything else, pull with getBuffer(t)
+
+    private Source[] nodes;    // in execution order
+    private int[] kinds;       // kind of each node
+    private Source[][] inputs; // sources of each InOut node, null otherwise
+    private boolean[][] passive; // passivity of the inputs of each InOut node
+    private Source[] roots;
+    private float[][] rootBuffers; // output of each root after run()
+    private long time;
+
+    private RenderPlan() {
+    }
+
+    /** Compile graph below a set of sources into a plan. The plan starts at the time
+        of the first root.
+        @param roots sources whose output is wanted (e.g., the sources of a SourcePlayer).
+        @return plan.
+    */
+    public static RenderPlan compile(Source[] roots) {
+        RenderPlan plan = new RenderPlan();
+        Vector<Source> order = new Vector<Source>();
+        IdentityHashMap<Source,Boolean> visited = new IdentityHashMap<Source,Boolean>();
+        for(int i=0;i<roots.length;i++) {
+            visit(roots[i],order,visited);
+        }
+        int n = order.size();
+        plan.nodes = order.toArray(new Source[0]);
+        plan.kinds = new int[n];
+        plan.inputs = new Source[n][];
+        plan.passive = new boolean[n][];
+        for(int i=0;i<n;i++) {
+            Source s = plan.nodes[i];
+            if(s instanceof InOut) {
+                InOut io = (InOut)s;
+                Source[] src = io.getSources();
+                plan.kinds[i] = KIND_INOUT;
+                plan.inputs[i] = src;
+                plan.passive[i] = new boolean[src.length];
+                for(int k=0;k<src.length;k++) {
+                    plan.passive[i][k] = io.isPassive(k);
+                }
+            } else if(s instanceof Out && !(s instanceof Sink)) {
+                plan.kinds[i] = KIND_OUT;
+            } else {
+                plan.kinds[i] = KIND_OPAQUE;
+            }
+        }
+        plan.roots = roots.clone();
+        plan.rootBuffers = new float[roots.length][];
+        plan.time = roots.length > 0 ? roots[0].getTime() : 0;
+        for(int i=0;i<roots.length;i++) {
+            plan.rootBuffers[i] = peek(roots[i]);
+        }
+        return plan;
+    }
+
+    /*
+      Depth first, post order, not following passive edges. A node is
+      marked when entered, so a back edge finds its target already
+      marked and is not followed; that is where loops without a passive
+      edge get cut.
+    */
+    private static void visit(Source s,Vector<Source> order,IdentityHashMap<Source,Boolean> visited) {
+        if(visited.containsKey(s)) {
+            return;
+        }
+        visited.put(s,Boolean.TRUE);
+        if(s instanceof InOut) {
+            InOut io = (InOut)s;
+            Source[] src = io.getSources();
+            for(int i=0;i<src.length;i++) {
+                if(!io.isPassive(i)) {
+                    visit(src[i],order,visited);
+                }
+            }
+        }
+        order.addElement(s);
+    }
+
+    private static float[] peek(Source s) {
+        if(s instanceof Out) {
+            return ((Out)s).peekAtBuffer();
+        }
+        try {
+            return s.getBuffer();
+        } catch(BufferNotAvailableException e) {
+            return null;
+        }
+    }
+
+    /**
+       Compute frame t for every node in the plan. Asking for the current frame
+       again is a no-op, anything other than the current or next frame is denied.
+       @param t frame index.
+    */
+    public void run(long t) throws BufferNotAvailableException {
+        if(t == time) {
+            return;
+        }
+        if(t != time+1) {
+            System.out.println("Error! "+this+" RenderPlan.java: t="+t+" currentTime="+time);
+            throw new BufferNotAvailableException();
+        }
+        time = t;
+        Source[] nodes = this.nodes;
+        int[] kinds = this.kinds;
+        int n = nodes.length;
+        for(int i=0;i<n;i++) {
+            switch(kinds[i]) {
+            case KIND_OUT:
+                ((Out)nodes[i]).renderFrame(t);
+                break;
+            case KIND_INOUT: {
+                InOut io = (InOut)nodes[i];
+                Source[] src = inputs[i];
+                boolean[] pas = passive[i];
+                float[][] srcBuffers = io.srcBuffers;
+                if(srcBuffers.length < src.length) {
+                    // first frame after the unit got more sources
+                    srcBuffers = io.srcBuffers = new float[src.length][];
+                }
+                for(int k=0;k<src.length;k++) {
+                    Source s = src[k];
+                    if(pas[k]) {
+                        srcBuffers[k] = Out.getPreviousBuffer(s,t);
+                    } else if(s instanceof Out) {
+                        // current frame, or previous frame on a back edge
+                        srcBuffers[k] = ((Out)s).buf;
+                    } else {
+                        srcBuffers[k] = s.getBuffer(t);
+                    }
+                }
+                io.renderFrame(t);
+            }
+                break;
+            default:
+                nodes[i].getBuffer(t);
+                break;
+            }
+        }
+        for(int i=0;i<roots.length;i++) {
+            Source r = roots[i];
+            if(r instanceof Out) {
+                rootBuffers[i] = ((Out)r).buf;
+            } else {
+                rootBuffers[i] = r.getBuffer(t);
+            }
+        }
+    }
+
+    /** Get output of a root after run().
+        @param i index of root as passed to compile().
+        @return buffer of root i.
+    */
+    public float[] getOutput(int i) {
+        return rootBuffers[i];
+    }
+
+    /** Get number of roots.
+        @return number of roots.
+    */
+    public int getNRoots() {
+        return roots.length;
+    }
+
+    /** Get number of units in the plan.
+        @return number of units.
+    */
+    public int size() {
+        return nodes.length;
+    }
+
+    /** Get time of last computed frame.
+        @return frame index.
+    */
+    public long getTime() {
+        return time;
+    }
+
+    /** Set time of last computed frame, e.g., when the plan was compiled
+        while the graph was running.
+        @param t frame index.
+    */
+    public void setTime(long t) {
+        time = t;
+    }
+
+    /** Get the units in execution order.
+        @return units, inputs before the units consuming them.
+    */
+    public Source[] getNodes() {
+        return nodes.clone();
+    }
+}
@@ -0,0 +1,299 @@
+package jass.engine;
+import java.util.*;
+import java.lang.management.*;
+import javax.management.*;
+import jdk.jfr.*;
+
+/**
+   Collects render time statistics of a filtergraph. attach() puts a
+   NodeTimer on every unit below a set of sources, so each
+   computeBuffer() is timed (self time, excluding the inputs). The
+   owner of the render loop (e.g. SourcePlayer) reports whole frame
+   times with frameDone(), and frames which took longer than
+   bufferSize/srate are counted as deadline misses.
+
+   Statistics can be read directly, through JMX after registerMBean(),
+   and through JFR after enableJFR(): every deadline miss is a
+   jass.DeadlineMiss event and the per-unit statistics are emitted
+   periodically as jass.NodeRenderStats events.
+
+   When no profiler is attached the cost is one null check per unit
+   per frame.
+*/
+
+public class RenderProfiler implements RenderProfilerMBean {
+
+    private final String name;
+    private final long deadlineNanos;
+    private final NodeTimer frameTimer = new NodeTimer("frame");
+    private volatile long deadlineMisses = 0;
+    private final Vector<Out> units = new Vector<Out>();
+    private ObjectName objectName = null;
+    private Runnable jfrHook = null;
+
+    /** JFR event for a frame which missed its deadline. */
+    @Name("jass.DeadlineMiss")
+    @Label("Render Deadline Miss")
+    @Category("JASS")
+    public static class DeadlineMissEvent extends jdk.jfr.Event {
+        @Label("Profiler")
+        public String profiler;
+        @Label("Frame")
+        public long frame;
+        @Label("Render Time")
+        @Timespan
+        public long renderTime;
+        @Label("Deadline")
+        @Timespan
+        public long deadline;
+    }
+
+    /** Periodic JFR event with the statistics of one unit. */
+    @Name("jass.NodeRenderStats")
+    @Label("Unit Render Statistics")
+    @Category("JASS")
+    @Period("1 s")
+    public static class NodeStatsEvent extends jdk.jfr.Event {
+        @Label("Profiler")
+        public String profiler;
+        @Label("Unit")
+        public String node;
+        @Label("Count")
+        public long count;
+        @Label("Median")
+        @Timespan
+        public long p50;
+        @Label("99th Percentile")
+        @Timespan
+        public long p99;
+        @Label("Maximum")
+        @Timespan
+        public long max;
+    }
+
+    /** Create.
+        @param name name, used for JMX and JFR.
+        @param bufferSize buffer size of the graph.
+        @param srate sampling rate in Hertz.
+    */
+    public RenderProfiler(String name,int bufferSize,float srate) {
+        this.name = name;
+        this.deadlineNanos = (long)(1.e9*bufferSize/srate);
+    }
+
+    /** Put a timer on every unit below the given sources. Units are named
+        by class and position in render order.
+        @param roots sources to profile.
+    */
+    public synchronized void attach(Source[] roots) {
+        Source[] nodes = RenderPlan.compile(roots).getNodes();
+        for(int i=0;i<nodes.length;i++) {
+            if(nodes[i] instanceof Out) {
+                addTimer((Out)nodes[i],nodes[i].getClass().getSimpleName()+"#"+i);
+            }
+        }
+    }
+
+    /** Put a timer on a unit, e.g., one which is driven by another unit
+        and not part of the graph. Its time is also part of the time of
+        the unit driving it.
+        @param unit unit to time.
+        @param name name to report it under.
+        @return the timer.
+    */
+    public synchronized NodeTimer addTimer(Out unit,String name) {
+        NodeTimer timer = new NodeTimer(name);
+        unit.setTimer(timer);
+        if(!units.contains(unit)) {
+            units.addElement(unit);
+        }
+        return timer;
+    }
+
+    /** Remove all timers.
+     */
+    public synchronized void detach() {
+        for(int i=0;i<units.size();i++) {
+            units.elementAt(i).setTimer(null);
+        }
+        units.removeAllElements();
+    }
+
+    /** Record the render time of a whole frame.
+        @param frame frame index.
+        @param nanos render time in nanoseconds.
+    */
+    public void frameDone(long frame,long nanos) {
+        frameTimer.record(nanos);
+        if(nanos > deadlineNanos) {
+            deadlineMisses = deadlineMisses+1;
+            DeadlineMissEvent e = new DeadlineMissEvent();
+            if(e.isEnabled()) {
+                e.profiler = name;
+                e.frame = frame;
+                e.renderTime = nanos;
+                e.deadline = deadlineNanos;
+                e.commit();
+            }
+        }
+    }
+
+    /** Get timer of the whole frame.
+        @return frame timer.
+    */
+    public NodeTimer getFrameTimer() {
+        return frameTimer;
+    }
+
+    /** Get timers of the units.
+        @return timers in render order.
+    */
+    public synchronized NodeTimer[] getNodeTimers() {
+        NodeTimer[] timers = new NodeTimer[units.size()];
+        for(int i=0;i<timers.length;i++) {
+            timers[i] = units.elementAt(i).getTimer();
+        }
+        return timers;
+    }
+
+    /** Register with the platform MBean server as jass:type=RenderProfiler,name=name.
+     */
+    public synchronized void registerMBean() {
+        try {
+            objectName = new ObjectName("jass:type=RenderProfiler,name="+ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,objectName);
+        } catch(Exception e) {
+            System.out.println("RenderProfiler.registerMBean: "+this+" "+e);
+            objectName = null;
+        }
+    }
+
+    /** Unregister from the platform MBean server.
+     */
+    public synchronized void unregisterMBean() {
+        if(objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch(Exception e) {
+                System.out.println("RenderProfiler.unregisterMBean: "+this+" "+e);
+            }
+            objectName = null;
+        }
+    }
+
+    /** Emit periodic jass.NodeRenderStats events while a flight recording is running.
+     */
+    public synchronized void enableJFR() {
+        if(jfrHook != null) {
+            return;
+        }
+        jfrHook = new Runnable() {
+                public void run() {
+                    NodeTimer[] timers = getNodeTimers();
+                    for(int i=0;i<timers.length;i++) {
+                        NodeStatsEvent e = new NodeStatsEvent();
+                        e.profiler = name;
+                        e.node = timers[i].getName();
+                        e.count = timers[i].getCount();
+                        e.p50 = timers[i].getPercentileNanos(50);
+                        e.p99 = timers[i].getPercentileNanos(99);
+                        e.max = timers[i].getMaxNanos();
+                        e.commit();
+                    }
+                }
+            };
+        FlightRecorder.addPeriodicEvent(NodeStatsEvent.class,jfrHook);
+    }
+
+    /** Stop emitting periodic JFR events.
+     */
+    public synchronized void disableJFR() {
+        if(jfrHook != null) {
+            FlightRecorder.removePeriodicEvent(jfrHook);
+            jfrHook = null;
+        }
+    }
+
+    // RenderProfilerMBean
+
+    public long getFrameCount() {
+        return frameTimer.getCount();
+    }
+
+    public long getDeadlineMisses() {
+        return deadlineMisses;
+    }
+
+    public double getDeadlineMicros() {
+        return deadlineNanos/1000.;
+    }
+
+    public double getFrameP50Micros() {
+        return frameTimer.getPercentileNanos(50)/1000.;
+    }
+
+    public double getFrameP99Micros() {
+        return frameTimer.getPercentileNanos(99)/1000.;
+    }
+
+    public double getFrameMaxMicros() {
+        return frameTimer.getMaxNanos()/1000.;
+    }
+
+    public String[] getNodeNames() {
+        NodeTimer[] timers = getNodeTimers();
+        String[] names = new String[timers.length];
+        for(int i=0;i<timers.length;i++) {
+            names[i] = timers[i].getName();
+        }
+        return names;
+    }
+
+    public double[] getNodeP50Micros() {
+        NodeTimer[] timers = getNodeTimers();
+        double[] v = new double[timers.length];
+        for(int i=0;i<timers.length;i++) {
+            v[i] = timers[i].getPercentileNanos(50)/1000.;
+        }
+        return v;
+    }
+
+    public double[] getNodeP99Micros() {
+        NodeTimer[] timers = getNodeTimers();
+        double[] v = new double[timers.length];
+        for(int i=0;i<timers.length;i++) {
+            v[i] = timers[i].getPercentileNanos(99)/1000.;
+        }
+        return v;
+    }
+
+    public double[] getNodeMaxMicros() {
+        NodeTimer[] timers = getNodeTimers();
+        double[] v = new double[timers.length];
+        for(int i=0;i<timers.length;i++) {
+            v[i] = timers[i].getMaxNanos()/1000.;
+        }
+        return v;
+    }
+
+    public synchronized void reset() {
+        frameTimer.reset();
+        deadlineMisses = 0;
+        for(int i=0;i<units.size();i++) {
+            units.elementAt(i).getTimer().reset();
+        }
+    }
+
+    /** Print a summary to stdout.
+     */
+    public void print() {
+        System.out.println("RenderProfiler "+name+": "+getFrameCount()+" frames, "+deadlineMisses+
+                           " deadline misses (deadline "+getDeadlineMicros()+" us)");
+        System.out.println("  frame p50="+getFrameP50Micros()+" p99="+getFrameP99Micros()+" max="+getFrameMaxMicros()+" us");
+        NodeTimer[] timers = getNodeTimers();
+        for(int i=0;i<timers.length;i++) {
+            System.out.println("  "+timers[i].getName()+" p50="+timers[i].getPercentileNanos(50)/1000.+
+                               " p99="+timers[i].getPercentileNanos(99)/1000.+" max="+timers[i].getMaxNanos()/1000.+" us");
+        }
+    }
+}
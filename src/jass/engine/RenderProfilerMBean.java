@@ -0,0 +1,40 @@
+package jass.engine;
+
+/**
+   JMX view of a RenderProfiler. Times are in microseconds.
+*/
+
+public interface RenderProfilerMBean {
+    /** @return number of frames rendered since last reset. */
+    long getFrameCount();
+
+    /** @return number of frames which took longer than bufferSize/srate. */
+    long getDeadlineMisses();
+
+    /** @return time available for one frame. */
+    double getDeadlineMicros();
+
+    /** @return median frame render time. */
+    double getFrameP50Micros();
+
+    /** @return 99th percentile frame render time. */
+    double getFrameP99Micros();
+
+    /** @return longest frame render time. */
+    double getFrameMaxMicros();
+
+    /** @return names of the timed units. */
+    String[] getNodeNames();
+
+    /** @return median render time of each unit. */
+    double[] getNodeP50Micros();
+
+    /** @return 99th percentile render time of each unit. */
+    double[] getNodeP99Micros();
+
+    /** @return longest render time of each unit. */
+    double[] getNodeMaxMicros();
+
+    /** Clear all statistics. */
+    void reset();
+}
@@ -4,6 +4,7 @@ import java.util.*;
 /**
    Mixer that runs a thread on each input. Add sources, then call init() method, then you can use it
    as a normal mixer. Unlike other UG's you can't add or remove sources while running.
+   See ParallelMixer for a mixer which runs inputs on a fixed pool and allows this.
    @author Kees van den Doel (kvdoel@cs.ubc.ca)
 */
 
@@ -149,7 +150,7 @@ public final class ThreadMixer extends Out implements Sink {
         if(t == (getTime()+1)) { // requested next buffer
             setTime(t);
             callSources();
-            computeBuffer(); // use cached source buffers to compute buf.
+            computeBufferTimed(); // use cached source buffers to compute buf.
         } else if(t != getTime()) { // neither current or next buffer requested: deny request
             System.out.println("Error! "+this+" Out.java: t="+t+" currentTime="+getTime());
             throw new BufferNotAvailableException();
@@ -263,8 +264,12 @@ public final class ThreadMixer extends Out implements Sink {
     }
 
 class D {
+    static boolean debug = false; // trace ThreadMixer handoffs on stdout
+
     public static void prt(String s) {
-        System.out.println(s);
+        if(debug) {
+            System.out.println(s);
+        }
     }
     
 }
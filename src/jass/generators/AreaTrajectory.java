@@ -0,0 +1,176 @@
+package jass.generators;
+import java.util.concurrent.atomic.*;
+
+/**
+   Timed keyframes of the vocal tract (radii, length and velum) for a
+   RightLoadedWebsterTube, see RightLoadedWebsterTube.setAreaTrajectory().
+   A control thread posts keyframes with a time in samples of the tube
+   (see RightLoadedWebsterTube.getSampleTime()), the audio thread
+   interpolates linearly between them. The tube cuts its buffers into
+   blocks that end on every keyframe and are at most maxBlock samples
+   long while the geometry moves, and ramps the areas linearly over each
+   block, so the areas follow the piecewise linear trajectory sample by
+   sample (the length and velum change per block). When the last
+   keyframe is reached the shape is held. Keyframes are stored in a lock
+   free single producer, single consumer ring that is allocated when
+   created, so neither posting nor rendering allocates or blocks.
+*/
+
+public class AreaTrajectory {
+    private final int nRadii;
+    private final int depth;
+    private final int maxBlock;
+    // keyframe ring
+    private final long[] time;
+    private final double[] radii; // depth*nRadii
+    private final double[] length;
+    private final double[] velum;
+    private final AtomicLong writeIndex = new AtomicLong(); // owned by producer
+    private final AtomicLong readIndex = new AtomicLong();  // owned by consumer
+    // last keyframe reached, owned by consumer
+    private boolean hasFrom = false;
+    private long fromTime;
+    private final double[] fromRadii;
+    private double fromLength, fromVelum;
+    private boolean holding = false; // shape of last keyframe has been set
+    private double currentVelum;
+
+    /** Create trajectory.
+        @param nRadii number of radii of a keyframe, glottis to lips.
+        @param depth number of keyframes that can be pending.
+        @param maxBlock longest block in samples while the geometry moves.
+    */
+    public AreaTrajectory(int nRadii, int depth, int maxBlock) {
+        this.nRadii = nRadii;
+        this.depth = depth;
+        this.maxBlock = maxBlock;
+        time = new long[depth];
+        radii = new double[depth*nRadii];
+        length = new double[depth];
+        velum = new double[depth];
+        fromRadii = new double[nRadii];
+    }
+
+    /** Create trajectory with 64 pending keyframes and 64 sample blocks.
+        @param nRadii number of radii of a keyframe, glottis to lips.
+    */
+    public AreaTrajectory(int nRadii) {
+        this(nRadii,64,64);
+    }
+
+    /** Get number of radii of a keyframe.
+        @return number of radii.
+    */
+    public int getNRadii() {
+        return nRadii;
+    }
+
+    /** Get longest block while the geometry moves.
+        @return block size in samples.
+    */
+    public int getMaxBlock() {
+        return maxBlock;
+    }
+
+    /** Post a keyframe. Keyframes must be posted in order of time, one
+        control thread only. A keyframe that is already due when the tube
+        gets to it is applied at once.
+        @param sampleTime time in samples of the tube.
+        @param r radii in m, glottis to lips.
+        @param len length of the vocal tract in m.
+        @param v velum opening (see RightLoadedWebsterTube.velumNasal).
+        @return false if the ring was full and nothing was posted.
+    */
+    public boolean post(long sampleTime, double[] r, double len, double v) {
+        long w = writeIndex.get();
+        if(w - readIndex.get() >= depth) {
+            return false;
+        }
+        int slot = (int)(w % depth);
+        time[slot] = sampleTime;
+        System.arraycopy(r,0,radii,slot*nRadii,nRadii);
+        length[slot] = len;
+        velum[slot] = v;
+        writeIndex.lazySet(w+1); // publishes the keyframe
+        return true;
+    }
+
+    /** Get number of keyframes not reached yet.
+        @return pending keyframes.
+    */
+    public int getFill() {
+        return (int)(writeIndex.get() - readIndex.get());
+    }
+
+    /** Check if the trajectory has taken over the geometry, i.e., a
+        keyframe has been reached.
+        @return true if active.
+    */
+    public boolean isActive() {
+        return hasFrom;
+    }
+
+    /* True if there is nothing to do for the tube, no keyframes pending
+       and the shape of the last one already set. Audio thread. */
+    boolean isIdle() {
+        return getFill() == 0 && (!hasFrom || holding);
+    }
+
+    /* Take keyframes that are due at now, and get the length of the next
+       block, at most n. Audio thread. */
+    int blockLength(long now, int n) {
+        long r = readIndex.get();
+        while(writeIndex.get() > r && time[(int)(r % depth)] <= now) {
+            int slot = (int)(r % depth);
+            fromTime = time[slot];
+            System.arraycopy(radii,slot*nRadii,fromRadii,0,nRadii);
+            fromLength = length[slot];
+            fromVelum = velum[slot];
+            hasFrom = true;
+            holding = false;
+            r++;
+            readIndex.lazySet(r); // frees the slot
+        }
+        if(writeIndex.get() > r) {
+            long untilNext = time[(int)(r % depth)] - now;
+            if(hasFrom) {
+                n = Math.min(n,maxBlock);
+            }
+            return (int)Math.min(n,untilNext);
+        }
+        return n;
+    }
+
+    /* Set shape to the trajectory at time t, the end of a block starting
+       at a time passed to blockLength(). Returns false if there is nothing
+       to change. Audio thread. */
+    boolean shapeAt(long t, TubeModel shape) {
+        if(!hasFrom || holding) {
+            return false;
+        }
+        long r = readIndex.get();
+        if(writeIndex.get() > r) {
+            int slot = (int)(r % depth);
+            double s = (t-fromTime)/(double)(time[slot]-fromTime);
+            int off = slot*nRadii;
+            for(int i=0;i<nRadii;i++) {
+                shape.setRadius(i,(1-s)*fromRadii[i] + s*radii[off+i]);
+            }
+            shape.setLength((1-s)*fromLength + s*length[slot]);
+            currentVelum = (1-s)*fromVelum + s*velum[slot];
+        } else {
+            for(int i=0;i<nRadii;i++) {
+                shape.setRadius(i,fromRadii[i]);
+            }
+            shape.setLength(fromLength);
+            currentVelum = fromVelum;
+            holding = true;
+        }
+        return true;
+    }
+
+    /* Velum at the last shapeAt(). */
+    double getVelum() {
+        return currentVelum;
+    }
+}
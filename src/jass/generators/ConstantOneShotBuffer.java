@@ -58,6 +58,9 @@ public class ConstantOneShotBuffer extends ConstantLoopBuffer {
                 buf[k] = loopBuffer[ix];
                 if(ix == loopBufferLength-1) { // wrapped around: stop
                     reset(); // done
+                    for(int j=k+1;j<bufsz;j++) { // buf holds an old frame
+                        buf[j] = 0;
+                    }
                     break;
                 } else {
                     ix++;
@@ -78,8 +78,20 @@ public class ModalObject extends InOut {
         }
     };
 
-    /** Used a a temp buffer in inner loop to store array of gains for all contacts. */
-    private float[] contactAmpTemp;
+    /** Number of modes computed side by side, so the filters vectorize across modes. */
+    private static final int BLOCK = 16;
+
+    /** Used a a temp buffer to hold the gains of the contacts that are on during one buffer computation. */
+    private float[][] activeAmp = new float[0][];
+
+    /** Used a a temp buffer to hold the forces of the contacts that are on during one buffer computation. */
+    private float[][] activeForce = new float[0][];
+
+    /** Excitation of a block of modes, BLOCK values (one per mode) per sample. */
+    private float[] excitation = new float[0];
+
+    /** Output summed separately for each position in a block, BLOCK values per sample. */
+    private float[] outputLanes = new float[0];
 
     /** Location vector of Contact objects. */
     Vector<Contact> contactVector = new Vector<Contact>();
@@ -108,7 +120,8 @@ public class ModalObject extends InOut {
         c.computeLocation();
         source_contact.put(s,c);
         // allocate temp storage associated with this source
-        contactAmpTemp = new float[contactVector.size()];
+        activeAmp = new float[contactVector.size()][];
+        activeForce = new float[contactVector.size()][];
         return c;
     }
     
@@ -231,50 +244,81 @@ public class ModalObject extends InOut {
     }
 
     /** Apply external force[] and compute response through bank of modal filters.
+        The contacts that are off are dropped first. Then, for each block of
+        BLOCK modes, the excitation of every mode is computed for the whole
+        buffer as the product of the contact gains and the forces, and the
+        reson filters of the block are run side by side, with all arrays
+        indexed by mode in the inner loop.
         @param output provided output buffer.
     */
     private void computeModalFilterBank(float[] output) throws BufferNotAvailableException {
         int bufsz = getBufferSize();
-        for(int k=0;k<bufsz;k++) {
-            output[k] = 0;
-        }
         int nf = modalModel.nfUsed;
+        if(excitation.length != bufsz*BLOCK) {
+            excitation = new float[bufsz*BLOCK];
+            outputLanes = new float[bufsz*BLOCK];
+        }
+        float[] ex = excitation;
+        float[] lanes = outputLanes;
+        // take the contacts that are on out of the Vector once per buffer
         int ncontacts = contactVector.size();
-
-        for(int i=0;i<nf;i++) {
-            float tmp_twoRCosTheta = twoRCosTheta[i];
-            float tmp_R2 = R2[i];
-            float tmp_yt_1 = yt_1[i];
-            float tmp_yt_2 = yt_2[i];
-            for(int ic=0;ic<ncontacts;ic++) {
-                // move array access out of inner loop
-                contactAmpTemp[ic] = contactVector.elementAt(ic).ampR[i]; 
+        int nactive = 0;
+        for(int ic=0;ic<ncontacts;ic++) {
+            Contact contact = contactVector.elementAt(ic);
+            if(contact.isOn) {
+                activeAmp[nactive] = contact.ampR;
+                // This assumes srcBuffers has Sources in same order as Contacts, addSource() and removeSource() keep it so
+                activeForce[nactive] = srcBuffers[ic];
+                nactive++;
             }
-            for(int k=0;k<bufsz;k++) {
-                float ynew = tmp_twoRCosTheta * tmp_yt_1 - tmp_R2 * tmp_yt_2;
-                // Just this loop (empty) brings 668 (one contact) down to 544
-                for(int ic=0;ic<ncontacts;ic++) {
-                    // stuff in this loop slows things a factor of 3, to 200, with everything
-
-                    // Just this line by itself gives 266
-                    Contact contact = contactVector.elementAt(ic);
-
-                    // Just this stuff gives 210
-                    if(contact.isOn) {
-                        // BUG: This assumes scrBuffers has Sources in same order as Contacts. Probably OK but check!
-                        ynew +=  contactAmpTemp[ic] * srcBuffers[ic][k];
+        }
+        Arrays.fill(lanes,0);
+        for(int i0=0;i0<nf;i0+=BLOCK) {
+            int nb = Math.min(BLOCK,nf-i0);
+            // excitation of the modes of the block, gains times forces
+            if(nactive == 0) {
+                Arrays.fill(ex,0);
+            } else {
+                float[] amp = activeAmp[0];
+                float[] force = activeForce[0];
+                for(int k=0;k<bufsz;k++) {
+                    int base = k*BLOCK;
+                    float f = force[k];
+                    for(int j=0;j<nb;j++) {
+                        ex[base+j] = amp[i0+j] * f;
                     }
-                    // try just array mult and comment out the above gives 219 => arrays are very very bad!
-                    //ynew += contactAmpTemp[ic] * contactAmpTemp[ic];
-                    //ynew += foo[ic] * foo[ic]; // no, this makes no difference with above line!
                 }
-                
-                tmp_yt_2 = tmp_yt_1;
-                tmp_yt_1 = ynew;
-                output[k] += ynew;
+                for(int ic=1;ic<nactive;ic++) {
+                    amp = activeAmp[ic];
+                    force = activeForce[ic];
+                    for(int k=0;k<bufsz;k++) {
+                        int base = k*BLOCK;
+                        float f = force[k];
+                        for(int j=0;j<nb;j++) {
+                            ex[base+j] += amp[i0+j] * f;
+                        }
+                    }
+                }
+            }
+            // reson filters of the block
+            for(int k=0;k<bufsz;k++) {
+                int base = k*BLOCK;
+                for(int j=0;j<nb;j++) {
+                    int i = i0+j;
+                    float ynew = twoRCosTheta[i] * yt_1[i] - R2[i] * yt_2[i] + ex[base+j];
+                    yt_2[i] = yt_1[i];
+                    yt_1[i] = ynew;
+                    lanes[base+j] += ynew;
+                }
+            }
+        }
+        for(int k=0;k<bufsz;k++) {
+            int base = k*BLOCK;
+            float sum = 0;
+            for(int j=0;j<BLOCK;j++) {
+                sum += lanes[base+j];
             }
-            yt_1[i] = tmp_yt_1;
-            yt_2[i] = tmp_yt_2;
+            output[k] = sum;
         }
     }
 
@@ -45,6 +45,49 @@ public class ModalQuencher extends InOut {
     protected  int nKilledModes = 0;
     protected int nTotalModes = 0;
 
+    /** If true quench incrementally from Bark band heaps, else sort all modes every time */
+    protected boolean incremental = true;
+
+    /** Change in dB of the excitation of a mode below which it is not updated */
+    protected float updateThresholddB = 1;
+
+    /** Number of Bark bands (1 Bark wide) */
+    private int nBands = 0;
+
+    /** Per band max-heap of its modes, loudest first in ModeData order */
+    private ModeData[][] bandHeap;
+
+    /** Number of modes in each band */
+    private int[] bandSize;
+
+    /** Loudest mode of each band if it survives the masking analysis, else null */
+    private ModeData[] bandMasker;
+
+    /** Level in dB of bandMasker[] as used in masking curve */
+    private float[] bandMaskerLevel;
+
+    /** Bands whose modes have to be decided again */
+    private boolean[] bandDirty;
+
+    /** Tops of band heaps, sorted loudest first */
+    private ModeData[] tops;
+
+    /** Modes that have been updated since the last quench */
+    private ModeData[] changedModes;
+    private int nChangedModes = 0;
+
+    /** Normalization of levels used in last quench */
+    private float addToExUsed = Float.NaN;
+
+    /** Masking curve offset used in last quench */
+    private float avUsed = Float.NaN;
+
+    /** Lowest absolute threshold of all modes */
+    private float minAth = 0;
+
+    /** If true all modes have to be decided again */
+    private boolean allDirty = true;
+
     /**
        @return number of modes that where pruned
      */
@@ -102,6 +145,32 @@ public class ModalQuencher extends InOut {
         maximumExdBThatOccurred = 0;
     }
     
+    /**
+       Choose between incremental quenching (the default) and sorting all modes every time.
+       @param incremental true for incremental quenching
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        allDirty = true;
+        if(bandHeap != null) {
+            // excitations may have been set without updating the heaps
+            for(int ib=0;ib<nBands;ib++) {
+                for(int i=bandSize[ib]/2-1;i>=0;i--) {
+                    siftDown(bandHeap[ib][i]);
+                }
+            }
+        }
+    }
+
+    /**
+       Set change of excitation below which a mode is not updated in incremental quenching.
+       @param val threshold in dB (0 updates all changes)
+     */
+    public void setUpdateThreshold(float val) {
+        updateThresholddB = val;
+        allDirty = true;
+    }
+
     /**
        How many frames (buffers) to skip before recomputing modal quenching
        @param n nFramesToSkip
@@ -123,12 +192,18 @@ public class ModalQuencher extends InOut {
     }
 
     /**
-       Sort estimate excitations, sort ModeData[], quench
+       Sort estimate excitations, sort ModeData[], quench. In incremental
+       mode only update changed excitations and quench from the band heaps.
     */
     protected void doQuenching() {
-        estimateExcitations();
-        sortModeData();
-        quench();
+        if(incremental) {
+            updateExcitations();
+            quenchIncremental();
+        } else {
+            estimateExcitations();
+            sortModeData();
+            quench();
+        }
     }
 
     // estimate levels of inputs
@@ -173,6 +248,200 @@ public class ModalQuencher extends InOut {
         
     }
 
+    /**
+       As estimateExcitations() but keep the excitation of modes which changed
+       less than updateThresholddB, and move the changed ones in their band heap.
+     */
+    protected void updateExcitations() {
+        getSourceLevels();
+        int totalnmodes = modeData.length;
+        int point = 0; // works only for 1 location
+        for(int i=0;i<totalnmodes;i++) {
+            ModeData md = modeData[i];
+            QuenchableModalObjectWithOneContact qmob = md.parent;
+            int indexOfModeInQMOB = md.indexInParent;
+            float currentExcitation = qmob.getModeExcitation(indexOfModeInQMOB);
+            float a_mode = qmob.modalModel.a[point][indexOfModeInQMOB];
+            float ex = currentExcitation + a_mode *  sourceExcitations[md.indexOfModalObject];
+            float exdB = BarkScale.decibel(ex);
+            float exMOBdB = BarkScale.decibel(currentExcitation);
+            if(exMOBdB > maximumExdBThatOccurred) {
+                maximumExdBThatOccurred = exdB;
+            }
+            if(Math.abs(exdB - md.exdB) > updateThresholddB || Math.abs(exMOBdB - md.exMOBdB) > updateThresholddB) {
+                md.ex = ex;
+                md.exdB = exdB;
+                md.exMOBdB = exMOBdB;
+                siftUp(md);
+                siftDown(md);
+                if(!md.changed) {
+                    md.changed = true;
+                    changedModes[nChangedModes++] = md;
+                }
+            }
+        }
+    }
+
+    /**
+       Masking analysis from the band heaps. The loudest mode of every band
+       is a masker unless it is masked by a louder masker or lies below
+       threshold. A mode is killed if it lies below threshold or below the
+       masking curve of any masker. Only modes that changed, and modes in
+       bands within reach of a masker that changed, are decided again.
+     */
+    protected void quenchIncremental() {
+        MaskingCurve.av = this.av;
+        float addToEx = dbLevelLoudestMode - maximumExdBThatOccurred;
+        if(allDirty || av != avUsed || !(Math.abs(addToEx - addToExUsed) <= updateThresholddB)) {
+            allDirty = true;
+            addToExUsed = addToEx;
+            avUsed = av;
+        }
+        addToEx = addToExUsed;
+        // find the maskers among the tops of the bands, loudest first
+        int ntops = 0;
+        for(int ib=0;ib<nBands;ib++) {
+            if(bandSize[ib] > 0) {
+                ModeData md = bandHeap[ib][0];
+                int k = ntops++;
+                while(k > 0 && md.compareTo(tops[k-1]) < 0) {
+                    tops[k] = tops[k-1];
+                    k--;
+                }
+                tops[k] = md;
+            }
+        }
+        for(int i=0;i<ntops;i++) {
+            ModeData md = tops[i];
+            float level = md.exdB + addToEx;
+            boolean isMasker = level >= md.ath;
+            for(int k=0;k<i && isMasker;k++) {
+                ModeData mk = tops[k];
+                if(bandMasker[mk.band] == mk && level < MaskingCurve.masker(md.b,mk.b,mk.exMOBdB + addToEx)) {
+                    isMasker = false;
+                }
+            }
+            ModeData oldMasker = bandMasker[md.band];
+            float oldLevel = bandMaskerLevel[md.band];
+            bandMasker[md.band] = isMasker ? md : null;
+            bandMaskerLevel[md.band] = md.exMOBdB + addToEx;
+            if(!allDirty && (bandMasker[md.band] != oldMasker || (isMasker && bandMaskerLevel[md.band] != oldLevel))) {
+                if(oldMasker != null) {
+                    markReach(oldMasker.b,oldLevel);
+                }
+                if(isMasker) {
+                    markReach(md.b,bandMaskerLevel[md.band]);
+                }
+            }
+        }
+        // decide modes in dirty bands, then remaining changed modes
+        for(int ib=0;ib<nBands;ib++) {
+            if(allDirty || bandDirty[ib]) {
+                for(int i=0;i<bandSize[ib];i++) {
+                    decide(bandHeap[ib][i],addToEx);
+                }
+            }
+        }
+        for(int i=0;i<nChangedModes;i++) {
+            ModeData md = changedModes[i];
+            if(!(allDirty || bandDirty[md.band])) {
+                decide(md,addToEx);
+            }
+            md.changed = false;
+        }
+        nChangedModes = 0;
+        for(int ib=0;ib<nBands;ib++) {
+            bandDirty[ib] = false;
+        }
+        if(allDirty) {
+            int nkilled = 0;
+            for(int i=0;i<modeData.length;i++) {
+                modeData[i].parent.setOnBit(modeData[i].indexInParent,modeData[i].on);
+                if(!modeData[i].on) {
+                    nkilled++;
+                }
+            }
+            this.nKilledModes = nkilled;
+            allDirty = false;
+        }
+        this.nTotalModes = modeData.length;
+    }
+
+    /** Decide if mode is on from the current band maskers, and update parent if changed */
+    private void decide(ModeData md,float addToEx) {
+        float level = md.exdB + addToEx;
+        boolean on = level >= md.ath;
+        for(int ib=0;ib<nBands && on;ib++) {
+            ModeData mk = bandMasker[ib];
+            if(mk != null && mk != md && level < MaskingCurve.masker(md.b,mk.b,bandMaskerLevel[ib])) {
+                on = false;
+            }
+        }
+        if(on != md.on) {
+            md.on = on;
+            if(!allDirty) {
+                md.parent.setOnBit(md.indexInParent,on);
+                nKilledModes += on ? -1 : 1;
+            }
+        }
+    }
+
+    /** Mark dirty the bands where the masking curve of a masker lies above the lowest threshold */
+    private void markReach(float bMasker,float lm) {
+        float range = lm - av - minAth;
+        if(range < 0) {
+            return;
+        }
+        float su = MaskingCurve.su(lm);
+        float bLow = bMasker - range/MaskingCurve.sl;
+        float bHigh = su > 0 ? bMasker + range/su : nBands;
+        int ibHigh = Math.min(nBands-1,(int)bHigh);
+        for(int ib=Math.max(0,(int)bLow);ib<=ibHigh;ib++) {
+            bandDirty[ib] = true;
+        }
+    }
+
+    /** Move mode towards top of its band heap while louder than parent */
+    private void siftUp(ModeData md) {
+        ModeData[] heap = bandHeap[md.band];
+        int pos = md.heapPos;
+        while(pos > 0) {
+            int parent = (pos-1)/2;
+            if(md.compareTo(heap[parent]) >= 0) {
+                break;
+            }
+            heap[pos] = heap[parent];
+            heap[pos].heapPos = pos;
+            pos = parent;
+        }
+        heap[pos] = md;
+        md.heapPos = pos;
+    }
+
+    /** Move mode towards bottom of its band heap while softer than a child */
+    private void siftDown(ModeData md) {
+        ModeData[] heap = bandHeap[md.band];
+        int n = bandSize[md.band];
+        int pos = md.heapPos;
+        while(true) {
+            int child = 2*pos+1;
+            if(child >= n) {
+                break;
+            }
+            if(child+1 < n && heap[child+1].compareTo(heap[child]) < 0) {
+                child++;
+            }
+            if(heap[child].compareTo(md) >= 0) {
+                break;
+            }
+            heap[pos] = heap[child];
+            heap[pos].heapPos = pos;
+            pos = child;
+        }
+        heap[pos] = md;
+        md.heapPos = pos;
+    }
+
     /**
      */
     protected void quench() {
@@ -288,6 +557,40 @@ public class ModalQuencher extends InOut {
                 imode++;
             }
         }
+        makeBands();
+    }
+
+    /** Put modes in Bark bands, 1 Bark wide, each with a heap ordered as ModeData. */
+    private void makeBands() {
+        nBands = 1;
+        minAth = Float.MAX_VALUE;
+        for(int i=0;i<modeData.length;i++) {
+            modeData[i].band = Math.max(0,(int)modeData[i].b);
+            nBands = Math.max(nBands,modeData[i].band+1);
+            minAth = Math.min(minAth,modeData[i].ath);
+        }
+        bandSize = new int[nBands];
+        for(int i=0;i<modeData.length;i++) {
+            bandSize[modeData[i].band]++;
+        }
+        bandHeap = new ModeData[nBands][];
+        for(int ib=0;ib<nBands;ib++) {
+            bandHeap[ib] = new ModeData[bandSize[ib]];
+            bandSize[ib] = 0;
+        }
+        for(int i=0;i<modeData.length;i++) {
+            ModeData md = modeData[i];
+            md.heapPos = bandSize[md.band]++;
+            bandHeap[md.band][md.heapPos] = md;
+            siftUp(md);
+        }
+        bandMasker = new ModeData[nBands];
+        bandMaskerLevel = new float[nBands];
+        bandDirty = new boolean[nBands];
+        tops = new ModeData[nBands];
+        changedModes = new ModeData[modeData.length];
+        nChangedModes = 0;
+        allDirty = true;
     }
 
 }
@@ -306,6 +609,9 @@ class ModeData implements Comparable {
     int indexOfModalObject; // 0,.., n-1 for n objects, refers to order in patch
     int indexInParent; // index of mode in parent
     boolean on; // true if this mode is on, false otherwise
+    int band; // Bark band of this mode in ModalQuencher
+    int heapPos; // position in heap of its band
+    boolean changed; // true if updated since last quench
 
     public int compareTo(Object o) {
         ModeData m = (ModeData)o;
@@ -336,7 +642,7 @@ class ModeData implements Comparable {
 /** Defines masking curve for source at given freq. in Barks. */
 class MaskingCurve {
     
-    static private final float sl = 25; // lower slope; constant
+    static final float sl = 25; // lower slope; constant
 
     /** magic number defining level of masker.
         20dB suggested by literature, experimentally 65dB is OK
@@ -344,7 +650,7 @@ class MaskingCurve {
     static public float av = 5; 
 
     /** float lm = level in dB SPL of source */
-    static private final float su(float lm) {
+    static final float su(float lm) {
         return (float)(22 - lm/5); // upper slope
     }
 
@@ -65,6 +65,9 @@ public class OneShotBuffer extends LoopBuffer {
                 if(ixnext >= loopBufferLength) { // wrapped around: stop
                     buf[k] = y;
                     reset(); // done
+                    for(int j=k+1;j<bufsz;j++) { // buf holds an old frame
+                        buf[j] = 0;
+                    }
                     break;
                 } else {
                     buf[k] = y;
@@ -0,0 +1,100 @@
+package jass.generators;
+
+/**
+   Lowpass filter and downsample by an integer factor M with a linear
+   phase FIR (Blackman windowed sinc) of M*tapsPerPhase taps, computed
+   once. Only every M-th output of the FIR is computed, so the cost per
+   output sample is M*tapsPerPhase multiply-adds, i.e., tapsPerPhase per
+   polyphase component of the input, not M times that. State is kept
+   between calls so a stream can be processed in buffers of any size.
+*/
+public class PolyphaseDecimator {
+    /** Default number of taps per phase. */
+    public static final int DEFAULT_TAPS_PER_PHASE = 24;
+    /** Default cutoff as fraction of the output Nyquist frequency. */
+    public static final double DEFAULT_CUTOFF = .84;
+
+    private int factor;
+    private int nTaps;
+    private double[] hr; // taps, reversed
+    private double[] x; // last nTaps-1 inputs followed by the current block
+
+    /** Create decimator with default filter.
+        @param factor decimation factor.
+    */
+    public PolyphaseDecimator(int factor) {
+        this(factor,DEFAULT_TAPS_PER_PHASE,DEFAULT_CUTOFF);
+    }
+
+    /** Create decimator.
+        @param factor decimation factor.
+        @param tapsPerPhase filter length divided by factor.
+        @param cutoff -6dB frequency as fraction of the output Nyquist frequency.
+    */
+    public PolyphaseDecimator(int factor, int tapsPerPhase, double cutoff) {
+        this.factor = factor;
+        nTaps = factor*tapsPerPhase;
+        hr = new double[nTaps];
+        double fc = .5*cutoff/factor; // in cycles per input sample
+        double center = (nTaps-1)/2.;
+        double sum = 0;
+        for(int k=0;k<nTaps;k++) {
+            double t = k-center;
+            double sinc = t==0 ? 2*fc : Math.sin(2*Math.PI*fc*t)/(Math.PI*t);
+            double w = .42 - .5*Math.cos(2*Math.PI*k/(nTaps-1)) + .08*Math.cos(4*Math.PI*k/(nTaps-1));
+            hr[nTaps-1-k] = sinc*w;
+            sum += sinc*w;
+        }
+        for(int k=0;k<nTaps;k++) {
+            hr[k] /= sum; // unit gain at DC
+        }
+        x = new double[nTaps-1+1024*factor];
+    }
+
+    /** Get decimation factor.
+        @return factor.
+    */
+    public int getFactor() {
+        return factor;
+    }
+
+    /** Get delay of the filter.
+        @return group delay in output samples.
+    */
+    public double getDelay() {
+        return (nTaps-1)/(2.*factor);
+    }
+
+    /** Clear the state.
+     */
+    public void reset() {
+        for(int i=0;i<x.length;i++) {
+            x[i] = 0;
+        }
+    }
+
+    /** Decimate.
+        @param in input, nOut*factor samples.
+        @param out output.
+        @param nOut number of output samples.
+    */
+    public void decimate(double[] in, float[] out, int nOut) {
+        int nIn = nOut*factor;
+        int nHist = nTaps-1;
+        if(x.length < nHist+nIn) {
+            double[] tmp = new double[nHist+nIn];
+            System.arraycopy(x,0,tmp,0,nHist);
+            x = tmp;
+        }
+        System.arraycopy(in,0,x,nHist,nIn);
+        for(int n=0;n<nOut;n++) {
+            int base = n*factor+factor-1; // output aligned with the last input of its block
+            double acc = 0;
+            for(int k=0;k<nTaps;k++) {
+                acc += hr[k]*x[base+k];
+            }
+            out[n] = (float)acc;
+        }
+        System.arraycopy(x,nIn,x,0,nHist);
+    }
+}
@@ -71,7 +71,9 @@ import jass.utils.*;
 
    We determine N from the minimum  L we want to simulate, then increase
    h when  appropriate for  longer tubes. To  get freq. up  to (roughly)
-   srate/2 resolved we have to oversample with a factor 2.
+   srate/2 resolved we have to oversample with a factor 2. See
+   setOverSamplingFactor(): the tube then runs at 2 or 4 times srate and
+   the output is lowpassed and decimated with a PolyphaseDecimator.
    
    Grid state vector x(i) i = 0,...,N-1: (NB N is odd)
    
@@ -107,7 +109,17 @@ import jass.utils.*;
 
 */
 
-public class RightLoadedWebsterTube implements Filter, TwoMassModel.PressureServer {
+public class RightLoadedWebsterTube implements Filter, TwoMassModel.PressureServer, ParameterQueue.Receiver {
+    /** Parameter indices for postParameter() */
+    public static final int PARAM_VELUM_NASAL = 0;
+    public static final int PARAM_MOUTH_NOSE_BALANCE = 1;
+    public static final int PARAM_MULT_D_WALL = 2;
+    public static final int PARAM_MULT_D_SECOND = 3;
+    public static final int PARAM_LIP_AREA_MULTIPLIER = 4;
+    public static final int PARAM_WALL_PRESSURE_COUPLING = 5;
+    public static final int PARAM_TUBE_MODEL = 6; // value ignored, resample geometry
+    public static final int NPARAMS = 7;
+
     /** Sampling rate in Hertz. */
     protected float srate;
     protected double minLen; // minimum length of vocal tract
@@ -170,7 +182,9 @@ public class RightLoadedWebsterTube implements Filter, TwoMassModel.PressureServ
     protected double relativeLocationOfNasalTract = .5; // location nasal tract [0 1] is vocal tract from larynx to lip
     protected int iNasal; // odd index of vocal tract grid which is the pressure pivot point coupled to nasal tract
     private boolean isAllocated = false;
+    private boolean geometryStarted = false; // false until first buffer after reset(), geometry is then not interpolated
     protected int overSamplingFactor = 1;
+    protected PolyphaseDecimator decimator = null; // null if not oversampling
     public boolean useLipModel=true;
     protected double dt=0;
     protected double eta = 0;
@@ -184,6 +198,7 @@ public class RightLoadedWebsterTube implements Filter, TwoMassModel.PressureServ
     protected double flowNoiseBandwidth=8000;
     protected double flowNoiseFrequency=900;
     ResonFilter resonFilter; // for flow noise
+    protected ParameterQueue parameterQueue = new ParameterQueue(NPARAMS); // changes from control threads
 
     public void setCFLNumber(double val) {
         CFLNumber = val;
@@ -317,11 +332,52 @@ public class RightLoadedWebsterTube implements Filter, TwoMassModel.PressureServ
         bb = new double[sz];
         cc = new double[sz];
         dd = new double[sz];
+        coefsNow = new Coefs(N,nn,NNasal,nnNasal);
+        coefsStart = new Coefs(N,nn,NNasal,nnNasal);
+        coefsEnd = new Coefs(N,nn,NNasal,nnNasal);
+        vtM = new double[nn];
+        vtInvB = new double[nn];
+        nasalM = new double[nnNasal];
+        nasalInvB = new double[nnNasal];
+        sqrtScratch = new double[Math.max(N,NNasal)];
+        invS15Scratch = new double[N];
+        pSoA = new double[(N-1)/2];
+        uSoA = new double[(N+1)/2];
+        uPrevSoA = new double[(N+1)/2];
+        zSoA = new double[(N-1)/2+2]; // zero at both ends
+        ySoA = new double[(N-1)/2];
+        pNasalSoA = new double[(NNasal-1)/2];
+        uNasalSoA = new double[(NNasal+1)/2];
+        zNasalSoA = new double[(NNasal-1)/2+2];
+        yNasalSoA = new double[(NNasal-1)/2];
+        if(solver == SOLVER_SOA_FLOAT) {
+            allocateFloat();
+        }
         outBuf = new double[1024*overSamplingFactor];
         isAllocated = true;
         reset();
     }
 
+    private void allocateFloat() {
+        pF = new float[(N-1)/2];
+        uF = new float[(N+1)/2];
+        uPrevF = new float[(N+1)/2];
+        zF = new float[(N-1)/2+2]; // zero at both ends
+        yF = new float[(N-1)/2];
+        pNasalF = new float[(NNasal-1)/2];
+        uNasalF = new float[(NNasal+1)/2];
+        zNasalF = new float[(NNasal-1)/2+2];
+        yNasalF = new float[(NNasal-1)/2];
+        ddF = new float[dd.length];
+        vtMF = new float[nn];
+        vtInvBF = new float[nn];
+        nasalMF = new float[nnNasal];
+        nasalInvBF = new float[nnNasal];
+        floatNow = new FloatCoefs(N,nn,NNasal,nnNasal);
+        floatStart = new FloatCoefs(N,nn,NNasal,nnNasal);
+        floatEnd = new FloatCoefs(N,nn,NNasal,nnNasal);
+    }
+
     public TwoMassModel getTwoMassModel() {
         return twoMassModel;
     }
@@ -331,7 +387,103 @@ public class RightLoadedWebsterTube implements Filter, TwoMassModel.PressureServ
         twoMassModel.setPressureServer(this);
     }
 
+    /** Post a parameter change to be applied by the audio thread at the start of the
+        next buffer. Never blocks, repeated posts before that coalesce.
+        @param id one of the PARAM_ indices.
+        @param value new value.
+    */
+    public void postParameter(int id, double value) {
+        parameterQueue.post(id,value);
+    }
+
+    /** Ask the audio thread to resample the tube shapes at the start of the
+        next buffer. Non-blocking alternative to changeTubeModel().
+    */
+    public void postTubeModelChange() {
+        parameterQueue.post(PARAM_TUBE_MODEL,0);
+    }
+
+    public ParameterQueue getParameterQueue() {
+        return parameterQueue;
+    }
+
+    /**
+       Implement ParameterQueue.Receiver. Called on the audio thread.
+       @param id one of the PARAM_ indices.
+       @param value new value.
+    */
+    public void setParameter(int id, double value) {
+        switch(id) {
+        case PARAM_VELUM_NASAL:
+            velumNasal = value;
+            break;
+        case PARAM_MOUTH_NOSE_BALANCE:
+            mouthNoseBalance = value;
+            break;
+        case PARAM_MULT_D_WALL:
+            multDWall = value;
+            break;
+        case PARAM_MULT_D_SECOND:
+            multDSecond = value;
+            break;
+        case PARAM_LIP_AREA_MULTIPLIER:
+            lipAreaMultiplier = value;
+            break;
+        case PARAM_WALL_PRESSURE_COUPLING:
+            wallPressureCoupling = value;
+            break;
+        case PARAM_TUBE_MODEL:
+            resampleTubeModel();
+            break;
+        }
+    }
+
+    /** Set oversampling factor. The tube (and glottis noise filter) run at
+        overSamplingFactor*srate, which moves the cutoff of the grid from
+        about srate/5 to about overSamplingFactor*srate/5 at a cost of
+        overSamplingFactor^2 (the grid also gets finer). The output is
+        lowpassed and decimated to srate. Reallocates the grid and resets
+        the state, so this is meant for changing quality settings, not for
+        modulation. Call from a control thread, it waits for the buffer
+        being computed; there is no postParameter() index for it as the
+        audio thread must not allocate. For a voice of a TubeChoir use
+        TubeChoir.setOverSamplingFactor().
+        @param overSamplingFactor 1, 2 or 4.
+    */
+    public synchronized void setOverSamplingFactor(int overSamplingFactor) {
+        if(inChoir) {
+            throw new IllegalStateException("Voice of a TubeChoir, use TubeChoir.setOverSamplingFactor()");
+        }
+        applyOverSamplingFactor(overSamplingFactor);
+    }
+
+    public int getOverSamplingFactor() {
+        return overSamplingFactor;
+    }
+
+    /* Change the grid, caller holds the monitor. */
+    void applyOverSamplingFactor(int factor) {
+        if(factor != 1 && factor != 2 && factor != 4) {
+            System.out.println("Oversampling factor must be 1, 2 or 4, not "+factor);
+            return;
+        }
+        if(factor == overSamplingFactor) {
+            return;
+        }
+        overSamplingFactor = factor;
+        decimator = factor > 1 ? new PolyphaseDecimator(factor) : null;
+        allocate();
+        resampleTubeModel();
+        reset();
+        resonFilter = new ResonFilter(srate*overSamplingFactor);
+        updateFlowFilter();
+    }
+
     public synchronized void changeTubeModel() {
+        resampleTubeModel();
+    }
+
+    protected void resampleTubeModel() {
         double minS=1.e10,maxS=-1;
         if(isAllocated) {
             dt = 1/(overSamplingFactor*srate);
@@ -374,14 +526,31 @@ public class RightLoadedWebsterTube implements Filter, TwoMassModel.PressureServ
                 System.out.println("nasal tube too short");
             }
             //System.out.println(minS+" "+maxS);
+            if(!geometryStarted) {
+                // nothing computed with the old geometry, so don't interpolate from it
+                for(int i=0;i<N;i++) {
+                    Sold[i] = S[i];
+                    sqrtSold[i] = sqrtS[i];
+                }
+                for(int i=0;i<NNasal;i++) {
+                    SoldNasal[i] = SNasal[i];
+                    sqrtSoldNasal[i] = sqrtSNasal[i];
+                }
+            }
         }
     }
 
     
     public void reset() {
         u_N2 = u_N2_nose = 0;
+        last_input = 0;
+        newU = lastU = 0;
+        if(decimator!=null) {
+            decimator.reset();
+        }
         for(int i=0;i<N;i++) {
             pu[i]=0;
+            pu_old[i]=0;
             yWall[i] = zWall[i] = 0;
         }
         for(int i=0;i<N;i++) {
@@ -397,6 +566,7 @@ public class RightLoadedWebsterTube implements Filter, TwoMassModel.PressureServ
             SoldNasal[i] = SNasal[i];
             sqrtSoldNasal[i] = sqrtSNasal[i];
         }
+        geometryStarted = false;
         computeDampingPars();
     }
 
@@ -436,6 +606,33 @@ public class RightLoadedWebsterTube implements Filter, TwoMassModel.PressureServ
         updateFlowFilter();
     }
 
+    /** Create with a given solver layout.
+        @param srate sampling rate in Hz.
+        @param tm vocal tract shape.
+        @param minLen minimum length of vocal tract in m.
+        @param tmNasal nasal tract shape.
+        @param minLenNasal minimum length of nasal tract in m.
+        @param cflNumber CFL number.
+        @param solver SOLVER_INTERLEAVED, SOLVER_SOA or SOLVER_SOA_FLOAT.
+    */
+    public RightLoadedWebsterTube(float srate, TubeShape tm, double minLen, TubeShape tmNasal, double minLenNasal,double cflNumber,int solver) {
+        this(srate,tm,minLen,tmNasal,minLenNasal,cflNumber);
+        if(solver != SOLVER_INTERLEAVED && solver != SOLVER_SOA && solver != SOLVER_SOA_FLOAT) {
+            throw new IllegalArgumentException("Unknown solver "+solver);
+        }
+        this.solver = solver;
+        if(solver == SOLVER_SOA_FLOAT) {
+            allocateFloat();
+        }
+    }
+
+    /** Get the solver layout.
+        @return SOLVER_INTERLEAVED, SOLVER_SOA or SOLVER_SOA_FLOAT.
+    */
+    public int getSolver() {
+        return solver;
+    }
+
     public void setFlowNoiseLevel(double v) {
         flowNoiseLevel = v;
         updateFlowFilter();
@@ -495,374 +692,1134 @@ public class RightLoadedWebsterTube implements Filter, TwoMassModel.PressureServ
         @param inputOffset where to start in circular buffer input (unused)
     */
     synchronized public void  filter(float [] output, float[] input, int nsamples, int inputOffset) {
-        filterIMEX(output,input, nsamples, inputOffset);
+        AreaTrajectory traj = trajectory;
+        if(traj == null || traj.isIdle()) {
+            filterIMEX(output,input, nsamples, inputOffset);
+            return;
+        }
+        // cut the buffer into blocks ending on the keyframes, the
+        // parameters and glottis are still set up once for the buffer
+        beginParameters(nsamples);
+        int done = 0;
+        while(done < nsamples) {
+            int n = traj.blockLength(sampleTime,Math.min(nsamples-done,trajectoryIn.length));
+            if(traj.shapeAt(sampleTime+n,trajectoryShape)) {
+                tubeShape = trajectoryShape;
+                velumNasal = traj.getVelum();
+                resampleTubeModel();
+            }
+            System.arraycopy(input,done,trajectoryIn,0,n);
+            filterBlock(trajectoryOut,trajectoryIn,n);
+            System.arraycopy(trajectoryOut,0,output,done,n);
+            done += n;
+        }
+        endParameters();
+    }
 
+    /** Let the vocal tract shape and velum follow a trajectory of keyframes
+        from the time the first keyframe is reached. The shape set with the
+        constructor is used again when the trajectory is removed.
+        Not supported for a voice of a TubeChoir, which does not call filter().
+        @param trajectory trajectory, or null to remove.
+    */
+    public synchronized void setAreaTrajectory(AreaTrajectory trajectory) {
+        if(trajectory != null && inChoir) {
+            throw new IllegalStateException("RightLoadedWebsterTube: no AreaTrajectory on a voice of a TubeChoir");
+        }
+        if(this.trajectory == null) {
+            userTubeShape = tubeShape;
+        }
+        if(trajectory != null) {
+            trajectoryShape = new TubeModel(trajectory.getNRadii());
+            trajectoryIn = new float[trajectory.getMaxBlock()];
+            trajectoryOut = new float[trajectory.getMaxBlock()];
+        } else if(this.trajectory != null) {
+            tubeShape = userTubeShape;
+            resampleTubeModel();
+        }
+        this.trajectory = trajectory;
     }
-    
+
+    public AreaTrajectory getAreaTrajectory() {
+        return trajectory;
+    }
+
+    /** Get number of samples filtered so far, the time base of AreaTrajectory.
+        @return time in samples.
+    */
+    public long getSampleTime() {
+        return sampleTime;
+    }
+
+    private volatile long sampleTime = 0; // written by audio thread only, in endBuffer()
+    boolean inChoir = false; // set by TubeChoir, which runs the steps without filter()
+    private AreaTrajectory trajectory = null;
+    private TubeModel trajectoryShape;
+    private TubeShape userTubeShape; // shape used without trajectory
+    private float[] trajectoryIn, trajectoryOut;
     private float last_input=0;
     private double newU=0,lastU=0;
     private boolean useLocalPressure=false; // use pressure near lip or just diff. velocity if false
 
+    /*
+      Coefficients of the solver at one sample, which depend only on the
+      areas and the parameters. Pressure coefficients are indexed by
+      j = (i-1)/2 for the pressure pu[i] (odd i), velocity coefficients
+      like the unknowns of the implicit step (kk with i = 2*(kk+1)).
+    */
+    private static final class Coefs {
+        // VT pressures
+        final double[] pRatio, pRight, pLeft, pDiff, wCenter, wRight, wLeft;
+        // VT implicit velocity step
+        final double[] uOld, a, b, c;
+        // NT pressures
+        final double[] npRatio, npRight, npLeft, npDiff, nwCenter, nwRight, nwLeft;
+        // NT implicit velocity step, symmetric
+        final double[] na, nb;
+        double nasalCoupling, S0, SEnd, lipGain, endLoss, smallestS;
+        double nasalStartLoss, nasalLipGain, nasalEndLoss;
+        int narrowest;
+
+        Coefs(int N, int nn, int NNasal, int nnNasal) {
+            int np = (N-1)/2, npN = (NNasal-1)/2;
+            pRatio = new double[np]; pRight = new double[np]; pLeft = new double[np]; pDiff = new double[np];
+            wCenter = new double[np]; wRight = new double[np]; wLeft = new double[np];
+            uOld = new double[nn]; a = new double[nn]; b = new double[nn]; c = new double[nn];
+            npRatio = new double[npN]; npRight = new double[npN]; npLeft = new double[npN]; npDiff = new double[npN];
+            nwCenter = new double[npN]; nwRight = new double[npN]; nwLeft = new double[npN];
+            na = new double[nnNasal]; nb = new double[nnNasal];
+        }
+
+        private static void lerp(double[] x, double[] x0, double[] x1, double s) {
+            for(int i=0;i<x.length;i++) {
+                x[i] = x0[i] + s*(x1[i]-x0[i]);
+            }
+        }
+
+        /* Set to c0 + s*(c1-c0). */
+        void interpolate(Coefs c0, Coefs c1, double s) {
+            lerp(pRatio,c0.pRatio,c1.pRatio,s); lerp(pRight,c0.pRight,c1.pRight,s);
+            lerp(pLeft,c0.pLeft,c1.pLeft,s); lerp(pDiff,c0.pDiff,c1.pDiff,s);
+            lerp(wCenter,c0.wCenter,c1.wCenter,s); lerp(wRight,c0.wRight,c1.wRight,s);
+            lerp(wLeft,c0.wLeft,c1.wLeft,s);
+            lerp(uOld,c0.uOld,c1.uOld,s); lerp(a,c0.a,c1.a,s); lerp(b,c0.b,c1.b,s); lerp(c,c0.c,c1.c,s);
+            lerp(npRatio,c0.npRatio,c1.npRatio,s); lerp(npRight,c0.npRight,c1.npRight,s);
+            lerp(npLeft,c0.npLeft,c1.npLeft,s); lerp(npDiff,c0.npDiff,c1.npDiff,s);
+            lerp(nwCenter,c0.nwCenter,c1.nwCenter,s); lerp(nwRight,c0.nwRight,c1.nwRight,s);
+            lerp(nwLeft,c0.nwLeft,c1.nwLeft,s);
+            lerp(na,c0.na,c1.na,s); lerp(nb,c0.nb,c1.nb,s);
+            interpolateScalars(c0,c1,s);
+        }
+
+        /* Only the scalars, for FloatCoefs. */
+        void interpolateScalars(Coefs c0, Coefs c1, double s) {
+            nasalCoupling = c0.nasalCoupling + s*(c1.nasalCoupling-c0.nasalCoupling);
+            S0 = c0.S0 + s*(c1.S0-c0.S0);
+            SEnd = c0.SEnd + s*(c1.SEnd-c0.SEnd);
+            lipGain = c0.lipGain + s*(c1.lipGain-c0.lipGain);
+            endLoss = c0.endLoss + s*(c1.endLoss-c0.endLoss);
+            nasalStartLoss = c0.nasalStartLoss + s*(c1.nasalStartLoss-c0.nasalStartLoss);
+            nasalLipGain = c0.nasalLipGain + s*(c1.nasalLipGain-c0.nasalLipGain);
+            nasalEndLoss = c0.nasalEndLoss + s*(c1.nasalEndLoss-c0.nasalEndLoss);
+            smallestS = c0.smallestS + s*(c1.smallestS-c0.smallestS);
+            narrowest = s < .5 ? c0.narrowest : c1.narrowest;
+        }
+    }
+
+    /*
+      Single precision copy of the arrays of a Coefs set, for
+      SOLVER_SOA_FLOAT. The scalars are taken from the Coefs.
+    */
+    private static final class FloatCoefs {
+        final float[] pRatio, pRight, pLeft, pDiff, wCenter, wRight, wLeft;
+        final float[] uOld, a, b, c;
+        final float[] npRatio, npRight, npLeft, npDiff, nwCenter, nwRight, nwLeft;
+        final float[] na, nb;
+
+        FloatCoefs(int N, int nn, int NNasal, int nnNasal) {
+            int np = (N-1)/2, npN = (NNasal-1)/2;
+            pRatio = new float[np]; pRight = new float[np]; pLeft = new float[np]; pDiff = new float[np];
+            wCenter = new float[np]; wRight = new float[np]; wLeft = new float[np];
+            uOld = new float[nn]; a = new float[nn]; b = new float[nn]; c = new float[nn];
+            npRatio = new float[npN]; npRight = new float[npN]; npLeft = new float[npN]; npDiff = new float[npN];
+            nwCenter = new float[npN]; nwRight = new float[npN]; nwLeft = new float[npN];
+            na = new float[nnNasal]; nb = new float[nnNasal];
+        }
+
+        private static void copy(float[] x, double[] x0) {
+            for(int i=0;i<x.length;i++) {
+                x[i] = (float)x0[i];
+            }
+        }
+
+        private static void lerp(float[] x, float[] x0, float[] x1, float s) {
+            for(int i=0;i<x.length;i++) {
+                x[i] = x0[i] + s*(x1[i]-x0[i]);
+            }
+        }
+
+        void set(Coefs cf) {
+            copy(pRatio,cf.pRatio); copy(pRight,cf.pRight); copy(pLeft,cf.pLeft); copy(pDiff,cf.pDiff);
+            copy(wCenter,cf.wCenter); copy(wRight,cf.wRight); copy(wLeft,cf.wLeft);
+            copy(uOld,cf.uOld); copy(a,cf.a); copy(b,cf.b); copy(c,cf.c);
+            copy(npRatio,cf.npRatio); copy(npRight,cf.npRight); copy(npLeft,cf.npLeft); copy(npDiff,cf.npDiff);
+            copy(nwCenter,cf.nwCenter); copy(nwRight,cf.nwRight); copy(nwLeft,cf.nwLeft);
+            copy(na,cf.na); copy(nb,cf.nb);
+        }
+
+        /* Set to c0 + s*(c1-c0). */
+        void interpolate(FloatCoefs c0, FloatCoefs c1, float s) {
+            lerp(pRatio,c0.pRatio,c1.pRatio,s); lerp(pRight,c0.pRight,c1.pRight,s);
+            lerp(pLeft,c0.pLeft,c1.pLeft,s); lerp(pDiff,c0.pDiff,c1.pDiff,s);
+            lerp(wCenter,c0.wCenter,c1.wCenter,s); lerp(wRight,c0.wRight,c1.wRight,s);
+            lerp(wLeft,c0.wLeft,c1.wLeft,s);
+            lerp(uOld,c0.uOld,c1.uOld,s); lerp(a,c0.a,c1.a,s); lerp(b,c0.b,c1.b,s); lerp(c,c0.c,c1.c,s);
+            lerp(npRatio,c0.npRatio,c1.npRatio,s); lerp(npRight,c0.npRight,c1.npRight,s);
+            lerp(npLeft,c0.npLeft,c1.npLeft,s); lerp(npDiff,c0.npDiff,c1.npDiff,s);
+            lerp(nwCenter,c0.nwCenter,c1.nwCenter,s); lerp(nwRight,c0.nwRight,c1.nwRight,s);
+            lerp(nwLeft,c0.nwLeft,c1.nwLeft,s);
+            lerp(na,c0.na,c1.na,s); lerp(nb,c0.nb,c1.nb,s);
+        }
+    }
+
+    /** Solver working on the interleaved grid pu[]. */
+    public static final int SOLVER_INTERLEAVED = 0;
+    /** Solver with pressures and velocities in separate arrays, for SIMD. */
+    public static final int SOLVER_SOA = 1;
+    /** As SOLVER_SOA, but the state and coefficients used in the
+        per-sample loop are single precision. Twice the SIMD lanes and half
+        the cache footprint, at the cost of accuracy (see
+        VTNT_JASS.VTNTSolverCompare). Coefficients are still computed in
+        double precision. */
+    public static final int SOLVER_SOA_FLOAT = 2;
+    private int solver = SOLVER_INTERLEAVED;
+    // state of SOLVER_SOA during a buffer
+    private double[] pSoA, uSoA, uPrevSoA, zSoA, ySoA, pNasalSoA, uNasalSoA, zNasalSoA, yNasalSoA;
+    // state and coefficients of SOLVER_SOA_FLOAT
+    private float[] pF, uF, uPrevF, zF, yF, pNasalF, uNasalF, zNasalF, yNasalF, ddF;
+    private float[] vtMF, vtInvBF, nasalMF, nasalInvBF;
+    private FloatCoefs floatNow, floatStart, floatEnd;
+
+    private Coefs coefsNow, coefsStart, coefsEnd;
+    private double[] vtM, vtInvB, nasalM, nasalInvB; // factored implicit step for static geometry
+    private double[] sqrtScratch, invS15Scratch;
+    private boolean exactCoefficients = false;
+    private double coefficientTolerance = 1.e-2;
+    private boolean exactThisBuffer; // coefficients computed for every sample in current buffer
+
+    /** Set whether to always compute the solver coefficients for every sample when the geometry
+        changes over a buffer. If false they are interpolated linearly between the first
+        and last sample, but only for small changes, see setCoefficientTolerance().
+        The areas themselves are always interpolated linearly.
+        @param val true to compute for every sample (slow).
+    */
+    public void setExactCoefficients(boolean val) {
+        exactCoefficients = val;
+    }
+
+    /** Set the largest relative change of any area over a buffer for which the solver
+        coefficients are interpolated linearly. For larger changes (a consonant closing,
+        a jump between vowels) the interpolated coefficients are not a consistent
+        discretization and the solver can go unstable, so they are computed for every sample.
+        @param val largest relative change of area, 0 to always compute exactly.
+    */
+    public void setCoefficientTolerance(double val) {
+        coefficientTolerance = val;
+    }
+
+    /** Get the largest relative change of area for which coefficients are interpolated.
+        @return relative change.
+    */
+    public double getCoefficientTolerance() {
+        return coefficientTolerance;
+    }
+
+    /** Get whether coefficients are computed for every sample.
+        @return true if computed for every sample.
+    */
+    public boolean getExactCoefficients() {
+        return exactCoefficients;
+    }
+
+    /* Largest relative change of area over the buffer, 0 for static geometry. */
+    private double geometryChange() {
+        double change = 0;
+        for(int i=0;i<N;i++) {
+            if(S[i] != Sold[i]) {
+                change = Math.max(change,Math.abs(S[i]-Sold[i])/Math.min(S[i],Sold[i]));
+            }
+        }
+        for(int i=0;i<NNasal;i++) {
+            if(SNasal[i] != SoldNasal[i] || sqrtSNasal[i] != sqrtSoldNasal[i]) {
+                change = Math.max(change,Math.abs(SNasal[i]-SoldNasal[i])/Math.min(SNasal[i],SoldNasal[i]));
+                if(change == 0) {
+                    change = Double.MIN_VALUE; // sqrt areas changed only
+                }
+            }
+        }
+        return change;
+    }
+
+    /* Areas at sample k in Snow, at sample k-1 in Sprev. */
+    private void interpolateAreas(int k, int bufsz) {
+        double s_now = (k+1.)/bufsz; // runs from 0 -1 over sample buffer to interpolate
+        double s_prev = k/((double)bufsz);
+        for(int i=0;i<N;i++) {
+            Snow[i] = (1-s_now)*Sold[i] + s_now*S[i];
+            Sprev[i] = (1-s_prev)*Sold[i] + s_prev*S[i];
+        }
+        for(int i=0;i<NNasal;i++) {
+            SnowNasal[i] = (1-s_now)*SoldNasal[i] + s_now*SNasal[i];
+            SprevNasal[i] = (1-s_prev)*SoldNasal[i] + s_prev*SNasal[i];
+        }
+    }
+
+    /* Pressure update coefficients of one tract, stored at j = (i-1)/2 for
+       pressure node i. The update is
+       pu[i] = ratio*pu[i] - (right*pu[i+1] - left*pu[i-1]) - diff - wall term,
+       with the wall velocity averaged in from the neighboring pressure nodes.
+    */
+    private void computePressureCoefs(double[] Sn, double[] Sp, double[] sq, int n, double eta,
+                                      double[] ratio, double[] right, double[] left, double[] diff,
+                                      double[] wCenter, double[] wRight, double[] wLeft) {
+        double wallFactor = dt*2*Math.sqrt(Math.PI);
+        for(int i=1,j=0;i<=n-2;i+=2,j++) {
+            double S_now_4pt = (2*Sn[i]+Sn[i-1]+Sn[i+1])/4;
+            double S_prev_4pt = (2*Sp[i]+Sp[i-1]+Sp[i+1])/4;
+            ratio[j] = S_prev_4pt/S_now_4pt;
+            right[j] = eta*Sn[i+1]/S_now_4pt;
+            left[j] = eta*Sn[i-1]/S_now_4pt;
+            diff[j] = (Sn[i]-Sp[i])/S_now_4pt;
+            double w = wallFactor/S_now_4pt;
+            wCenter[j] = w*(2*sq[i] + sq[i+1]/2 + sq[i-1]/2)/4;
+            wRight[j] = w*sq[i+1]/8;
+            wLeft[j] = w*sq[i-1]/8;
+            // at the ends the missing neighbor is replaced by the node itself
+            if(i==n-2) {
+                wCenter[j] += wRight[j];
+                wRight[j] = 0;
+            }
+            if(i==1) {
+                wCenter[j] += wLeft[j];
+                wLeft[j] = 0;
+            }
+        }
+    }
+
+    /* Compute all coefficients for areas Sn (now) and Sp (previous sample).
+       s_now interpolates the nasal sqrt areas as before.
+    */
+    private void computeCoefs(Coefs cf, double[] Sn, double[] Sp, double[] SnN, double[] SpN, double s_now) {
+        double[] sq = sqrtScratch;
+        double[] invS15 = invS15Scratch;
+        for(int i=0;i<N;i++) {
+            sq[i] = Math.sqrt(Sn[i]);
+            invS15[i] = 1/(Sn[i]*sq[i]);
+        }
+        computePressureCoefs(Sn,Sp,sq,N,eta,cf.pRatio,cf.pRight,cf.pLeft,cf.pDiff,cf.wCenter,cf.wRight,cf.wLeft);
+        cf.nasalCoupling = etaNasal*velumNasal*SNasal[0]/((2*Sn[iNasal]+Sn[iNasal-1]+Sn[iNasal+1])/4);
+
+        /*
+          Implicit step for pu[i], i= 2,4,...,N-3:
+          q1_i * pu[i] + q2_iL*pu[i-2]+q2_iR*pu[i+2] = u_new_f[i]*pu_old[i]   [eq 3]
+
+          Define T_i = .5/sqrt(S_i)+.25*S_i*[1/(S_i-left)^1.5+1/(S_i+right)^1.5]
+          q1_i = [u_new_f[i] +dt*c*dWall*T_i + (dSecond*eta/h)  * T_i]
+          Define R_i = .5/(S_j)^1.5+.25/(S_j+2)^1.5+.25/(S_j-2)^1.5
+          q2_iL = -[dSecond*eta/(2*h)] * R_i * S_j-2
+          q2_iR = -[dSecond*eta/(2*h)] * R_i * S_j+2
+
+          In the form a(kk)xx(kk-1)  + b(kk)xx(kk) + c(kk)xx(kk+1) = dd(kk), kk = 0,..,nn-1
+          with xx[kk] = pu[2*(kk+1)]. a(0) multiplies the given pu[0] and is moved
+          to the right hand side, c(nn-1) (coupling to pu[N-1]) is left out.
+          u_f[i] = S_i*(1/S_i-1 + 1/S_i+1)/2 (the "+ 1/2" of the derivation evaluated
+          to 0 in integer arithmetic and is left out).
+        */
+        double hagenPossseuilleFactor = 1; // for alternative damping model 1/(10*Snow[i])
+        double q2Factor = hagenPossseuilleFactor*dSecond*multDSecond*eta/(2*h);
+        double q1Factor = dt*c*hagenPossseuilleFactor*dWall*multDWall + dSecond*hagenPossseuilleFactor*multDSecond*eta/h;
+        for(int kk=0;kk<nn;kk++) {
+            int i = 2*(kk+1); // index in usual pu[] array
+            double u_new_factor = Sn[i]*(1/Sn[i-1]+1/Sn[i+1])/2;
+            double T_i = .5/sq[i] + .25*Sn[i]*(invS15[i-2]+invS15[i+2]);
+            double R_i = .5*invS15[i] + .25*(invS15[i-2]+invS15[i+2]);
+            cf.uOld[kk] = Sp[i]*(1/Sp[i-1]+1/Sp[i+1])/2;
+            cf.a[kk] = -q2Factor*R_i*Sn[i-2];
+            cf.c[kk] = -q2Factor*R_i*Sn[i+2];
+            cf.b[kk] = u_new_factor + q1Factor*T_i;
+        }
+        double smallest_S = 1.e40;
+        int narrowest_i = -1;
+        for(int i=2;i<=N-3;i+=2) {
+            if(Sn[i] < smallest_S) {
+                smallest_S = Sn[i];
+                narrowest_i = i;
+            }
+        }
+        cf.smallestS = smallest_S;
+        cf.narrowest = narrowest_i;
+        cf.S0 = Sn[0];
+        cf.SEnd = Sn[N-1];
+        cf.lipGain = dt*c*3*Math.PI*Math.sqrt(Math.PI)/(8*Math.sqrt(lipAreaMultiplier)*sq[N-1]);
+        cf.endLoss = dt*dWall*multDWall*c/sq[N-1];
+
+        // nasal tract
+        for(int i=0;i<NNasal;i++) {
+            sq[i] = Math.sqrt(SnN[i]);
+        }
+        computePressureCoefs(SnN,SpN,sq,NNasal,etaNasal,cf.npRatio,cf.npRight,cf.npLeft,cf.npDiff,
+                             cf.nwCenter,cf.nwRight,cf.nwLeft);
+        // losses use the interpolated sqrt areas
+        double sqrtS_now = (1-s_now)*sqrtSoldNasal[0] + s_now*sqrtSNasal[0];
+        cf.nasalStartLoss = dt*dWall*multDWall*c/sqrtS_now;
+        for(int kk=0;kk<nnNasal;kk++) {
+            sqrtS_now = (1-s_now)*sqrtSoldNasal[2*(kk+1)] + s_now*sqrtSNasal[2*(kk+1)];
+            cf.na[kk] = -dSecond*multDSecond*eta/(2*h*sqrtS_now);
+            cf.nb[kk] = 1+ (dt*c*dWall*multDWall+dSecond*multDSecond*eta/h)/sqrtS_now;
+        }
+        sqrtS_now = (1-s_now)*sqrtSoldNasal[NNasal-1] + s_now*sqrtSNasal[NNasal-1];
+        cf.nasalLipGain = dt*c*3*Math.PI*Math.sqrt(Math.PI)/(8*sqrtS_now);
+        cf.nasalEndLoss = dt*dWall*multDWall*c/sqrtS_now;
+    }
+
     private int filterIMEXCallCounter =0;
     /**
        Uses IMEX Euler as in paper with Uri Ascher
     */
     public void filterIMEX(float [] output, float[] input, int nsamples, int inputOffset) {
+        beginParameters(nsamples);
+        filterBlock(output,input,nsamples);
+        endParameters();
+    }
+
+    /* Compute a block of a buffer set up by beginParameters(). */
+    private void filterBlock(float [] output, float[] input, int nsamples) {
+        int bufsz = beginBlock(input,nsamples);
+        if(solver == SOLVER_SOA) {
+            filterSoA(input,bufsz,staticGeometry);
+        } else if(solver == SOLVER_SOA_FLOAT) {
+            filterSoAFloat(input,bufsz,staticGeometry);
+        } else {
+            for(int k=0;k<bufsz;k++) {
+                stepVocalTract(k);
+                solveVocalTract();
+                stepNasalTract();
+                solveNasalTract();
+                endStep(k);
+            }
+        }
+        endBlock(output,nsamples);
+    }
+
+    /* Set up a buffer: parameters, coefficients and factorization.
+       Returns the number of (oversampled) samples to compute.
+    */
+    int beginBuffer(float[] input, int nsamples) {
+        beginParameters(nsamples);
+        return beginBlock(input,nsamples);
+    }
+
+    /* Finish a buffer set up by beginBuffer(). */
+    void endBuffer(float[] output, int nsamples) {
+        endBlock(output,nsamples);
+        endParameters();
+    }
+
+    /* Once per buffer of nsamples: apply queued parameter changes and
+       start the glottis parameter ramp, which runs over the whole buffer
+       even if it is computed in several blocks.
+    */
+    private void beginParameters(int nsamples) {
+        parameterQueue.drain(this);
         if(twoMassModel!=null) {
             twoMassModel.vars.setVars(); // set begin and end values of interpolated parameteres here
         }
         if(filterIMEXCallCounter<10) {
             filterIMEXCallCounter++;
         }
-        
-        float[] f = input; // force
-        int bufsz = nsamples*overSamplingFactor;
-        if(outBuf.length<bufsz) {
-            outBuf = new double[bufsz];                           
-        }
         // Renolds numbers for noise generation.
-        double r_const=4.78e9; // Re^2 = r_const * S * u^2;
-        double Rec2 = 3500*3500; // from Schroeder&Sondhi
-        double gng = 1.e-4; // gain for noise generation from Schroeder&Sondhi
+        r_const=4.78e9; // Re^2 = r_const * S * u^2;
         if(twoMassModel!=null) {
             r_const = 4*twoMassModel.getVars().rho*twoMassModel.getVars().rho/
                 (Math.PI*twoMassModel.getVars().mu*twoMassModel.getVars().mu);
             rho = twoMassModel.getVars().rho;
         } 
-        
+        // glottis is advanced per sample from here, so time it here if profiled
+        glottisTimer = twoMassModel!=null ? twoMassModel.getTimer() : null;
+        glottisNanos = 0;
+        glottisBufsz = nsamples*overSamplingFactor;
+        glottisOffset = 0;
+    }
+
+    /* Once per buffer of nsamples. */
+    private void endParameters() {
+        if(glottisTimer!=null) {
+            glottisTimer.record(glottisNanos);
+        }
+    }
+
+    /* Set up a block of nsamples, all of the buffer or the part up to a
+       keyframe: coefficients and factorization. Returns the number of
+       (oversampled) samples to compute.
+    */
+    private int beginBlock(float[] input, int nsamples) {
+        stepInput = input; // force
+        int bufsz = nsamples*overSamplingFactor;
+        stepBufsz = bufsz;
+        if(outBuf.length<bufsz) {
+            outBuf = new double[bufsz];                           
+        }
         /*  Area at time indexed  by k is given by (1-spar)S_old
             + spar  * S where spar  = (k+1)/bufsz; (spar  = s_now or
             s_prev). S_old  is value  at begin of  buffer, S  is new
-            value at end of buffer  */
+            value at end of buffer. Everything the solver needs from
+            the areas is in a Coefs set. If the geometry does not
+            change over the buffer it is computed once. Else it is
+            interpolated between the first and last sample if the
+            change is below coefficientTolerance, and computed for
+            every sample if not (or if exactCoefficients is set).  */
+        double change = geometryChange();
+        staticGeometry = change == 0;
+        exactThisBuffer = exactCoefficients || change > coefficientTolerance;
+        geometryStarted = true;
+        if(staticGeometry) {
+            Coefs cur = coefsNow;
+            computeCoefs(cur,S,S,SNasal,SNasal,1);
+            ThomasAlg.factor(cur.a,cur.b,cur.c,vtM,vtInvB,nn);
+            ThomasAlg.factor(cur.na,cur.nb,cur.na,nasalM,nasalInvB,nnNasal);
+        } else if(!exactThisBuffer) {
+            interpolateAreas(0,bufsz);
+            computeCoefs(coefsStart,Snow,Sprev,SnowNasal,SprevNasal,1./bufsz);
+            interpolateAreas(bufsz-1,bufsz);
+            computeCoefs(coefsEnd,Snow,Sprev,SnowNasal,SprevNasal,1.);
+        }
+        return bufsz;
+    }
+
+    /* Finish a block: downsample to output and check stability. */
+    private void endBlock(float[] output, int nsamples) {
+        float[] f = stepInput;
+        for(int i=0;i<N;i++) {
+            Sold[i] = S[i];
+            sqrtSold[i] = sqrtS[i];
+        }
         
-        for(int k=0;k<bufsz;k++) {
-            double s_now = (k+1.)/bufsz; // runs from 0 -1 over sample buffer to interpolate
-            double s_prev = k/((double)bufsz);
+        for(int i=0;i<NNasal;i++) {
+            SoldNasal[i] = SNasal[i];
+            sqrtSoldNasal[i] = sqrtSNasal[i];
+        }
+        glottisOffset += stepBufsz;
+        // downsample
+        int bufsz = nsamples;
+        if(decimator==null) {
+            for(int k=0;k<bufsz;k++) {
+                output[k] = (float)outBuf[k];
+            }
+        } else {
+            decimator.decimate(outBuf,output,bufsz);
+        }
+
+        last_input = f[bufsz-1];
+        sampleTime += nsamples;
+        if(wentUnstable()) {
+            System.out.println("Tube solver went unstable");
+            reset();
+        }
+    }
+
+    private static final double REC2 = 3500*3500; // from Schroeder&Sondhi
+    private static final double GNG = 1.e-4; // gain for noise generation from Schroeder&Sondhi
+    private double r_const;
+    private NodeTimer glottisTimer;
+    private long glottisNanos;
+    private int glottisBufsz,glottisOffset; // oversampled length of the buffer, and where the block starts
+    // state of the buffer being computed, see beginBuffer()
+    private float[] stepInput;
+    private int stepBufsz;
+    private boolean staticGeometry;
+    private Coefs stepCoefs;
+
+    /* Coefficients for sample k of bufsz. */
+    private Coefs coefsAt(int k, int bufsz, boolean staticGeometry) {
+        Coefs cur = coefsNow;
+        if(!staticGeometry) {
+            if(exactThisBuffer) {
+                interpolateAreas(k,bufsz);
+                computeCoefs(cur,Snow,Sprev,SnowNasal,SprevNasal,(k+1.)/bufsz);
+            } else {
+                cur.interpolate(coefsStart,coefsEnd,bufsz>1 ? k/(bufsz-1.) : 0);
+            }
+        }
+        return cur;
+    }
 
-            for(int i=0;i<N;i++) {
-                Snow[i] = (1-s_now)*Sold[i] + s_now*S[i];
-                Sprev[i] = (1-s_prev)*Sold[i] + s_prev*S[i];
+    /* Boundary condition pu[0] at sample k. Interpolate input if oversampling. */
+    private double glottalVelocity(float[] f, int k, int bufsz, double S0) {
+        int k_int = k/overSamplingFactor;
+        double k_fract = ((double)k)/overSamplingFactor - k_int;
+        double u0 = 0;
+        // if using TwoMassModel we get the glottal velocity from there
+        // it runs at srate, hold ug when oversampling
+        if(twoMassModel!=null) {
+            if(k%overSamplingFactor==0) {
+                // to interpolate 2mass model parameters over the buffer
+                double lambda = (glottisOffset+k)/((double)glottisBufsz);
+                if(glottisTimer!=null) {
+                    long t0 = System.nanoTime();
+                    twoMassModel.advance(lambda);
+                    glottisNanos += System.nanoTime()-t0;
+                } else {
+                    twoMassModel.advance(lambda);
+                }
             }
+            u0 = twoMassModel.ug/S0;
+        }
+        // add the input to the filter as ug
+        if(k_int ==0) {
+            u0 += (1-k_fract)*last_input + k_fract*f[k_int];
+        } else {
+            u0 += (1-k_fract)*f[k_int-1] + k_fract*f[k_int];
+        }
+        return u0;
+    }
 
+    /* Noise pressure as in Sondhi-Schroeder at the narrowest point, with uc the
+       velocity there. */
+    private double flowNoise(double uc, double smallest_S) {
+        double Re2 = r_const*smallest_S * uc*uc;
+        if(Re2>REC2) {
+            double Rn = .5* rho*Math.abs(uc)/smallest_S;
+            float rrr = resonFilter.filter1Sample((float)(Math.random()-.5));
+            return GNG*rrr*(Re2-REC2)/Rn;
+        } else {
+            return 0;
+        }
+    }
 
-            for(int i=0;i<NNasal;i++) {
-                SnowNasal[i] = (1-s_now)*SoldNasal[i] + s_now*SNasal[i];
-                SprevNasal[i] = (1-s_prev)*SoldNasal[i] + s_prev*SNasal[i];
+    /* Output sample from pressure and velocity at the lips and nostrils. */
+    private double outputSample(double pLip, double uLip, double SLip, double pNose, double uNose) {
+        double out;
+        if(useLocalPressure) {
+            out = (1-mouthNoseBalance)*pLip*SLip; // N-2 for pressure
+            out += (mouthNoseBalance)*pNose*SNasal[NNasal-1];
+        } else {
+            out = (1-mouthNoseBalance)*uLip*SLip; // N-1 for velocity
+            out += (mouthNoseBalance)*uNose*SNasal[NNasal-1];
+            // differentiate wrt time to get pressure
+            if(!outputVelocity) {
+                newU = out;
+                out = (newU-lastU)*srate*overSamplingFactor;
+                lastU = newU;
             }
-                        
-            double S_now_right=0;
-            double S_now_left=0;
-            double S_now=0;
-            double S_prev=0;
-            double S_prev_left=0;
-            double S_prev_right=0;
-            double S_now_4pt;
-            double S_prev_4pt;
-            double sqrtS_now=0;
-            double zWall4pt;
+        }
+        return out;
+    }
 
-            double pnoise = 0,toadd=0;
+    /*
+      Solver on the interleaved grid pu[] (p on odd, u on even points),
+      one sample k in steps. Each implicit velocity step leaves its right
+      hand side in dd[] for solveVocalTract() and solveNasalTract(); TubeChoir
+      solves these for all voices together instead.
+    */
 
-            //pressures in VT
+    /* Explicit pressure, wall and velocity step of the VT. */
+    void stepVocalTract(int k) {
+        Coefs cur = coefsAt(k,stepBufsz,staticGeometry);
+        stepCoefs = cur;
+
+        //pressures in VT
+        double[] pRatio = cur.pRatio, pRight = cur.pRight, pLeft = cur.pLeft, pDiff = cur.pDiff;
+        double[] wCenter = cur.wCenter, wRight = cur.wRight, wLeft = cur.wLeft;
+        for(int i=1,j=0;i<=N-2;i+=2,j++) {
+            // wall velocity is defined only on pressure nodes, neighbors are averaged in
+            double zWallRight = i<N-2 ? zWall[i+2] : 0;
+            double zWallLeft = i>1 ? zWall[i-2] : 0;
+            pu[i] = pRatio[j]*pu[i] - (pRight[j]*pu[i+1] - pLeft[j]*pu[i-1]) - pDiff[j]
+                - (wCenter[j]*zWall[i] + wRight[j]*zWallRight + wLeft[j]*zWallLeft);
+        }
+        pu[iNasal] -= cur.nasalCoupling*puNasal[0];
+        //pressures in NT
+        pRatio = cur.npRatio; pRight = cur.npRight; pLeft = cur.npLeft; pDiff = cur.npDiff;
+        wCenter = cur.nwCenter; wRight = cur.nwRight; wLeft = cur.nwLeft;
+        for(int i=1,j=0;i<=NNasal-2;i+=2,j++) {
+            double zWallRight = i<NNasal-2 ? zWallNasal[i+2] : 0;
+            double zWallLeft = i>1 ? zWallNasal[i-2] : 0;
+            puNasal[i] = pRatio[j]*puNasal[i] - (pRight[j]*puNasal[i+1] - pLeft[j]*puNasal[i-1]) - pDiff[j]
+                - (wCenter[j]*zWallNasal[i] + wRight[j]*zWallRight + wLeft[j]*zWallLeft);
+        }
+
+        // wall parameters VT
+        double invWallDen = 1/(MWall+dt*BWall);
+        if(wallPressureCoupling>1.e-6) { // to prevent underflow don't update if turned off
             for(int i=1;i<=N-2;i+=2) {
-                S_now = Snow[i];
-                S_prev = Sprev[i];
-                S_prev_right = /*(i==N-2?lipAreaMultiplier:1)**/Sprev[i+1];
-                S_prev_left = Sprev[i-1];
-                S_now_right = /*(i==N-2?lipAreaMultiplier:1)**/Snow[i+1];
-                S_now_left = Snow[i-1];
-                S_now_4pt = (2*S_now+S_now_left+S_now_right)/4;
-                S_prev_4pt = (2*S_prev+S_prev_left+S_prev_right)/4;
-                if(i==iNasal) {
-                    pu[i] =  (S_prev_4pt/S_now_4pt)*pu[i]-eta*(S_now_right*pu[i+1] - S_now_left*pu[i-1])/S_now_4pt
-                        -etaNasal*velumNasal*SNasal[0]*puNasal[0]/S_now_4pt;
-                } else {
-                    pu[i] =  (S_prev_4pt/S_now_4pt)*pu[i]-eta*(S_now_right*pu[i+1] - S_now_left*pu[i-1])/S_now_4pt;
-                }
-                // interpolate neighbors as z defined only on pressure nodes
-                zWall4pt = (2*Math.sqrt(S_now)*zWall[i] + Math.sqrt(S_now_right)*(zWall[i]+ (i<N-2 ? zWall[i+2]:zWall[i]))/2
-                            + Math.sqrt(S_now_left)*(zWall[i]+ (i>1 ? zWall[i-2]:zWall[i]))/2)/4;
-                pu[i] =  pu[i] - (S_now-S_prev)/S_now_4pt - dt* zWall4pt * 2*Math.sqrt(Math.PI)/S_now_4pt;
+                yWall[i] += dt * zWall[i];
+                zWall[i] = (MWall*zWall[i] + wallPressureCoupling*dt*pu[i] - dt*KWall*yWall[i])*invWallDen;
+                //zWall[i] = zWall[i]*(1- dt*BWall/MWall)+ (wallPressureCoupling*dt*pu[i] - dt*KWall*yWall[i])/MWall;
             }
-            //pressures in NT
+            // wall parameters Nasal tract
             for(int i=1;i<=NNasal-2;i+=2) {
-                S_now = SnowNasal[i];
-                S_prev = SprevNasal[i];
-                S_prev_right = SprevNasal[i+1];
-                S_prev_left = SprevNasal[i-1];
-                S_now_right = SnowNasal[i+1];
-                S_now_left = SnowNasal[i-1];
-                S_now_4pt = (2*S_now+S_now_left+S_now_right)/4;
-                S_prev_4pt = (2*S_prev+S_prev_left+S_prev_right)/4;
-                puNasal[i] =  (S_prev_4pt/S_now_4pt)*puNasal[i]-etaNasal*
-                    (S_now_right*puNasal[i+1] - S_now_left*puNasal[i-1])/S_now_4pt;
-                zWall4pt = (2*Math.sqrt(S_now)*zWallNasal[i] + Math.sqrt(S_now_right)*(zWallNasal[i]+(i<(NNasal-2) ? zWallNasal[i+2]:zWallNasal[i]))/2
-                            + Math.sqrt(S_now_left)*(zWallNasal[i]+ (i>1 ? zWallNasal[i-2]:zWallNasal[i]))/2)/4;
-                puNasal[i] =  puNasal[i] - (S_now-S_prev)/S_now_4pt - dt*zWall4pt* 2*Math.sqrt(Math.PI)/S_now_4pt;
-            }
-
-            // wall parameters VT
-            if(wallPressureCoupling>1.e-6) { // to prevent underflow don't update if turned off
-                for(int i=1;i<=N-2;i+=2) {
-                    yWall[i] += dt * zWall[i];
-                    zWall[i] = (MWall*zWall[i] + wallPressureCoupling*dt*pu[i] - dt*KWall*yWall[i])/(MWall+dt*BWall);
-                    //zWall[i] = zWall[i]*(1- dt*BWall/MWall)+ (wallPressureCoupling*dt*pu[i] - dt*KWall*yWall[i])/MWall;
+                yWallNasal[i] += dt * zWallNasal[i];
+                zWallNasal[i] = (MWall*zWallNasal[i] + wallPressureCoupling*dt*puNasal[i]-dt*KWall*yWallNasal[i])*invWallDen;
+            }
+        }
+
+        // velocities VT. Interpolate input (boundary condition on pu[0]) if oversampling
+        // save old velocities
+        for(int i=0;i<=N-2;i+=2) {
+            pu_old[i] = pu[i];
+        }
+        pu[0] = glottalVelocity(stepInput,k,stepBufsz,cur.S0);
+        
+        /*
+          Explicit step for velocities, then implicit step for the
+          damping (splitting to deal with possibly large damping):
+          q1_i * pu[i] + q2_iL*pu[i-2]+q2_iR*pu[i-2] = u_new_f[i]*pu_old[i]   [eq 3]
+          for i= 2,4,...,N-3, where pu[0] and pu[N-1] can be considered given.
+          See computeCoefs() for the matrix. The explicit step is folded into
+          the right hand side dd(i) = u_new_f*pu[i] = u_old_f*pu[i] - eta*(pu[i+1]-pu[i-1]).
+          Unknowns are stored as xx[kk] = pu[2*(kk+1)], kk=0,...,nn-1.
+        */
+        double[] uOld = cur.uOld;
+        for(int kk=0;kk<nn;kk++) {
+            int i = 2*(kk+1); // index in usual pu[] array
+            dd[kk] = uOld[kk]*pu[i] - eta*(pu[i+1] - pu[i-1]);
+        }
+        dd[0] -= cur.a[0]*pu[0]; // a[0] couples pu[0], it is not used by the solver
+    }
+
+    private void solveVocalTract() {
+        Coefs cur = stepCoefs;
+        if(staticGeometry) {
+            ThomasAlg.solveFactored(vtM,vtInvB,cur.c,dd,nn);
+        } else {
+            ThomasAlg.thomas(cur.a,cur.b,cur.c,dd,nn);// now dd holds xx, b destroyed
+        }
+    }
+
+    /* Take VT velocities from dd[], lips, explicit step of the NT. */
+    void stepNasalTract() {
+        Coefs cur = stepCoefs;
+        for(int kk=0;kk<nn;kk++) {
+            pu[2*(kk+1)] = dd[kk];
+        }
+        
+        // add noise as in Sondhi-Schroeder
+        int narrowest_i = cur.narrowest;
+        pu[narrowest_i] += flowNoise((pu[narrowest_i]+pu_old[narrowest_i])/2,cur.smallestS);
+            
+        if(useLipModel) {
+            u_N2 = u_N2 + cur.lipGain*pu[N-2];
+            pu[N-1] = u_N2 + (9*Math.PI*Math.PI/128)*pu[N-2];
+        } else {
+            pu[N-1] = pu[N-1] - eta*( - pu[N-2]);
+            pu[N-1] = pu[N-1]/(1+cur.endLoss);
+        }
+
+        // velocities NT. 
+
+        //use splitting to deal with (possibly large) damping
+
+        puNasal[0] = puNasal[0] - etaNasal*(puNasal[0+1] - velumNasal*pu[iNasal]);
+        puNasal[0] = puNasal[0]/(1+cur.nasalStartLoss);
+        
+        for(int i=2;i<=NNasal-3;i+=2) {
+            // area factors as in the VT are left out here (bizarre bug)
+            puNasal[i] = puNasal[i] - etaNasal*(puNasal[i+1] - puNasal[i-1]);
+        }
+
+        //////////////////////////////////////////////////////////////////////////
+        // Nasal tract losses
+        for(int kk=0;kk<nnNasal;kk++) {
+            dd[kk] = puNasal[2*(kk+1)];
+        }
+        dd[0] -= cur.na[0]*puNasal[2];
+    }
+
+    private void solveNasalTract() {
+        Coefs cur = stepCoefs;
+        if(staticGeometry) {
+            ThomasAlg.solveFactored(nasalM,nasalInvB,cur.na,dd,nnNasal);
+        } else {
+            ThomasAlg.thomas(cur.na,cur.nb,cur.na,dd,nnNasal);// now dd holds xx, nb destroyed
+        }
+    }
+
+    /* Take NT velocities from dd[], nostrils and output sample. */
+    void endStep(int k) {
+        Coefs cur = stepCoefs;
+        for(int kk=0;kk<nnNasal;kk++) {
+            puNasal[2*(kk+1)] = dd[kk];
+        }
+        ///////////////////////////////////////////////////////////////////////////
+        
+        if(useLipModel) {
+            u_N2_nose = u_N2_nose + cur.nasalLipGain*puNasal[NNasal-2];
+            puNasal[NNasal-1] = u_N2_nose + (9*Math.PI*Math.PI/128)*puNasal[NNasal-2];
+            
+        } else {
+            puNasal[NNasal-1] = puNasal[NNasal-1] - etaNasal*( - puNasal[NNasal-2]) - cur.nasalEndLoss*puNasal[NNasal-1];
+            puNasal[NNasal-1] = puNasal[NNasal-1]/(1+cur.nasalEndLoss);
+        }
+
+        outBuf[k] = outputSample(pu[N-2],pu[N-1],cur.SEnd,puNasal[NNasal-2],puNasal[NNasal-1]);
+    }
+
+    /* Access to the implicit velocity steps for TubeChoir. Element kk of the
+       system of this voice goes to kk*m+v (see ThomasAlg.thomasBatch()). */
+
+    boolean isStepStatic() {
+        return staticGeometry;
+    }
+
+    void gatherMatrix(boolean nasal, double[] a, double[] b, double[] c, int m, int v) {
+        Coefs cur = stepCoefs;
+        int n = nasal ? nnNasal : nn;
+        double[] ca = nasal ? cur.na : cur.a;
+        double[] cb = nasal ? cur.nb : cur.b;
+        double[] cc = nasal ? cur.na : cur.c;
+        for(int kk=0;kk<n;kk++) {
+            a[kk*m+v] = ca[kk];
+            b[kk*m+v] = cb[kk];
+            c[kk*m+v] = cc[kk];
+        }
+    }
+
+    void gatherFactors(boolean nasal, double[] mult, double[] invb, double[] c, int m, int v) {
+        int n = nasal ? nnNasal : nn;
+        double[] cm = nasal ? nasalM : vtM;
+        double[] ci = nasal ? nasalInvB : vtInvB;
+        double[] cc = nasal ? stepCoefs.na : stepCoefs.c;
+        for(int kk=0;kk<n;kk++) {
+            mult[kk*m+v] = cm[kk];
+            invb[kk*m+v] = ci[kk];
+            c[kk*m+v] = cc[kk];
+        }
+    }
+
+    void gatherRhs(boolean nasal, double[] d, int m, int v) {
+        int n = nasal ? nnNasal : nn;
+        for(int kk=0;kk<n;kk++) {
+            d[kk*m+v] = dd[kk];
+        }
+    }
+
+    void scatterSolution(boolean nasal, double[] d, int m, int v) {
+        int n = nasal ? nnNasal : nn;
+        for(int kk=0;kk<n;kk++) {
+            dd[kk] = d[kk*m+v];
+        }
+    }
+
+    /*
+      Same solver with pressures and velocities in separate contiguous
+      arrays (p[j] = pu[2j+1], u[j] = pu[2j]) and the wall velocity padded
+      with a zero on both ends, so the explicit updates are unit stride
+      loops without branches, which the JIT compiles to SIMD
+      instructions. State is copied in and out of pu[] etc. once per
+      buffer.
+    */
+    private void filterSoA(float[] f, int bufsz, boolean staticGeometry) {
+        double[] p = pSoA, u = uSoA, uPrev = uPrevSoA, z = zSoA, y = ySoA;
+        double[] pN = pNasalSoA, uN = uNasalSoA, zN = zNasalSoA, yN = yNasalSoA;
+        int np = (N-1)/2, nu = (N+1)/2; // number of pressure and velocity points
+        int npN = (NNasal-1)/2, nuN = (NNasal+1)/2;
+        int jNasal = (iNasal-1)/2;
+        for(int j=0;j<np;j++) {
+            p[j] = pu[2*j+1];
+            z[j+1] = zWall[2*j+1];
+            y[j] = yWall[2*j+1];
+        }
+        for(int j=0;j<nu;j++) {
+            u[j] = pu[2*j];
+        }
+        for(int j=0;j<npN;j++) {
+            pN[j] = puNasal[2*j+1];
+            zN[j+1] = zWallNasal[2*j+1];
+            yN[j] = yWallNasal[2*j+1];
+        }
+        for(int j=0;j<nuN;j++) {
+            uN[j] = puNasal[2*j];
+        }
+        double invWallDen = 1/(MWall+dt*BWall);
+        double wallGain = wallPressureCoupling*dt;
+        double wallSpring = dt*KWall;
+        boolean wallOn = wallPressureCoupling>1.e-6; // to prevent underflow don't update if turned off
+
+        for(int k=0;k<bufsz;k++) {
+            Coefs cur = coefsAt(k,bufsz,staticGeometry);
+
+            //pressures in VT
+            double[] pRatio = cur.pRatio, pRight = cur.pRight, pLeft = cur.pLeft, pDiff = cur.pDiff;
+            double[] wCenter = cur.wCenter, wRight = cur.wRight, wLeft = cur.wLeft;
+            for(int j=0;j<np;j++) {
+                p[j] = pRatio[j]*p[j] - (pRight[j]*u[j+1] - pLeft[j]*u[j]) - pDiff[j]
+                    - (wCenter[j]*z[j+1] + wRight[j]*z[j+2] + wLeft[j]*z[j]);
+            }
+            p[jNasal] -= cur.nasalCoupling*uN[0];
+            pu[1] = p[0]; // read by the TwoMassModel through getPressure()
+            //pressures in NT
+            pRatio = cur.npRatio; pRight = cur.npRight; pLeft = cur.npLeft; pDiff = cur.npDiff;
+            wCenter = cur.nwCenter; wRight = cur.nwRight; wLeft = cur.nwLeft;
+            for(int j=0;j<npN;j++) {
+                pN[j] = pRatio[j]*pN[j] - (pRight[j]*uN[j+1] - pLeft[j]*uN[j]) - pDiff[j]
+                    - (wCenter[j]*zN[j+1] + wRight[j]*zN[j+2] + wLeft[j]*zN[j]);
+            }
+
+            // walls
+            if(wallOn) {
+                for(int j=0;j<np;j++) {
+                    y[j] += dt * z[j+1];
+                    z[j+1] = (MWall*z[j+1] + wallGain*p[j] - wallSpring*y[j])*invWallDen;
                 }
-                // wall parameters Nasal tract
-                for(int i=1;i<=NNasal-2;i+=2) {
-                    yWallNasal[i] += dt * zWallNasal[i];
-                    zWallNasal[i] = (MWall*zWallNasal[i] + wallPressureCoupling*dt*puNasal[i]-dt*KWall*yWallNasal[i])/(MWall+dt*BWall);
+                for(int j=0;j<npN;j++) {
+                    yN[j] += dt * zN[j+1];
+                    zN[j+1] = (MWall*zN[j+1] + wallGain*pN[j] - wallSpring*yN[j])*invWallDen;
                 }
             }
 
-            // velocities VT. Interpolate input (boundary condition on pu[0]) if oversampling
-            // save old velocities
-            for(int i=0;i<=N-2;i+=2) {
-                pu_old[i] = pu[i];
+            // velocities VT, see filterInterleaved()
+            System.arraycopy(u,0,uPrev,0,nu-1);
+            u[0] = glottalVelocity(f,k,bufsz,cur.S0);
+            double[] uOld = cur.uOld;
+            for(int kk=0;kk<nn;kk++) {
+                dd[kk] = uOld[kk]*u[kk+1] - eta*(p[kk+1] - p[kk]);
             }
-            int k_int = k/overSamplingFactor;
-            double k_fract = ((double)k)/overSamplingFactor - k_int;
-            pu[0] = 0;
-            // if using TwoMassModel we get the glottal velocity from there
-            // Note oversamplingfactor has to be 1 then!
-            if(twoMassModel!=null) {
-                double lambda = k/((double)bufsz); // to interpolate 2mass model parameters
-                twoMassModel.advance(lambda);
-                pu[0] = twoMassModel.ug/Snow[0];
+            dd[0] -= cur.a[0]*u[0];
+            if(staticGeometry) {
+                ThomasAlg.solveFactored(vtM,vtInvB,cur.c,dd,nn);
+            } else {
+                ThomasAlg.thomas(cur.a,cur.b,cur.c,dd,nn);
             }
-            // add the input to the filter as ug
-            if(k_int ==0) { // oversampling
-                pu[0] += (1-k_fract)*last_input + k_fract*f[k_int];
-            } else { // not oversampling (a MUST for TwoMassModel!)
-                pu[0] += (1-k_fract)*f[k_int-1] + k_fract*f[k_int];
+            System.arraycopy(dd,0,u,1,nn);
+
+            // add noise as in Sondhi-Schroeder
+            int jNarrowest = cur.narrowest/2;
+            u[jNarrowest] += flowNoise((u[jNarrowest]+uPrev[jNarrowest])/2,cur.smallestS);
+
+            if(useLipModel) {
+                u_N2 = u_N2 + cur.lipGain*p[np-1];
+                u[nu-1] = u_N2 + (9*Math.PI*Math.PI/128)*p[np-1];
+            } else {
+                u[nu-1] = u[nu-1] - eta*( - p[np-1]);
+                u[nu-1] = u[nu-1]/(1+cur.endLoss);
             }
-            
-            //use splitting below to deal with (possibly large) damping
-            for(int i=2;i<=N-3;i+=2) {
-                S_now = Snow[i];
-                S_prev = Sprev[i];
-                S_prev_right = Sprev[i+1];
-                S_prev_left = Sprev[i-1];
-                S_now_right = Snow[i+1];
-                S_now_left = Snow[i-1];
-                double u_old_factor = (S_prev*(1/S_prev_left+1/S_prev_right)/2 + 1/2);
-                double u_new_factor = (S_now*(1/S_now_left+1/S_now_right)/2 + 1/2);
 
-                pu[i] = (u_old_factor/u_new_factor)*pu[i] - eta*(pu[i+1] - pu[i-1])/u_new_factor;
+            // velocities NT
+            uN[0] = uN[0] - etaNasal*(pN[0] - velumNasal*p[jNasal]);
+            uN[0] = uN[0]/(1+cur.nasalStartLoss);
+            for(int j=1;j<nuN-1;j++) {
+                uN[j] = uN[j] - etaNasal*(pN[j] - pN[j-1]);
+            }
+            // Nasal tract losses
+            System.arraycopy(uN,1,dd,0,nnNasal);
+            dd[0] -= cur.na[0]*uN[1];
+            if(staticGeometry) {
+                ThomasAlg.solveFactored(nasalM,nasalInvB,cur.na,dd,nnNasal);
+            } else {
+                ThomasAlg.thomas(cur.na,cur.nb,cur.na,dd,nnNasal);
             }
+            System.arraycopy(dd,0,uN,1,nnNasal);
 
-            //pu[N-1] = pu[N-1] - eta*(0 - pu[N-2]);
-            
-            double smallest_S = 1.e40;
-            int narrowest_i = -1;
-            for(int i=2;i<=N-3;i+=2) {
-                S_now = Snow[i];
-                if(S_now < smallest_S) {
-                    smallest_S = S_now;
-                    narrowest_i = i;
-                }
+            if(useLipModel) {
+                u_N2_nose = u_N2_nose + cur.nasalLipGain*pN[npN-1];
+                uN[nuN-1] = u_N2_nose + (9*Math.PI*Math.PI/128)*pN[npN-1];
+            } else {
+                uN[nuN-1] = uN[nuN-1] - etaNasal*( - pN[npN-1]) - cur.nasalEndLoss*uN[nuN-1];
+                uN[nuN-1] = uN[nuN-1]/(1+cur.nasalEndLoss);
             }
 
-            /*
-              Implicit step for pu[i] is now for i= 2,4,...,N-3
-              q1_i * pu[i] + q2_iL*pu[i-2]+q2_iR*pu[i-2] = u_new_f[i]*pu_old[i]   [eq 3]
-              where pu[0] and pu[N-1] can be considered given. u_new and u_old are functions of the area function
-              as given above.
+            outBuf[k] = outputSample(p[np-1],u[nu-1],cur.SEnd,pN[npN-1],uN[nuN-1]);
+        }
+
+        for(int j=0;j<np;j++) {
+            pu[2*j+1] = p[j];
+            zWall[2*j+1] = z[j+1];
+            yWall[2*j+1] = y[j];
+        }
+        for(int j=0;j<nu;j++) {
+            pu[2*j] = u[j];
+        }
+        for(int j=0;j<nu-1;j++) {
+            pu_old[2*j] = uPrev[j];
+        }
+        for(int j=0;j<npN;j++) {
+            puNasal[2*j+1] = pN[j];
+            zWallNasal[2*j+1] = zN[j+1];
+            yWallNasal[2*j+1] = yN[j];
+        }
+        for(int j=0;j<nuN;j++) {
+            puNasal[2*j] = uN[j];
+        }
+    }
+
+    /* When the tube decays to silence the state becomes denormal in
+       single precision long before it does in double, which makes float
+       arithmetic very slow on most CPUs. State below TINY is set to 0 at
+       the start of each buffer. */
+    private static final double TINY = 1.e-30;
 
-              Define T_i = .5/sqrt(S_i)+.25*S_i*[1/(S_i-left)^1.5+1/(S_i+right)^1.5]
-              q1_i = [u_new_f[i] +dt*c*dWall*T_i + (dSecond*eta/h)  * T_i]
-              Define R_i = .5/(S_j)^1.5+.25/(S_j+2)^1.5+.25/(S_j-2)^1.5
-              q2_iL = -[dSecond*eta/(2*h)] * R_i * S_j-2
-              q2_iR = -[dSecond*eta/(2*h)] * R_i * S_j+2
+    private static float flushTiny(double x) {
+        return Math.abs(x) < TINY ? 0 : (float)x;
+    }
 
-              Let us now stuff pu-array elements 2,4,...,N-3 in a vector xx[i] i=0,...,nn-1 with nn = (N-3)/2,
-              so we have xx[k/2-1] = pu[k] for k = 2,4,...,N-3,
-              and pu[2*(i+1)] = x[i] for i = 0,...,nn-1.
+    /*
+      filterSoA() in single precision. Coefficients are computed in double
+      precision by beginBuffer() and rounded once per buffer, or
+      interpolated in single precision between the rounded first and last
+      sample of the buffer.
+    */
+    private void filterSoAFloat(float[] f, int bufsz, boolean staticGeometry) {
+        float[] p = pF, u = uF, uPrev = uPrevF, z = zF, y = yF;
+        float[] pN = pNasalF, uN = uNasalF, zN = zNasalF, yN = yNasalF;
+        float[] ddf = ddF;
+        int np = (N-1)/2, nu = (N+1)/2; // number of pressure and velocity points
+        int npN = (NNasal-1)/2, nuN = (NNasal+1)/2;
+        int jNasal = (iNasal-1)/2;
+        for(int j=0;j<np;j++) {
+            p[j] = flushTiny(pu[2*j+1]);
+            z[j+1] = flushTiny(zWall[2*j+1]);
+            y[j] = flushTiny(yWall[2*j+1]);
+        }
+        for(int j=0;j<nu;j++) {
+            u[j] = flushTiny(pu[2*j]);
+        }
+        for(int j=0;j<npN;j++) {
+            pN[j] = flushTiny(puNasal[2*j+1]);
+            zN[j+1] = flushTiny(zWallNasal[2*j+1]);
+            yN[j] = flushTiny(yWallNasal[2*j+1]);
+        }
+        for(int j=0;j<nuN;j++) {
+            uN[j] = flushTiny(puNasal[2*j]);
+        }
+        float etaF = (float)eta, etaNasalF = (float)etaNasal, dtF = (float)dt, MWallF = (float)MWall;
+        float invWallDen = (float)(1/(MWall+dt*BWall));
+        float wallGain = (float)(wallPressureCoupling*dt);
+        float wallSpring = (float)(dt*KWall);
+        boolean wallOn = wallPressureCoupling>1.e-6; // to prevent underflow don't update if turned off
+        if(staticGeometry) {
+            floatNow.set(coefsNow);
+            FloatCoefs.copy(vtMF,vtM);
+            FloatCoefs.copy(vtInvBF,vtInvB);
+            FloatCoefs.copy(nasalMF,nasalM);
+            FloatCoefs.copy(nasalInvBF,nasalInvB);
+        } else if(!exactThisBuffer) {
+            floatStart.set(coefsStart);
+            floatEnd.set(coefsEnd);
+        }
 
-              Now write eq. [3] in the form
+        for(int k=0;k<bufsz;k++) {
+            Coefs cur = coefsNow;
+            FloatCoefs fc = floatNow;
+            if(!staticGeometry) {
+                if(exactThisBuffer) {
+                    cur = coefsAt(k,bufsz,false);
+                    fc.set(cur);
+                } else {
+                    double s = bufsz>1 ? k/(bufsz-1.) : 0;
+                    cur.interpolateScalars(coefsStart,coefsEnd,s);
+                    fc.interpolate(floatStart,floatEnd,(float)s);
+                }
+            }
 
-              aa(i)xx(i-1)  + bb(i)xx(i) + cc(i)xx(i+1) = dd(i),    i = 0,..,nn-1
-              aa(0) = 0 and cc(nn-1) = 0. (Note that xx(-1) and xx(nn) are unused.)
+            //pressures in VT
+            float[] pRatio = fc.pRatio, pRight = fc.pRight, pLeft = fc.pLeft, pDiff = fc.pDiff;
+            float[] wCenter = fc.wCenter, wRight = fc.wRight, wLeft = fc.wLeft;
+            for(int j=0;j<np;j++) {
+                p[j] = pRatio[j]*p[j] - (pRight[j]*u[j+1] - pLeft[j]*u[j]) - pDiff[j]
+                    - (wCenter[j]*z[j+1] + wRight[j]*z[j+2] + wLeft[j]*z[j]);
+            }
+            p[jNasal] -= cur.nasalCoupling*uN[0];
+            pu[1] = p[0]; // read by the TwoMassModel through getPressure()
+            //pressures in NT
+            pRatio = fc.npRatio; pRight = fc.npRight; pLeft = fc.npLeft; pDiff = fc.npDiff;
+            wCenter = fc.nwCenter; wRight = fc.nwRight; wLeft = fc.nwLeft;
+            for(int j=0;j<npN;j++) {
+                pN[j] = pRatio[j]*pN[j] - (pRight[j]*uN[j+1] - pLeft[j]*uN[j]) - pDiff[j]
+                    - (wCenter[j]*zN[j+1] + wRight[j]*zN[j+2] + wLeft[j]*zN[j]);
+            }
 
-              We have
+            // walls
+            if(wallOn) {
+                for(int j=0;j<np;j++) {
+                    y[j] += dtF * z[j+1];
+                    z[j+1] = (MWallF*z[j+1] + wallGain*p[j] - wallSpring*y[j])*invWallDen;
+                }
+                for(int j=0;j<npN;j++) {
+                    yN[j] += dtF * zN[j+1];
+                    zN[j+1] = (MWallF*zN[j+1] + wallGain*pN[j] - wallSpring*yN[j])*invWallDen;
+                }
+            }
 
-              dd(i) = pu_old[2*(i+1)]*u_new_f[2*(i+1)] for i=1,...,nn-2
-              dd(0) = pu_old[2]*u_new_f[2] - q2_2L * pu[0]
-              dd(nn-1) = pu_old[N-3]*u_old_f[N-3] // (- q2_{N-3} * pu[N-1] * u_new_f[N-1] --> leave out)
-              bb(i) = q1_i        i=0,...,nn-1
-              aa(i) = q2_iL
-              cc(i) = q2_iR except
-              aa(0) = cc(nn-1) = 0.
-       
-            */
-            double hagenPossseuilleFactor = 1; // for alternative damping model
-            for(int kk=0;kk<nn;kk++) {
-                int i = 2*(kk+1); // index in usual pu[] array
-                // hagenPossseuilleFactor = 1/(10*Snow[i]); uncommnet for Hagen-Poseuille model for damping
-                double u_old_factor = (Sprev[i]*(1/Sprev[i-1]+1/Sprev[i+1])/2 + 1/2);
-                double u_new_factor = (Snow[i]*(1/Snow[i-1]+1/Snow[i+1])/2 + 1/2);
-                double T_i = .5/Math.sqrt(Snow[i]) + .25*Snow[i]*
-                    (1/(Snow[i-2]*Math.sqrt(Snow[i-2]))+1/(Snow[i+2]*Math.sqrt(Snow[i+2])) );
-                double R_i = .5/(Snow[i]*Math.sqrt(Snow[i])) + .25*
-                    (1/(Snow[i-2]*Math.sqrt(Snow[i-2]))+1/(Snow[i+2]*Math.sqrt(Snow[i+2]))) ;
-
-                //sqrtS_now = (1-s_now)*sqrtSold[i] + s_now*sqrtS[i];
-                dd[kk] = pu[2*(kk+1)] * u_new_factor;
-                aa[kk] = -(hagenPossseuilleFactor*dSecond*multDSecond*eta/(2*h)) * R_i*Snow[i-2];
-                cc[kk] = -(hagenPossseuilleFactor*dSecond*multDSecond*eta/(2*h)) * R_i*Snow[i+2];
-                bb[kk] = u_new_factor + (dt*c*hagenPossseuilleFactor*dWall*multDWall+
-                                         dSecond*hagenPossseuilleFactor*multDSecond*eta/h)*T_i;
-            }
-            //sqrtS_now = (1-s_now)*sqrtSold[2] + s_now*sqrtS[2];
-            //dd[0] -= -(dSecond*multDSecond*eta/(2*h*sqrtS_now ))*pu[2];
-            double R_2 = .5/(Snow[2]*Math.sqrt(Snow[2])) + .25*
-                (1/(Snow[2-2]*Math.sqrt(Snow[2-2]))+1/(Snow[2+2]*Math.sqrt(Snow[2+2]))) ;
-            dd[0] -= -(hagenPossseuilleFactor*dSecond*multDSecond*eta/(2*h)) * R_2*Snow[2-2] * pu[0];
-            //sqrtS_now = (1-s_now)*sqrtSold[N-3] + s_now*sqrtS[N-3];
-            //dd[nn-1] -=  -(dSecond*multDSecond*eta/(h*sqrtS_now ))*pu[N-1];
-            aa[0]=0; // actually unused...
-            cc[nn-1]=0; // actually unused...
-            ThomasAlg.thomas(aa,bb,cc,dd,nn);// now dd holds xx
+            // velocities VT, see filterInterleaved()
+            System.arraycopy(u,0,uPrev,0,nu-1);
+            u[0] = (float)glottalVelocity(f,k,bufsz,cur.S0);
+            float[] uOld = fc.uOld;
             for(int kk=0;kk<nn;kk++) {
-                pu[2*(kk+1)] = dd[kk];
+                ddf[kk] = uOld[kk]*u[kk+1] - etaF*(p[kk+1] - p[kk]);
             }
-            
-            // add noise as in Sondhi-Schroeder
-            double noise_toadd = 0;
-            double uc = (pu[narrowest_i]+pu_old[narrowest_i])/2;
-            double Re2 = r_const*smallest_S * uc*uc;
-            if(Re2>Rec2) {
-                double Rn = .5* rho*Math.abs(uc)/smallest_S;
-                float rrr = resonFilter.filter1Sample((float)(Math.random()-.5));
-                pnoise = gng*rrr*(Re2-Rec2)/Rn;
+            ddf[0] -= fc.a[0]*u[0];
+            if(staticGeometry) {
+                ThomasAlg.solveFactored(vtMF,vtInvBF,fc.c,ddf,nn);
             } else {
-                pnoise = 0;
+                ThomasAlg.thomas(fc.a,fc.b,fc.c,ddf,nn);
             }
-            noise_toadd = pnoise;
-            pu[narrowest_i] += noise_toadd;
-                
-            //kees wrong? sqrtS_now = (1-s_now)*sqrtSold[N-1] + s_now*sqrtS[N-1];
-            sqrtS_now = Math.sqrt(Snow[N-1]);
+            System.arraycopy(ddf,0,u,1,nn);
+
+            // add noise as in Sondhi-Schroeder
+            int jNarrowest = cur.narrowest/2;
+            u[jNarrowest] += flowNoise((u[jNarrowest]+uPrev[jNarrowest])/2,cur.smallestS);
+
             if(useLipModel) {
-                u_N2 = u_N2 + dt*c*3*Math.PI*Math.sqrt(Math.PI)*pu[N-2]/(8*Math.sqrt(lipAreaMultiplier)*sqrtS_now);
-                pu[N-1] = u_N2 + (9*Math.PI*Math.PI/128)*pu[N-2];
-                //pu[N-1] = u_N2 + (9*Math.PI*Math.PI/128)*pu[N-2] - eta*( - pu[N-2]);
-                //pu[N-1] = pu[N-1]/(1+dt*dWall*multDWall*c/sqrtS_now);
+                u_N2 = u_N2 + cur.lipGain*p[np-1];
+                u[nu-1] = (float)(u_N2 + (9*Math.PI*Math.PI/128)*p[np-1]);
             } else {
-                pu[N-1] = pu[N-1] - eta*( - pu[N-2]);
-                pu[N-1] = pu[N-1]/(1+dt*dWall*multDWall*c/sqrtS_now);
+                u[nu-1] = u[nu-1] - etaF*( - p[np-1]);
+                u[nu-1] = (float)(u[nu-1]/(1+cur.endLoss));
             }
 
-            if(useLocalPressure) {
-                outBuf[k] = (1-mouthNoseBalance)*pu[N-2]*Snow[N-1]; // N-2 for pressure
-            } else {
-                outBuf[k] = (1-mouthNoseBalance)*pu[N-1]*Snow[N-1]; // N-1 for velocity
+            // velocities NT
+            uN[0] = (float)((uN[0] - etaNasal*(pN[0] - velumNasal*p[jNasal]))/(1+cur.nasalStartLoss));
+            for(int j=1;j<nuN-1;j++) {
+                uN[j] = uN[j] - etaNasalF*(pN[j] - pN[j-1]);
             }
-            // velocities NT. 
-
-            //use splitting to deal with (possibly large) damping
-
-            puNasal[0] = puNasal[0] - etaNasal*(puNasal[0+1] - velumNasal*pu[iNasal]);
-            sqrtS_now = (1-s_now)*sqrtSoldNasal[0] + s_now*sqrtSNasal[0];
-            puNasal[0] = puNasal[0]/(1+dt*dWall*multDWall*c/sqrtS_now);
-            
-            for(int i=2;i<=NNasal-3;i+=2) {
-                S_now = SnowNasal[i];
-                S_prev = SprevNasal[i];
-                S_prev_right = SprevNasal[i+1];
-                S_prev_left = SprevNasal[i-1];
-                S_now_right = SnowNasal[i+1];
-                S_now_left = SnowNasal[i-1];
-                double u_old_factor = 1;
-                double u_new_factor = 1;
-                //for bizarre bug....
-                /*
-                  if(filterIMEXCallCounter>2) {
-                  u_old_factor = (S_prev*(1/S_prev_left+1/S_prev_right)/2 + 1/2);
-                  u_new_factor = (S_now*(1/S_now_left+1/S_now_right)/2 + 1/2);
-                  }
-                */
-                //System.out.println(u_new_factor);
-
-                puNasal[i] = (u_old_factor/u_new_factor)*puNasal[i] -
-                    etaNasal*(puNasal[i+1] - puNasal[i-1])/u_new_factor;
-            }
-
-            //////////////////////////////////////////////////////////////////////////
             // Nasal tract losses
-            for(int kk=0;kk<nnNasal;kk++) {
-                sqrtS_now = (1-s_now)*sqrtSoldNasal[2*(kk+1)] + s_now*sqrtSNasal[2*(kk+1)];
-                dd[kk] = puNasal[2*(kk+1)];
-                aa[kk] = cc[kk] = -dSecond*multDSecond*eta/(2*h*sqrtS_now);
-                bb[kk] = 1+ (dt*c*dWall*multDWall+dSecond*multDSecond*eta/h)/sqrtS_now;
-            }
-            sqrtS_now = (1-s_now)*sqrtSoldNasal[2] + s_now*sqrtSNasal[2];
-            dd[0] -= -(dSecond*multDSecond*eta/(2*h*sqrtS_now ))*puNasal[2];
-            sqrtS_now = (1-s_now)*sqrtSoldNasal[NNasal-3] + s_now*sqrtSNasal[NNasal-3];
-            //dd[nn-1] -=  -(dSecond*multDSecond*eta/(h*sqrtS_now ))*puNasal[NNasal-1];
-            aa[0]=0; // actually unused...
-            cc[nnNasal-1]=0; // actually unused...
-            ThomasAlg.thomas(aa,bb,cc,dd,nnNasal);// now dd holds xx
-            for(int kk=0;kk<nnNasal;kk++) {
-                puNasal[2*(kk+1)] = dd[kk];
-            }
-            ///////////////////////////////////////////////////////////////////////////
-            
-            sqrtS_now = (1-s_now)*sqrtSoldNasal[NNasal-1] + s_now*sqrtSNasal[NNasal-1];
-            if(useLipModel) {
-                u_N2_nose = u_N2_nose + dt*c*3*Math.PI*Math.sqrt(Math.PI)*puNasal[NNasal-2]/(8*sqrtS_now);
-                puNasal[NNasal-1] = u_N2_nose + (9*Math.PI*Math.PI/128)*puNasal[NNasal-2];
-                
+            System.arraycopy(uN,1,ddf,0,nnNasal);
+            ddf[0] -= fc.na[0]*uN[1];
+            if(staticGeometry) {
+                ThomasAlg.solveFactored(nasalMF,nasalInvBF,fc.na,ddf,nnNasal);
             } else {
-                puNasal[NNasal-1] = puNasal[NNasal-1] - etaNasal*( - puNasal[NNasal-2]) - dt*dWall*multDWall*c*puNasal[NNasal-1]/sqrtS_now;
-                puNasal[NNasal-1] = puNasal[NNasal-1]/(1+dt*dWall*multDWall*c/sqrtS_now);
+                ThomasAlg.thomas(fc.na,fc.nb,fc.na,ddf,nnNasal);
             }
+            System.arraycopy(ddf,0,uN,1,nnNasal);
 
-            if(useLocalPressure) {
-                outBuf[k] += (mouthNoseBalance)*puNasal[NNasal-2]*SNasal[NNasal-1]; // N-2 for pressure
+            if(useLipModel) {
+                u_N2_nose = u_N2_nose + cur.nasalLipGain*pN[npN-1];
+                uN[nuN-1] = (float)(u_N2_nose + (9*Math.PI*Math.PI/128)*pN[npN-1]);
             } else {
-                outBuf[k] += (mouthNoseBalance)*puNasal[NNasal-1]*SNasal[NNasal-1]; // N-1 for velocity
-                // differentiate wrt time to get pressure
-                if(!outputVelocity) {
-                    newU = outBuf[k];
-                    outBuf[k] = (newU-lastU)*srate;
-                    lastU = newU;
-                }
+                uN[nuN-1] = (float)((uN[nuN-1] - etaNasal*( - pN[npN-1]) - cur.nasalEndLoss*uN[nuN-1])/(1+cur.nasalEndLoss));
             }
-            //System.out.println(outBuf[k]);
+
+            outBuf[k] = outputSample(p[np-1],u[nu-1],cur.SEnd,pN[npN-1],uN[nuN-1]);
         }
 
-        for(int i=0;i<N;i++) {
-            Sold[i] = S[i];
-            sqrtSold[i] = sqrtS[i];
+        for(int j=0;j<np;j++) {
+            pu[2*j+1] = p[j];
+            zWall[2*j+1] = z[j+1];
+            yWall[2*j+1] = y[j];
         }
-        
-        for(int i=0;i<NNasal;i++) {
-            SoldNasal[i] = SNasal[i];
-            sqrtSoldNasal[i] = sqrtSNasal[i];
+        for(int j=0;j<nu;j++) {
+            pu[2*j] = u[j];
         }
-        // downsample
-        bufsz = nsamples;
-        double oldAcc=0;
-        for(int k=0;k<bufsz;k++) {
-            double acc=0;
-            for(int i=0;i<overSamplingFactor;i++) {
-                acc += outBuf[k*overSamplingFactor+i];
-            }
-            acc /= overSamplingFactor;
-            // hack to get rid of clicks
-            //if(Math.abs(acc-oldAcc)>1) {
-            //System.out.println(acc-oldAcc);
-            //    acc=oldAcc;
-            //}
-            //oldAcc = acc;
-            output[k] = (float)acc;
+        for(int j=0;j<nu-1;j++) {
+            pu_old[2*j] = uPrev[j];
         }
-
-        last_input = f[bufsz-1];
-        if(wentUnstable()) {
-            System.out.println("Tube solver went unstable");
-            reset();
+        for(int j=0;j<npN;j++) {
+            puNasal[2*j+1] = pN[j];
+            zWallNasal[2*j+1] = zN[j+1];
+            yWallNasal[2*j+1] = yN[j];
+        }
+        for(int j=0;j<nuN;j++) {
+            puNasal[2*j] = uN[j];
         }
     }
 
@@ -0,0 +1,367 @@
+package jass.generators;
+
+/**
+   Transfer function of a RightLoadedWebsterTube computed in the
+   frequency domain with the chain (transfer matrix) method, so formants
+   can be found without rendering and transforming an impulse response.
+   The continuum equations [1a-d] of RightLoadedWebsterTube at angular
+   frequency om, with volume velocity U = S*u, are
+   <pre>
+   c dp/dx = -Z U,  Z = (i om + d(S))/S
+   c dU/dx = -Y p,  Y = i om S + C(x)*wallPressureCoupling/(i om M + B + K/(i om))
+   </pre>
+   with the wall loss d(S) = c*(dWall + dSecond*(om/c)^2)/sqrt(S) (the
+   u_xx term of [1a] for a plane wave). The tube is cut into sections
+   of constant area, each of which has the exact 2x2 transfer matrix of
+   these equations. The lips (and nostrils) are open ends, or loaded
+   with the radiation impedance [2a-b] if useLipModel is set. The nasal
+   tract is a side branch at relativeLocationOfNasalTract, coupled with
+   velumNasal as in the time domain solver. All parameters are read from
+   the tube at every evaluation, so the tube shapes and settings can be
+   changed in between. The transfer function is from the velocity at the
+   glottis to the output of the tube (mix of volume velocities at lips
+   and nose, differentiated if the tube does not output velocity). It is
+   the continuum limit of the tube, so it does not show the dispersion
+   of the finite difference grid, which lowers the higher formants of
+   the time domain solver.
+   <p>
+   One loss of the grid does not vanish with h and is included: the
+   implicit damping step of the solver takes the velocity outside the
+   lips as zero in the dSecond (u_xx) term, which acts as a resistance
+   at the lips proportional to dSecond/h. It sets most of the low
+   formant bandwidths (F1 bandwidths of about 140 Hz at oversampling
+   factor 4, against 40 Hz from the continuum losses alone) and makes
+   them grow with the oversampling factor. With it F1 bandwidths match
+   the impulse response of the solver to within about 10% at
+   oversampling factor 2 and 4 (30% at 1). Higher bandwidths differ
+   more, up to a factor 2 for F2 of /i/, as the solver applies the
+   u_xx term across the area steps, and bandwidths of formants closer
+   together than their bandwidths (F1 and F2 of /a/) do not compare.
+   The losses of the nasal branch are the continuum ones.
+*/
+public class TubeTransferFunction {
+    private RightLoadedWebsterTube tube;
+    private int nSections = 64; // per tract
+    // complex 2x2 matrices stored as {a_re,a_im,b_re,b_im,c_re,c_im,d_re,d_im}
+    private double[] vt1 = new double[8]; // glottis to nasal branch
+    private double[] vt2 = new double[8]; // nasal branch to lips
+    private double[] nt = new double[8]; // velum to nostrils
+    private double[] sec = new double[8];
+    private double[] tmp = new double[8];
+    private double[] z = new double[2]; // complex scratch
+    private double[] grid, gridDb; // for formant search
+
+    /** Create for a tube.
+        @param tube the tube, only its parameters are used.
+    */
+    public TubeTransferFunction(RightLoadedWebsterTube tube) {
+        this.tube = tube;
+    }
+
+    /** Set number of sections of constant area per tract.
+        @param nSections number of sections.
+    */
+    public void setNSections(int nSections) {
+        this.nSections = nSections;
+    }
+
+    /** Get number of sections of constant area per tract.
+        @return number of sections.
+    */
+    public int getNSections() {
+        return nSections;
+    }
+
+    /** Compute magnitude of the transfer function.
+        @param f frequency in Hz.
+        @return magnitude in dB.
+    */
+    public double magnitudeDb(double f) {
+        evaluate(f);
+        return 10*Math.log10(z[0]*z[0]+z[1]*z[1]+1.e-300);
+    }
+
+    /** Compute magnitude of the transfer function on a frequency grid.
+        @param freq frequencies in Hz.
+        @param db magnitudes in dB.
+        @param n number of frequencies.
+    */
+    public void magnitudeDb(double[] freq, double[] db, int n) {
+        for(int i=0;i<n;i++) {
+            db[i] = magnitudeDb(freq[i]);
+        }
+    }
+
+    /** Find formants as the peaks of the magnitude response on a grid
+        from df to fMax. See findFormants(double[],double[],int,double[],double[]).
+        @param fMax highest frequency in Hz.
+        @param df grid spacing in Hz.
+        @param formants formant frequencies in Hz.
+        @param bandwidths bandwidths in Hz, -1 if a -3dB point is not found.
+        @return number of formants found, at most formants.length.
+    */
+    public int findFormants(double fMax, double df, double[] formants, double[] bandwidths) {
+        int n = (int)(fMax/df);
+        if(grid == null || grid.length < n) {
+            grid = new double[n];
+            gridDb = new double[n];
+        }
+        for(int i=0;i<n;i++) {
+            grid[i] = (i+1)*df;
+        }
+        magnitudeDb(grid,gridDb,n);
+        return findFormants(grid,gridDb,n,formants,bandwidths);
+    }
+
+    /** Find formants as the peaks of a magnitude response computed with
+        magnitudeDb(), refined by golden section search around each
+        peak. Bandwidths are between the -3dB points, found by bisection.
+        @param freq increasing frequencies in Hz.
+        @param db magnitudes in dB at freq.
+        @param n number of frequencies.
+        @param formants formant frequencies in Hz.
+        @param bandwidths bandwidths in Hz, -1 if a -3dB point is not found.
+        @return number of formants found, at most formants.length.
+    */
+    public int findFormants(double[] freq, double[] db, int n, double[] formants, double[] bandwidths) {
+        int nFormants = 0;
+        for(int i=1;i<n-1 && nFormants<formants.length;i++) {
+            if(db[i] > db[i-1] && db[i] >= db[i+1]) {
+                double f = peak(freq[i-1],freq[i+1]);
+                double max = magnitudeDb(f);
+                double lower = edge(freq,db,max-3,i,-1,n);
+                double upper = edge(freq,db,max-3,i,1,n);
+                formants[nFormants] = f;
+                bandwidths[nFormants] = lower<0 || upper<0 ? -1 : upper-lower;
+                nFormants++;
+            }
+        }
+        return nFormants;
+    }
+
+    /* Golden section search for the maximum in [a b]. */
+    private double peak(double a, double b) {
+        double g = (Math.sqrt(5)-1)/2;
+        double x1 = b-g*(b-a), x2 = a+g*(b-a);
+        double y1 = magnitudeDb(x1), y2 = magnitudeDb(x2);
+        while(b-a > .01) {
+            if(y1 > y2) {
+                b = x2;
+                x2 = x1;
+                y2 = y1;
+                x1 = b-g*(b-a);
+                y1 = magnitudeDb(x1);
+            } else {
+                a = x1;
+                x1 = x2;
+                y1 = y2;
+                x2 = a+g*(b-a);
+                y2 = magnitudeDb(x2);
+            }
+        }
+        return (a+b)/2;
+    }
+
+    /* Frequency where the response drops below level, walking the grid
+       from index i in direction dir, then bisecting. -1 if not found. */
+    private double edge(double[] freq, double[] db, double level, int i, int dir, int n) {
+        int j = i;
+        while(j+dir >= 0 && j+dir < n && db[j+dir] > level) {
+            j += dir;
+        }
+        if(j+dir < 0 || j+dir >= n) {
+            return -1;
+        }
+        double inside = freq[j], outside = freq[j+dir];
+        while(Math.abs(outside-inside) > .01) {
+            double f = (inside+outside)/2;
+            if(magnitudeDb(f) > level) {
+                inside = f;
+            } else {
+                outside = f;
+            }
+        }
+        return (inside+outside)/2;
+    }
+
+    /* Complex transfer function at f in z[]. */
+    private void evaluate(double f) {
+        RightLoadedWebsterTube t = tube;
+        double om = Math.max(2*Math.PI*f,1.e-3);
+        TubeShape vt = t.tubeShape;
+        double len = vt.getLength();
+        double velum = t.velumNasal;
+        boolean nasal = velum > 0;
+        double xBranch = nasal ? t.relativeLocationOfNasalTract*len : len;
+        int n1 = nasal ? (int)Math.round(nSections*t.relativeLocationOfNasalTract) : nSections;
+        chain(vt1,vt,0,xBranch,n1,om);
+        chain(vt2,vt,xBranch,len,nSections-n1,om);
+        double S0 = area(vt.getRadius(0.));
+        double ysRe = 0, ysIm = 0; // shunt admittance of nasal branch
+        double ynRe = 0, ynIm = 0; // input admittance of nasal tract
+        if(nasal) {
+            TubeShape ns = t.tubeShapeNasal;
+            double lenNasal = ns.getLength();
+            chain(nt,ns,0,lenNasal,nSections,om);
+            radiation(area(ns.getRadius(lenNasal)),1,om);
+            // p_end = Zr*U_end gives U_0/p_0 = (A - Zr C)/(Zr D - B)
+            double numRe = nt[0] - (z[0]*nt[4]-z[1]*nt[5]);
+            double numIm = nt[1] - (z[0]*nt[5]+z[1]*nt[4]);
+            double denRe = (z[0]*nt[6]-z[1]*nt[7]) - nt[2];
+            double denIm = (z[0]*nt[7]+z[1]*nt[6]) - nt[3];
+            div(numRe,numIm,denRe,denIm);
+            ynRe = z[0];
+            ynIm = z[1];
+            ysRe = velum*velum*ynRe;
+            ysIm = velum*velum*ynIm;
+        }
+        // M = vt2 * shunt * vt1, shunt = [1 0; -Ys 1]
+        double[] m = tmp;
+        for(int col=0;col<2;col++) {
+            double pRe = vt1[4*0+2*col], pIm = vt1[4*0+2*col+1];
+            double uRe = vt1[4*1+2*col], uIm = vt1[4*1+2*col+1];
+            uRe -= ysRe*pRe-ysIm*pIm;
+            uIm -= ysRe*pIm+ysIm*pRe;
+            m[2*col] = vt2[0]*pRe-vt2[1]*pIm + vt2[2]*uRe-vt2[3]*uIm;
+            m[2*col+1] = vt2[0]*pIm+vt2[1]*pRe + vt2[2]*uIm+vt2[3]*uRe;
+            m[4+2*col] = vt2[4]*pRe-vt2[5]*pIm + vt2[6]*uRe-vt2[7]*uIm;
+            m[4+2*col+1] = vt2[4]*pIm+vt2[5]*pRe + vt2[6]*uIm+vt2[7]*uRe;
+        }
+        // lips: p_L = Zr*U_L gives p_0 = (Zr D - B)/(A - Zr C) * U_0, with U_0 = S0
+        double SLips = area(vt.getRadius(len));
+        radiation(SLips,t.lipAreaMultiplier,om);
+        z[0] += gridEndLoss(SLips);
+        double numRe = (z[0]*m[6]-z[1]*m[7]) - m[2];
+        double numIm = (z[0]*m[7]+z[1]*m[6]) - m[3];
+        double denRe = m[0] - (z[0]*m[4]-z[1]*m[5]);
+        double denIm = m[1] - (z[0]*m[5]+z[1]*m[4]);
+        div(numRe,numIm,denRe,denIm);
+        double p0Re = z[0]*S0, p0Im = z[1]*S0;
+        double uLipRe = m[4]*p0Re-m[5]*p0Im + m[6]*S0;
+        double uLipIm = m[4]*p0Im+m[5]*p0Re + m[7]*S0;
+        double mnb = t.mouthNoseBalance;
+        double outRe = (1-mnb)*uLipRe, outIm = (1-mnb)*uLipIm;
+        if(nasal) {
+            // pressure at branch, nasal tract sees velum*p_b
+            double pbRe = vt1[0]*p0Re-vt1[1]*p0Im + vt1[2]*S0;
+            double pbIm = vt1[0]*p0Im+vt1[1]*p0Re + vt1[3]*S0;
+            double pnRe = velum*pbRe, pnIm = velum*pbIm;
+            double unRe = ynRe*pnRe-ynIm*pnIm, unIm = ynRe*pnIm+ynIm*pnRe;
+            double uNoseRe = nt[4]*pnRe-nt[5]*pnIm + nt[6]*unRe-nt[7]*unIm;
+            double uNoseIm = nt[4]*pnIm+nt[5]*pnRe + nt[6]*unIm+nt[7]*unRe;
+            outRe += mnb*uNoseRe;
+            outIm += mnb*uNoseIm;
+        }
+        if(!t.getOutputVelocity()) { // differentiate
+            double re = outRe;
+            outRe = -om*outIm;
+            outIm = om*re;
+        }
+        z[0] = outRe;
+        z[1] = outIm;
+    }
+
+    private static double area(double r) {
+        return Math.max(Math.PI*r*r,1.e-10);
+    }
+
+    /* Series resistance p/U at the lips of the grid of the time domain
+       solver. Its implicit damping step leaves the velocity outside the
+       lips out of the u_xx stencil of the last velocity node, which takes
+       it as zero, so that node is damped by dSecond*c/(4h^2 sqrt(S))
+       times the lip velocity. Over the 2h of tube the node stands for this
+       is a resistance dSecond/(2h S^1.5); it dominates the low formant
+       bandwidths and grows with the oversampling factor (smaller h). */
+    private double gridEndLoss(double S) {
+        RightLoadedWebsterTube t = tube;
+        return t.dSecond*t.multDSecond/(2*t.h*S*Math.sqrt(S));
+    }
+
+    /* Radiation impedance p/U at an end of area S in z[], 0 if there is
+       no lip model. The lip model [2a-b] is u = (9 pi^2/128)*p + w with
+       i om w = g*p. */
+    private void radiation(double S, double areaMultiplier, double om) {
+        if(!tube.useLipModel) {
+            z[0] = z[1] = 0;
+            return;
+        }
+        double g = tube.c*3*Math.PI*Math.sqrt(Math.PI)/(8*Math.sqrt(areaMultiplier*S));
+        div(1,0,S*9*Math.PI*Math.PI/128,-S*g/om);
+    }
+
+    /* Transfer matrix from x0 to x1 of a tract, m maps (p,U) at x0 to x1. */
+    private void chain(double[] m, TubeShape shape, double x0, double x1, int n, double om) {
+        m[0] = 1; m[1] = 0; m[2] = 0; m[3] = 0;
+        m[4] = 0; m[5] = 0; m[6] = 1; m[7] = 0;
+        if(n <= 0) {
+            return;
+        }
+        RightLoadedWebsterTube t = tube;
+        double c = t.c;
+        double dx = (x1-x0)/n;
+        double k2 = (om/c)*(om/c);
+        double loss = c*(t.dWall*t.multDWall + t.dSecond*t.multDSecond*k2);
+        // wall admittance per unit circumference, coupling/(i om M + B + K/(i om))
+        double wRe = 0, wIm = 0;
+        if(t.wallPressureCoupling > 1.e-6) {
+            div(t.wallPressureCoupling,0,t.BWall,om*t.MWall-t.KWall/om);
+            wRe = z[0];
+            wIm = z[1];
+        }
+        for(int s=0;s<n;s++) {
+            double S = area(shape.getRadius(x0+(s+.5)*dx));
+            double circ = 2*Math.sqrt(Math.PI*S);
+            double zRe = loss/(Math.sqrt(S)*S), zIm = om/S;
+            double yRe = circ*wRe, yIm = om*S+circ*wIm;
+            // gamma*dx = sqrt(Z*Y)*dx/c, characteristic impedance Zc = sqrt(Z/Y)
+            sqrt(zRe*yRe-zIm*yIm,zRe*yIm+zIm*yRe);
+            double gRe = z[0]*dx/c, gIm = z[1]*dx/c;
+            div(zRe,zIm,yRe,yIm);
+            sqrt(z[0],z[1]);
+            double zcRe = z[0], zcIm = z[1];
+            double e = Math.exp(gRe), ch = (e+1/e)/2, sh = (e-1/e)/2;
+            double cos = Math.cos(gIm), sin = Math.sin(gIm);
+            double coshRe = ch*cos, coshIm = sh*sin;
+            double sinhRe = sh*cos, sinhIm = ch*sin;
+            // [cosh, -Zc sinh; -sinh/Zc, cosh]
+            sec[0] = coshRe;
+            sec[1] = coshIm;
+            sec[2] = -(zcRe*sinhRe-zcIm*sinhIm);
+            sec[3] = -(zcRe*sinhIm+zcIm*sinhRe);
+            div(sinhRe,sinhIm,zcRe,zcIm);
+            sec[4] = -z[0];
+            sec[5] = -z[1];
+            sec[6] = coshRe;
+            sec[7] = coshIm;
+            multiply(sec,m,tmp);
+            System.arraycopy(tmp,0,m,0,8);
+        }
+    }
+
+    /* r = a*b for complex 2x2 matrices. */
+    private static void multiply(double[] a, double[] b, double[] r) {
+        for(int row=0;row<2;row++) {
+            for(int col=0;col<2;col++) {
+                int i = 4*row, j = 2*col;
+                double re = a[i]*b[j]-a[i+1]*b[j+1] + a[i+2]*b[j+4]-a[i+3]*b[j+5];
+                double im = a[i]*b[j+1]+a[i+1]*b[j] + a[i+2]*b[j+5]+a[i+3]*b[j+4];
+                r[i+j] = re;
+                r[i+j+1] = im;
+            }
+        }
+    }
+
+    /* z = (aRe + i aIm)/(bRe + i bIm) */
+    private void div(double aRe, double aIm, double bRe, double bIm) {
+        double den = bRe*bRe+bIm*bIm;
+        z[0] = (aRe*bRe+aIm*bIm)/den;
+        z[1] = (aIm*bRe-aRe*bIm)/den;
+    }
+
+    /* z = principal square root of re + i im */
+    private void sqrt(double re, double im) {
+        double r = Math.sqrt(re*re+im*im);
+        z[0] = Math.sqrt((r+re)/2);
+        z[1] = im<0 ? -Math.sqrt((r-re)/2) : Math.sqrt((r-re)/2);
+    }
+}
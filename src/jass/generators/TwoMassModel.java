@@ -23,6 +23,13 @@ public class TwoMassModel extends GlottalModel {
     protected PressureServer pressureServer;// get p1 (right pressure) and leftmost area from this contained model
     ResonFilter resonFilter; // for flow noise
     protected int nOverSamplings=4;
+    /** Explicit integrator, oversampled nOverSamplings times. */
+    public static final int EXPLICIT = 0;
+    /** Implicit integrator, stable at the sampling rate. */
+    public static final int IMPLICIT = 1;
+    protected int integrator = EXPLICIT;
+    // shared by computeForceOnMass1() and computeForceOnMass2() in one step
+    private double invAg1,Rv1,Lg1,p1Open;
     
     public TwoMassModel(int bufferSize, double srate) {
         super(bufferSize,srate);
@@ -39,6 +46,24 @@ public class TwoMassModel extends GlottalModel {
         return pressureServer;
     }
 
+    /** Select the integrator. The model is reset. IMPLICIT is about 2.5
+        times cheaper and gives the same voice over most of the q and ps
+        range, but not near the onset of voicing and at high ps, see
+        IntegratorComparison.
+        @param integrator EXPLICIT or IMPLICIT.
+    */
+    public void setIntegrator(int integrator) {
+        this.integrator = integrator;
+        reset();
+    }
+
+    /** Get the integrator.
+        @return EXPLICIT or IMPLICIT.
+    */
+    public int getIntegrator() {
+        return integrator;
+    }
+
     public void setFlowNoiseLevel(double v) {
 	flowNoiseLevel = v;
 	updateFlowFilter();
@@ -93,33 +118,34 @@ public class TwoMassModel extends GlottalModel {
     protected double computeForceOnMass1() {
         double f1=0;
 
-        if(x1 > -vars.interpolatedAg01/(2*vars.lg) && x2 > -vars.interpolatedAg02/(2*vars.lg)) {
-            double Ag1 = vars.interpolatedAg01+2*vars.lg*x1;
-            double Rv1 = 12*vars.mu*vars.lg*vars.lg*(vars.d1/(Ag1*Ag1*Ag1));
-            double Lg1 = vars.rho*(vars.d1/Ag1);
-            f1 = vars.interpolatedPs - 1.37*(vars.rho/2)*(ug/Ag1)*(ug/Ag1)-.5*(Rv1*ug+srate*Lg1*(ug-ugold));
-            f1 *= vars.d1*vars.lg;
+        if(x1 > -vars.x01 && x2 > -vars.x02) {
+            double Ag1 = vars.interpolatedAg01+vars.lg2*x1;
+            invAg1 = 1/Ag1;
+            Rv1 = vars.viscous1*invAg1*invAg1*invAg1;
+            Lg1 = vars.rhoD1*invAg1;
+            double uOverAg1 = ug*invAg1;
+            p1Open = vars.interpolatedPs - 1.37*vars.halfRho*uOverAg1*uOverAg1-.5*(Rv1*ug+srate*Lg1*(ug-ugold));
+            f1 = p1Open*vars.d1lg;
         } else {
-            f1 = vars.interpolatedPs * vars.d1*vars.lg;
+            f1 = vars.interpolatedPs * vars.d1lg;
         }
         myf1=f1;
         return f1;
     }
 
+    // uses Ag1, Rv1, Lg1 and the pressure of computeForceOnMass1()
     protected double computeForceOnMass2(double f1) {
         double f2=0;
-        if(x1 > -vars.interpolatedAg01/(2*vars.lg)) {
-            if(x2 > -vars.interpolatedAg02/(2*vars.lg)) {
-                double Ag1 = vars.interpolatedAg01+2*vars.lg*x1;
-                double Ag2 = vars.interpolatedAg02+2*vars.lg*x2;
-                double Rv1 = 12*vars.mu*vars.lg*vars.lg*(vars.d1/(Ag1*Ag1*Ag1));
-                double Lg1 = vars.rho*(vars.d1/Ag1);
-                double Rv2 = 12*vars.mu*vars.lg*vars.lg*(vars.d2/(Ag2*Ag2*Ag2));
-                double Lg2 = vars.rho*(vars.d2/Ag2);
-                f2 = f1/(vars.d1*vars.lg) -.5*(Rv1+Rv2)*ug-(Lg1+Lg2)*srate*(ug-ugold)-.5*vars.rho*ug*ug*(1/(Ag2*Ag2)-1/(Ag1*Ag1));
-                f2 *= vars.d2*vars.lg;
+        if(x1 > -vars.x01) {
+            if(x2 > -vars.x02) {
+                double Ag2 = vars.interpolatedAg02+vars.lg2*x2;
+                double invAg2 = 1/Ag2;
+                double Rv2 = vars.viscous2*invAg2*invAg2*invAg2;
+                double Lg2 = vars.rhoD2*invAg2;
+                f2 = p1Open -.5*(Rv1+Rv2)*ug-(Lg1+Lg2)*srate*(ug-ugold)-vars.halfRho*ug*ug*(invAg2*invAg2-invAg1*invAg1);
+                f2 *= vars.d2lg;
             } else {
-                f2 = vars.interpolatedPs * vars.d2*vars.lg;
+                f2 = vars.interpolatedPs * vars.d2lg;
             }
         } else {
             f2 = 0;
@@ -133,34 +159,32 @@ public class TwoMassModel extends GlottalModel {
         double f1 = computeForceOnMass1();
         double f2 = computeForceOnMass2(f1);
 
-        double srate = this.srate*nOverSamplings;
-        // calc. matrix elements
-        double h1=0,h2=0,r1=0,r2=0;
-        if(x1<-vars.interpolatedAg01/(2*vars.lg)) {
-            h1 = vars.h1;
-            r1 = vars.r1closed;
+        // calc. matrix elements, precomputed in Vars.interpolateVars()
+        double a11,a22,c1,c2,s1prime,s2prime;
+        if(x1<-vars.x01) {
+            a11 = vars.a11closed;
+            c1 = vars.c1closed;
+            double y = vars.x01+x1;
+            s1prime = vars.k1etak1*x1*x1*x1+vars.h1*(vars.x01 + vars.etah1*y*y*y);
         } else {
-            h1 = 0;
-            r1 = vars.r1open;
+            a11 = vars.a11open;
+            c1 = vars.c1open;
+            s1prime = vars.k1etak1*x1*x1*x1;
         }
-        if(x2<-vars.interpolatedAg02/(2*vars.lg)) {
-            h2 = vars.h2;
-            r2 = vars.r2closed;
+        if(x2<-vars.x02) {
+            a22 = vars.a22closed;
+            c2 = vars.c2closed;
+            double y = vars.x02+x2;
+            s2prime = vars.k2etak2*x2*x2*x2+vars.h2*(vars.x02 + vars.etah2*y*y*y);
         } else {
-            h2 = 0;
-            r2 = vars.r2open;
+            a22 = vars.a22open;
+            c2 = vars.c2open;
+            s2prime = vars.k2etak2*x2*x2*x2;
         }
-        double a11 = (vars.k1+h1+vars.kc)/(srate*srate) + r1/srate + vars.m1;
-        double a12 = -vars.kc/(srate*srate);
+        double a12 = vars.a12;
         double a21 = a12;
-        double a22 = (vars.k2+h2+vars.kc)/(srate*srate) + r2/srate + vars.m2;
-        double s1prime = vars.k1*vars.etak1*x1*x1*x1+h1*(vars.interpolatedAg01/(2*vars.lg) +
-                                                         vars.etah1*(vars.interpolatedAg01/(2*vars.lg)+x1)*(vars.interpolatedAg01/(2*vars.lg)+x1)*(vars.interpolatedAg01/(2*vars.lg)+x1));
-        double s2prime = vars.k2*vars.etak2*x2*x2*x2+h2*(vars.interpolatedAg02/(2*vars.lg) +
-                                                         vars.etah2*(vars.interpolatedAg02/(2*vars.lg)+x2)*(vars.interpolatedAg02/(2*vars.lg)+x2)*(vars.interpolatedAg02/(2*vars.lg)+x2));
-        double b1 = (2*vars.m1+r1/srate)*x1 - vars.m1*xold1-s1prime/(srate*srate) + f1/(srate*srate);
-        double b2 = (2*vars.m2+r2/srate)*x2 - vars.m2*xold2-s2prime/(srate*srate) + f2/(srate*srate);
-        
+        double b1 = c1*x1 - vars.m1*xold1 + (f1-s1prime)*vars.invSrate2;
+        double b2 = c2*x2 - vars.m2*xold2 + (f2-s2prime)*vars.invSrate2;
 
         xold1 = x1;
         xold2 = x2;
@@ -173,36 +197,118 @@ public class TwoMassModel extends GlottalModel {
     }
 
     protected void advanceUg(boolean addNoise) {
-        double srate = this.srate*nOverSamplings;
-        double Ag1 = vars.interpolatedAg01+2*vars.lg*x1;
-        double Ag2 = vars.interpolatedAg02+2*vars.lg*x2;
+        double Ag1 = vars.interpolatedAg01+vars.lg2*x1;
+        double Ag2 = vars.interpolatedAg02+vars.lg2*x2;
         if(Ag1<0 || Ag2<0) {
             ug = 0;
         } else {
-            // get noise source
-            if(pressureServer != null) {
-                vars.A1 = pressureServer.getA1(); // area at bottom of VT
-            }
-            double uc = (ug + ugold)/2;
-            double Re2 = (4*vars.rho*vars.rho/(Math.PI*vars.mu*vars.mu))*uc*uc/Ag2;
-            if(Re2>vars.Rec2 && addNoise) {
-                float rrr = resonFilter.filter1Sample((float)(Math.random()-.5));
-                //System.out.println(rrr);
-                vars.png = vars.gng*(Re2-vars.Rec2)*rrr;
-            } else {
-                vars.png = 0;
-            }
-            double Rtot = (vars.rho/2)*( 0.37/(Ag1*Ag1) +  (1-2*(Ag2/vars.A1)*(1-Ag2/vars.A1))/(Ag2*Ag2) )
+            updateNoise(Ag2,addNoise);
+            double invAg1 = 1/Ag1;
+            double invAg2 = 1/Ag2;
+            double ratio = Ag2/vars.A1;
+            double Rtot = vars.halfRho*( 0.37*invAg1*invAg1 +  (1-2*ratio*(1-ratio))*invAg2*invAg2 )
                 *Math.abs(ug)
-                + 12*vars.mu*vars.lg*vars.lg*(vars.d1/(Ag1*Ag1*Ag1) + vars.d2/(Ag2*Ag2*Ag2) );
-            double Ltot = vars.rho*(vars.d1/Ag1 + vars.d2/Ag2);
+                + vars.viscous1*invAg1*invAg1*invAg1 + vars.viscous2*invAg2*invAg2*invAg2;
+            double Ltot = vars.rhoD1*invAg1 + vars.rhoD2*invAg2;
             ugold = ug;
-            ug = ((vars.interpolatedPs-vars.p1-vars.png)/srate + Ltot*ug)/(Rtot/srate + Ltot);
-            
+            ug = ((vars.interpolatedPs-vars.p1-vars.png)*vars.invSrate + Ltot*ug)/(Rtot*vars.invSrate + Ltot);
+        }
+    }
+
+    // get noise source
+    private void updateNoise(double Ag2, boolean addNoise) {
+        if(pressureServer != null) {
+            vars.A1 = pressureServer.getA1(); // area at bottom of VT
+        }
+        double uc = (ug + ugold)/2;
+        double Re2 = vars.reynolds2*uc*uc/Ag2;
+        if(Re2>vars.Rec2 && addNoise) {
+            float rrr = resonFilter.filter1Sample((float)(Math.random()-.5));
+            vars.png = vars.gng*(Re2-vars.Rec2)*rrr;
+        } else {
+            vars.png = 0;
+        }
+    }
+
+    /**
+       Advance masses and flow by one sample with the implicit integrator.
+       The masses are advanced with the trapezoidal (Newmark average
+       acceleration) rule, with the forces of eq. 18 at the current sample
+       and the cubic springs linearized around it, so stiffness, damping and
+       collisions are all implicit. The flow equation is then solved with
+       backward Euler at the new glottal areas, in closed form as it is
+       quadratic in ug. Both are stable for any step, so no oversampling
+       is needed.
+    */
+    protected void advanceImplicit() {
+        double f1 = computeForceOnMass1();
+        double f2 = computeForceOnMass2(f1);
+
+        // spring forces s, their derivatives t and the linear stiffness k
+        double k1,k2,r1,r2,s1,s2,t1,t2;
+        if(x1<-vars.x01) {
+            double y = vars.x01+x1;
+            k1 = vars.k1+vars.h1+vars.kc;
+            r1 = vars.r1closed;
+            s1 = vars.k1etak1*x1*x1*x1+vars.h1*(vars.x01 + vars.etah1*y*y*y);
+            t1 = 3*(vars.k1etak1*x1*x1+vars.h1*vars.etah1*y*y);
+        } else {
+            k1 = vars.k1+vars.kc;
+            r1 = vars.r1open;
+            s1 = vars.k1etak1*x1*x1*x1;
+            t1 = 3*vars.k1etak1*x1*x1;
+        }
+        if(x2<-vars.x02) {
+            double y = vars.x02+x2;
+            k2 = vars.k2+vars.h2+vars.kc;
+            r2 = vars.r2closed;
+            s2 = vars.k2etak2*x2*x2*x2+vars.h2*(vars.x02 + vars.etah2*y*y*y);
+            t2 = 3*(vars.k2etak2*x2*x2+vars.h2*vars.etah2*y*y);
+        } else {
+            k2 = vars.k2+vars.kc;
+            r2 = vars.r2open;
+            s2 = vars.k2etak2*x2*x2*x2;
+            t2 = 3*vars.k2etak2*x2*x2;
         }
-        if(addNoise) {
-            //System.out.println(ug+" "+x1+" "+x2);
+        // m*(x'-2x+xold) + r*dt*(x'-xold)/2 + dt^2*(k+t)*(x'+2x+xold)/4 = dt^2*(f-s+t*x)
+        double dt2 = vars.invSrate2;
+        double halfDt = .5*vars.invSrate;
+        double q1 = .25*dt2*(k1+t1);
+        double q2 = .25*dt2*(k2+t2);
+        double qc = .25*dt2*vars.kc;
+        double a11 = vars.m1+r1*halfDt+q1;
+        double a22 = vars.m2+r2*halfDt+q2;
+        double b1 = dt2*(f1-s1+t1*x1) + vars.m1*(2*x1-xold1) + r1*halfDt*xold1 - q1*(2*x1+xold1) + qc*(2*x2+xold2);
+        double b2 = dt2*(f2-s2+t2*x2) + vars.m2*(2*x2-xold2) + r2*halfDt*xold2 - q2*(2*x2+xold2) + qc*(2*x1+xold1);
+        double det = a11*a22-qc*qc;
+        xold1 = x1;
+        xold2 = x2;
+        x1 = (a22*b1+qc*b2)/det;
+        x2 = (a11*b2+qc*b1)/det;
+
+        double Ag1 = vars.interpolatedAg01+vars.lg2*x1;
+        double Ag2 = vars.interpolatedAg02+vars.lg2*x2;
+        double ugNew = 0;
+        if(Ag1>0 && Ag2>0) {
+            updateNoise(Ag2,true);
+            double invAg1 = 1/Ag1;
+            double invAg2 = 1/Ag2;
+            double ratio = Ag2/vars.A1;
+            // Ltot*(ug'-ug)/dt + (Rv + Rk*|ug'|)*ug' = dp
+            double Rk = vars.halfRho*( 0.37*invAg1*invAg1 +  (1-2*ratio*(1-ratio))*invAg2*invAg2 );
+            double LtotOverDt = (vars.rhoD1*invAg1 + vars.rhoD2*invAg2)*srate;
+            double Rv = vars.viscous1*invAg1*invAg1*invAg1 + vars.viscous2*invAg2*invAg2*invAg2 + LtotOverDt;
+            double dp = vars.interpolatedPs-vars.p1-vars.png + LtotOverDt*ug;
+            double absDp = Math.abs(dp);
+            ugNew = 2*absDp/(Rv+Math.sqrt(Rv*Rv+4*Rk*absDp));
+            if(dp<0) {
+                ugNew = -ugNew;
+            }
         }
+        // the forces take the flow derivative as srate*(ug-ugold), which the explicit
+        // integrator has over a quarter sample, so keep ugold a quarter sample back
+        ugold = ugNew + .25*(ug-ugNew);
+        ug = ugNew;
     }
 
     /** Advance state by one sample
@@ -211,12 +317,16 @@ public class TwoMassModel extends GlottalModel {
         vars.interpolateVars(lambda);
         //System.out.println(lambda+" "+vars.interpolatedQ);
         updateP1(); // update pressure at right end (from VT model)
-        for(int i=0;i<nOverSamplings-1;i++) {
+        if(integrator == IMPLICIT) {
+            advanceImplicit();
+        } else {
+            for(int i=0;i<nOverSamplings-1;i++) {
+                advanceMasses();
+                advanceUg(false);
+            }
             advanceMasses();
-            advanceUg(false);
+            advanceUg(true);
         }
-        advanceMasses();
-        advanceUg(true);
         if(wentUnstable()) {
             reset();
         }
@@ -294,25 +404,41 @@ public class TwoMassModel extends GlottalModel {
         public double Rec2;     // square of critical Reynolds number
         // control variables:
         public double q,gs; // pitch factor, glottal damping parameter
-        public double q_old;
+        public double q_old,q_new; // values at begin and end of the buffer
         public double interpolatedQ;;
         public double ps; // subglottal lung pressure
-        public double ps_old;
+        public double ps_old,ps_new;
         public double interpolatedPs;
         
         public double p1; // pressure downstream from glottis (determined by VT model)
         public double png; // noise pressure source
 
+        // derived from the above in setVars() and interpolateVars(), used every step
+        double x01,x02; // interpolatedAg0i/(2*lg), displacement that closes a mass
+        double lg2; // 2*lg
+        double d1lg,d2lg; // di*lg
+        double viscous1,viscous2; // 12*mu*lg*lg*di
+        double rhoD1,rhoD2; // rho*di
+        double halfRho; // rho/2
+        double reynolds2; // 4*rho*rho/(PI*mu*mu)
+        double k1etak1,k2etak2;
+        double invSrate,invSrate2; // of the rate of a step of the integrator
+        double a11open,a11closed,a22open,a22closed,a12; // matrix of advanceMasses()
+        double c1open,c1closed,c2open,c2closed; // 2*mi+ri/srate
+        private double cachedQ = Double.NaN,cachedGs = Double.NaN; // q dependent variables computed for
+
         public Vars() {
             // constants
             mu = 1.86e-4 * (DYN *SECOND/(CM*CM));
             rho = 1.14e-3 *(GRAM/(CM*CM*CM));
             ps = 64*8;
             ps_old = ps;
+            ps_new = ps;
             p1 = 0;
             png = 0;
             q=1; // dimensionless
             q_old = 1;
+            q_new = 1;
             A1 = 1*CM*CM;
             gs = 1; // dimensionless
             Ag0 = 0.05*CM*CM; // see Ishizaka-Flanagan, p 1250.
@@ -331,40 +457,76 @@ public class TwoMassModel extends GlottalModel {
         }
 
         /**
-           Compute the interpolated vlaues using interpolation parameter lambda in [0 1]
+           Compute the interpolated vlaues using interpolation parameter lambda in [0 1],
+           and the coefficients the oversampled steps of the sample need. The q
+           dependent variables are only computed again when q or gs change.
         */
         public void interpolateVars(double lambda) {
             interpolatedAg01= vars.Ag01_old + lambda*(vars.Ag01-vars.Ag01_old);
             interpolatedAg02= vars.Ag02_old + lambda*(vars.Ag02-vars.Ag02_old);
-            interpolatedPs = vars.ps_old + lambda*(vars.ps-vars.ps_old);
-            interpolatedQ = vars.q_old + lambda*(vars.q-vars.q_old);
-            m1 = .125*GRAM/interpolatedQ;
-            m2 = .025*GRAM/interpolatedQ;
-            d1 = .25*CM/interpolatedQ;
-            d2 = .05*CM/interpolatedQ;;
-            k1 = 80000*(DYN/CM)*interpolatedQ;
-            k2 = 8000*(DYN/CM)*interpolatedQ;
-            h1 = 3*k1;
-            h2 = 3*k2;
-            kc = 25000*(DYN/CM)*interpolatedQ*interpolatedQ;
-            r1open = 2*0.2*Math.sqrt(k1*m1)/(gs*gs);
-            r1closed = 2*1.1*Math.sqrt(k1*m1)/(gs*gs);
-            r2open = 2*0.6*Math.sqrt(k2*m2)/(gs*gs);
-            r2closed = 2*1.9*Math.sqrt(k2*m2)/(gs*gs);
+            interpolatedPs = vars.ps_old + lambda*(vars.ps_new-vars.ps_old);
+            interpolatedQ = vars.q_old + lambda*(vars.q_new-vars.q_old);
+            if(interpolatedQ != cachedQ || gs != cachedGs) { // only while q is changing
+                m1 = .125*GRAM/interpolatedQ;
+                m2 = .025*GRAM/interpolatedQ;
+                d1 = .25*CM/interpolatedQ;
+                d2 = .05*CM/interpolatedQ;;
+                k1 = 80000*(DYN/CM)*interpolatedQ;
+                k2 = 8000*(DYN/CM)*interpolatedQ;
+                h1 = 3*k1;
+                h2 = 3*k2;
+                kc = 25000*(DYN/CM)*interpolatedQ*interpolatedQ;
+                r1open = 2*0.2*Math.sqrt(k1*m1)/(gs*gs);
+                r1closed = 2*1.1*Math.sqrt(k1*m1)/(gs*gs);
+                r2open = 2*0.6*Math.sqrt(k2*m2)/(gs*gs);
+                r2closed = 2*1.9*Math.sqrt(k2*m2)/(gs*gs);
+                d1lg = d1*lg;
+                d2lg = d2*lg;
+                viscous1 = 12*mu*lg*lg*d1;
+                viscous2 = 12*mu*lg*lg*d2;
+                rhoD1 = rho*d1;
+                rhoD2 = rho*d2;
+                k1etak1 = k1*etak1;
+                k2etak2 = k2*etak2;
+                a11open = (k1+kc)*invSrate2 + r1open*invSrate + m1;
+                a11closed = (k1+h1+kc)*invSrate2 + r1closed*invSrate + m1;
+                a22open = (k2+kc)*invSrate2 + r2open*invSrate + m2;
+                a22closed = (k2+h2+kc)*invSrate2 + r2closed*invSrate + m2;
+                a12 = -kc*invSrate2;
+                c1open = 2*m1+r1open*invSrate;
+                c1closed = 2*m1+r1closed*invSrate;
+                c2open = 2*m2+r2open*invSrate;
+                c2closed = 2*m2+r2closed*invSrate;
+                cachedQ = interpolatedQ;
+                cachedGs = gs;
+            }
+            x01 = interpolatedAg01/lg2;
+            x02 = interpolatedAg02/lg2;
         }
         
         /**
-           Calculate non-constant parameters from control parameters.
+           Calculate non-constant parameters from control parameters, and the
+           coefficients that stay the same during a buffer.
         */
         public void setVars() {
 
-            // end interpolated variables
-            q_old = q;
+            // end values of the last buffer are the begin values of this one
+            q_old = q_new;
+            q_new = q;
             Ag01_old = Ag01;
             Ag02_old = Ag02;
             Ag01 = Ag0;
             Ag02 = Ag0;
-            ps_old = ps;
+            ps_old = ps_new;
+            ps_new = ps;
+            // constants of the buffer, the q dependent ones are computed on the next sample
+            double sr = integrator == IMPLICIT ? srate : srate*nOverSamplings;
+            invSrate = 1/sr;
+            invSrate2 = 1/(sr*sr);
+            lg2 = 2*lg;
+            halfRho = rho/2;
+            reynolds2 = 4*rho*rho/(Math.PI*mu*mu);
+            cachedQ = Double.NaN;
         }
 
         /**
@@ -498,5 +660,337 @@ public class TwoMassModel extends GlottalModel {
         }
     }
 
-}
+    /** Measures the cost per sample of the model against the original
+        implementation, which computed all coefficients in every
+        oversampled step, and checks that both give the same output.
+    */
+    public static class Benchmark {
+        public static void main(String[] args) {
+            int bufferSize = 512;
+            double srate = 44100;
+            int nBuffers = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+            TwoMassModel model = new TwoMassModel(bufferSize,srate);
+            TwoMassModel reference = new Reference(bufferSize,srate);
+            float[] y = new float[nBuffers*bufferSize];
+            float[] yRef = new float[nBuffers*bufferSize];
+            for(int round=0;round<3;round++) { // the first rounds warm up the JIT
+                double ns = run(model,y,bufferSize,nBuffers);
+                double nsRef = run(reference,yRef,bufferSize,nBuffers);
+                System.out.println("original "+nsRef+" ns/sample, cached "+ns+" ns/sample, speedup "+nsRef/ns);
+            }
+            // rounding differs, and the glottal closures amplify that over time, so
+            // compare the first buffers sample by sample and the rest by level
+            double maxDiff = 0, max = 0, sum = 0, sumRef = 0;
+            for(int i=0;i<y.length;i++) {
+                if(i < 10*bufferSize) {
+                    maxDiff = Math.max(maxDiff,Math.abs(y[i]-yRef[i]));
+                }
+                max = Math.max(max,Math.abs(yRef[i]));
+                sum += y[i]*y[i];
+                sumRef += yRef[i]*yRef[i];
+            }
+            System.out.println("max difference in first 10 buffers "+maxDiff/max+" of peak flow, rms original "+
+                               Math.sqrt(sumRef/y.length)+", cached "+Math.sqrt(sum/y.length));
+        }
 
+        /* Render with a pitch glide every fourth buffer, return ns per sample. */
+        private static double run(TwoMassModel m, float[] y, int bufferSize, int nBuffers) {
+            m.reset();
+            TwoMassModel.Vars vars = m.getVars();
+            vars.q = 1;
+            vars.ps = 800;
+            vars.setVars();
+            long t0 = System.nanoTime();
+            for(int b=0;b<nBuffers;b++) {
+                vars.q = b%4 == 0 ? 1+.2*Math.sin(b*.1) : vars.q;
+                m.computeBuffer();
+                System.arraycopy(m.buf,0,y,b*bufferSize,bufferSize);
+            }
+            return (System.nanoTime()-t0)/(double)(nBuffers*bufferSize);
+        }
+
+        /* The model as it was, computing all coefficients in every step. */
+        private static class Reference extends TwoMassModel {
+            Reference(int bufferSize, double srate) {
+                super(bufferSize,srate);
+            }
+
+            public void advance(double lambda) {
+                interpolateVars(lambda);
+                updateP1();
+                for(int i=0;i<nOverSamplings-1;i++) {
+                    advanceMasses();
+                    advanceUg(false);
+                }
+                advanceMasses();
+                advanceUg(true);
+            }
+
+            private void interpolateVars(double lambda) {
+                final double DYN = 1.e-5, GRAM = 1.e-3, CM = 1.e-2;
+                vars.interpolatedAg01= vars.Ag01_old + lambda*(vars.Ag01-vars.Ag01_old);
+                vars.interpolatedAg02= vars.Ag02_old + lambda*(vars.Ag02-vars.Ag02_old);
+                vars.interpolatedPs = vars.ps_old + lambda*(vars.ps_new-vars.ps_old);
+                vars.interpolatedQ = vars.q_old + lambda*(vars.q_new-vars.q_old);
+                double q = vars.interpolatedQ;
+                double gs = vars.gs;
+                vars.m1 = .125*GRAM/q;
+                vars.m2 = .025*GRAM/q;
+                vars.d1 = .25*CM/q;
+                vars.d2 = .05*CM/q;
+                vars.k1 = 80000*(DYN/CM)*q;
+                vars.k2 = 8000*(DYN/CM)*q;
+                vars.h1 = 3*vars.k1;
+                vars.h2 = 3*vars.k2;
+                vars.kc = 25000*(DYN/CM)*q*q;
+                vars.r1open = 2*0.2*Math.sqrt(vars.k1*vars.m1)/(gs*gs);
+                vars.r1closed = 2*1.1*Math.sqrt(vars.k1*vars.m1)/(gs*gs);
+                vars.r2open = 2*0.6*Math.sqrt(vars.k2*vars.m2)/(gs*gs);
+                vars.r2closed = 2*1.9*Math.sqrt(vars.k2*vars.m2)/(gs*gs);
+            }
+
+            protected double computeForceOnMass1() {
+                double f1=0;
+                if(x1 > -vars.interpolatedAg01/(2*vars.lg) && x2 > -vars.interpolatedAg02/(2*vars.lg)) {
+                    double Ag1 = vars.interpolatedAg01+2*vars.lg*x1;
+                    double Rv1 = 12*vars.mu*vars.lg*vars.lg*(vars.d1/(Ag1*Ag1*Ag1));
+                    double Lg1 = vars.rho*(vars.d1/Ag1);
+                    f1 = vars.interpolatedPs - 1.37*(vars.rho/2)*(ug/Ag1)*(ug/Ag1)-.5*(Rv1*ug+srate*Lg1*(ug-ugold));
+                    f1 *= vars.d1*vars.lg;
+                } else {
+                    f1 = vars.interpolatedPs * vars.d1*vars.lg;
+                }
+                return f1;
+            }
+
+            protected double computeForceOnMass2(double f1) {
+                double f2=0;
+                if(x1 > -vars.interpolatedAg01/(2*vars.lg)) {
+                    if(x2 > -vars.interpolatedAg02/(2*vars.lg)) {
+                        double Ag1 = vars.interpolatedAg01+2*vars.lg*x1;
+                        double Ag2 = vars.interpolatedAg02+2*vars.lg*x2;
+                        double Rv1 = 12*vars.mu*vars.lg*vars.lg*(vars.d1/(Ag1*Ag1*Ag1));
+                        double Lg1 = vars.rho*(vars.d1/Ag1);
+                        double Rv2 = 12*vars.mu*vars.lg*vars.lg*(vars.d2/(Ag2*Ag2*Ag2));
+                        double Lg2 = vars.rho*(vars.d2/Ag2);
+                        f2 = f1/(vars.d1*vars.lg) -.5*(Rv1+Rv2)*ug-(Lg1+Lg2)*srate*(ug-ugold)-.5*vars.rho*ug*ug*(1/(Ag2*Ag2)-1/(Ag1*Ag1));
+                        f2 *= vars.d2*vars.lg;
+                    } else {
+                        f2 = vars.interpolatedPs * vars.d2*vars.lg;
+                    }
+                }
+                return f2;
+            }
+
+            protected void advanceMasses() {
+                double f1 = computeForceOnMass1();
+                double f2 = computeForceOnMass2(f1);
+                double srate = this.srate*nOverSamplings;
+                double h1=0,h2=0,r1=0,r2=0;
+                if(x1<-vars.interpolatedAg01/(2*vars.lg)) {
+                    h1 = vars.h1;
+                    r1 = vars.r1closed;
+                } else {
+                    r1 = vars.r1open;
+                }
+                if(x2<-vars.interpolatedAg02/(2*vars.lg)) {
+                    h2 = vars.h2;
+                    r2 = vars.r2closed;
+                } else {
+                    r2 = vars.r2open;
+                }
+                double a11 = (vars.k1+h1+vars.kc)/(srate*srate) + r1/srate + vars.m1;
+                double a12 = -vars.kc/(srate*srate);
+                double a21 = a12;
+                double a22 = (vars.k2+h2+vars.kc)/(srate*srate) + r2/srate + vars.m2;
+                double s1prime = vars.k1*vars.etak1*x1*x1*x1+h1*(vars.interpolatedAg01/(2*vars.lg) +
+                                                                 vars.etah1*(vars.interpolatedAg01/(2*vars.lg)+x1)*(vars.interpolatedAg01/(2*vars.lg)+x1)*(vars.interpolatedAg01/(2*vars.lg)+x1));
+                double s2prime = vars.k2*vars.etak2*x2*x2*x2+h2*(vars.interpolatedAg02/(2*vars.lg) +
+                                                                 vars.etah2*(vars.interpolatedAg02/(2*vars.lg)+x2)*(vars.interpolatedAg02/(2*vars.lg)+x2)*(vars.interpolatedAg02/(2*vars.lg)+x2));
+                double b1 = (2*vars.m1+r1/srate)*x1 - vars.m1*xold1-s1prime/(srate*srate) + f1/(srate*srate);
+                double b2 = (2*vars.m2+r2/srate)*x2 - vars.m2*xold2-s2prime/(srate*srate) + f2/(srate*srate);
+                xold1 = x1;
+                xold2 = x2;
+                double det = a11*a22-a21*a12;
+                if(det==0) {
+                    det = 1;
+                }
+                x1 = (a22*b1-a12*b2)/det;
+                x2 = (a11*b2-a21*b1)/det;
+            }
+
+            protected void advanceUg(boolean addNoise) {
+                double srate = this.srate*nOverSamplings;
+                double Ag1 = vars.interpolatedAg01+2*vars.lg*x1;
+                double Ag2 = vars.interpolatedAg02+2*vars.lg*x2;
+                if(Ag1<0 || Ag2<0) {
+                    ug = 0;
+                } else {
+                    if(pressureServer != null) {
+                        vars.A1 = pressureServer.getA1();
+                    }
+                    double uc = (ug + ugold)/2;
+                    double Re2 = (4*vars.rho*vars.rho/(Math.PI*vars.mu*vars.mu))*uc*uc/Ag2;
+                    if(Re2>vars.Rec2 && addNoise) {
+                        float rrr = resonFilter.filter1Sample((float)(Math.random()-.5));
+                        vars.png = vars.gng*(Re2-vars.Rec2)*rrr;
+                    } else {
+                        vars.png = 0;
+                    }
+                    double Rtot = (vars.rho/2)*( 0.37/(Ag1*Ag1) +  (1-2*(Ag2/vars.A1)*(1-Ag2/vars.A1))/(Ag2*Ag2) )
+                        *Math.abs(ug)
+                        + 12*vars.mu*vars.lg*vars.lg*(vars.d1/(Ag1*Ag1*Ag1) + vars.d2/(Ag2*Ag2*Ag2) );
+                    double Ltot = vars.rho*(vars.d1/Ag1 + vars.d2/Ag2);
+                    ugold = ug;
+                    ug = ((vars.interpolatedPs-vars.p1-vars.png)/srate + Ltot*ug)/(Rtot/srate + Ltot);
+                }
+            }
+        }
+    }
+
+    /** Compares the implicit integrator at the sampling rate with the
+        explicit one, oversampled 4 times, over the q and ps ranges of
+        VTNTDemo: level and pitch of the flow, the correlation of the
+        waveforms at the best lag, and the cost per sample.
+        <p>
+        With Ag0=-.005 cm^2 (the default), 21 points are voiced with both
+        integrators, with f0 1% apart on average and 8% at most. IMPLICIT
+        is not a drop-in replacement at these points:
+        <ul>
+        <li> Voiced with one integrator only: q=.25 ps=250 (explicit only),
+             q=.5 ps=2000 and q=.5 ps=6000 (implicit only).
+        <li> Voiced with both, but the waveforms differ (correlation
+             .53 at q=1 ps=4000, .60 at q=.25 ps=4000, where f0 also
+             differs by 8%).
+        </ul>
+        These are near the threshold of voicing or at high ps, where the
+        model is close to chaotic and small differences in the steps
+        change the regime. Correlations around .4-.5 at unvoiced points
+        are between decaying transients and do not matter.
+    */
+    public static class IntegratorComparison {
+        public static void main(String[] args) {
+            int bufferSize = 512;
+            double srate = 44100;
+            double Ag0 = args.length > 0 ? Double.parseDouble(args[0]) : -.005; // in cm^2
+            int nBuffers = 44;
+            double[] qs = {.05,.25,.5,1,2,3,4,6};
+            double[] pss = {250,500,1000,2000,4000,6000};
+            TwoMassModel explicit = new TwoMassModel(bufferSize,srate);
+            TwoMassModel implicit = new TwoMassModel(bufferSize,srate);
+            implicit.setIntegrator(IMPLICIT);
+            float[] y = new float[nBuffers*bufferSize];
+            float[] yImp = new float[nBuffers*bufferSize];
+            double ns = 0, nsImp = 0, maxF0Diff = 0, sumF0Diff = 0;
+            int nVoiced = 0, nUnvoiced = 0;
+            System.out.println("q ps: rms explicit implicit, f0 explicit implicit, correlation");
+            for(int i=0;i<qs.length;i++) {
+                for(int j=0;j<pss.length;j++) {
+                    ns += run(explicit,y,qs[i],pss[j],Ag0);
+                    nsImp += run(implicit,yImp,qs[i],pss[j],Ag0);
+                    // skip the onset
+                    int start = y.length/2;
+                    double f0 = f0(y,start,srate);
+                    double f0Imp = f0(yImp,start,srate);
+                    if(f0 > 0 && f0Imp > 0) {
+                        maxF0Diff = Math.max(maxF0Diff,Math.abs(f0Imp/f0-1));
+                        sumF0Diff += Math.abs(f0Imp/f0-1);
+                        nVoiced++;
+                    } else if(f0 > 0 || f0Imp > 0) {
+                        nUnvoiced++;
+                    }
+                    System.out.println(qs[i]+" "+pss[j]+": "+(float)rms(y,start)+" "+(float)rms(yImp,start)+", "+
+                                       (float)f0+" "+(float)f0Imp+", "+(float)correlation(y,yImp,start));
+                }
+            }
+            int n = qs.length*pss.length;
+            System.out.println(nVoiced+" points voiced with both, f0 difference mean "+(float)(100*sumF0Diff/nVoiced)+
+                               "%, largest "+(float)(100*maxF0Diff)+"%, "+nUnvoiced+" points voiced with one only");
+            System.out.println("explicit "+ns/n+" ns/sample, implicit "+nsImp/n+" ns/sample");
+        }
+
+        /* Render y from rest, return ns per sample. */
+        private static double run(TwoMassModel m, float[] y, double q, double ps, double Ag0) {
+            TwoMassModel.Vars vars = m.getVars();
+            vars.q = q;
+            vars.ps = ps;
+            vars.Ag0 = 1.e-4*Ag0;
+            m.reset();
+            int bufferSize = m.getBufferSize();
+            long t0 = System.nanoTime();
+            for(int b=0;b<y.length/bufferSize;b++) {
+                m.computeBuffer();
+                System.arraycopy(m.buf,0,y,b*bufferSize,bufferSize);
+            }
+            return (System.nanoTime()-t0)/(double)y.length;
+        }
+
+        private static double rms(float[] y, int start) {
+            double sum = 0;
+            for(int i=start;i<y.length;i++) {
+                sum += y[i]*y[i];
+            }
+            return Math.sqrt(sum/(y.length-start));
+        }
+
+        /* Normalized autocorrelation of y-mean from start at lag. */
+        private static double autocorrelation(float[] y, int start, int lag, double mean) {
+            double s = 0, n1 = 0, n2 = 0;
+            for(int i=start;i+lag<y.length;i++) {
+                s += (y[i]-mean)*(y[i+lag]-mean);
+                n1 += (y[i]-mean)*(y[i]-mean);
+                n2 += (y[i+lag]-mean)*(y[i+lag]-mean);
+            }
+            return s/Math.sqrt(n1*n2+1.e-300);
+        }
+
+        /* Pitch from the first autocorrelation peak near the highest one, 0 if
+           not periodic or if the flow does not oscillate. */
+        private static double f0(float[] y, int start, double srate) {
+            double mean = 0, var = 0;
+            for(int i=start;i<y.length;i++) {
+                mean += y[i];
+            }
+            mean /= y.length-start;
+            for(int i=start;i<y.length;i++) {
+                var += (y[i]-mean)*(y[i]-mean);
+            }
+            if(var/(y.length-start) < 1.e-12) { // below 1 cm^3/s
+                return 0;
+            }
+            int minLag = 25, maxLag = 1000; // up to 1764 Hz, down to 44 Hz
+            double[] c = new double[maxLag+1];
+            double cMax = 0;
+            for(int lag=minLag;lag<=maxLag;lag++) {
+                c[lag] = autocorrelation(y,start,lag,mean);
+                cMax = Math.max(cMax,c[lag]);
+            }
+            if(cMax < .5) {
+                return 0;
+            }
+            for(int lag=minLag+1;lag<maxLag;lag++) {
+                if(c[lag] >= .9*cMax && c[lag] >= c[lag-1] && c[lag] >= c[lag+1]) {
+                    return srate/lag;
+                }
+            }
+            return 0;
+        }
+
+        /* Highest normalized correlation of a window of y with yImp shifted by up to 1000 samples. */
+        private static double correlation(float[] y, float[] yImp, int start) {
+            int n = 4096;
+            double best = 0;
+            for(int lag=0;lag<1000;lag++) {
+                double s = 0, n1 = 0, n2 = 0;
+                for(int i=start;i<start+n;i++) {
+                    s += y[i]*yImp[i+lag];
+                    n1 += y[i]*y[i];
+                    n2 += yImp[i+lag]*yImp[i+lag];
+                }
+                best = Math.max(best,s/Math.sqrt(n1*n2+1.e-300));
+            }
+            return best;
+        }
+    }
+
+}
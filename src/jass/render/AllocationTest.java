@@ -0,0 +1,116 @@
+package jass.render;
+import jass.engine.*;
+import jass.generators.*;
+
+/**
+   Regression test: renders the VTNT patch (GlottalWave and TwoMassModel
+   into a FilterContainer holding a RightLoadedWebsterTube) for 10000
+   frames, both by pulling sources and through a RenderPlan, and checks
+   that the render thread allocated nothing in steady state and that the tube output is
+   finite and not silent. Exits with status 1 on failure. Usage:
+   <pre>
+   java jass.render.AllocationTest
+   </pre>
+*/
+class AllocationTest {
+    static final int BUFFER_SIZE = 256;
+    static final float SRATE = 44100;
+    static final int N_WARMUP = 5000;
+    static final int N_FRAMES = 10000;
+    static final double MIN_RMS = .1; // voiced output of this tube has rms about 1.8, peak about 5
+    static final double MAX_ABS = 100;
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = true;
+        ok &= run(false);
+        ok &= run(true);
+        System.out.println(ok ? "OK" : "FAILED");
+        if(!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean run(boolean useRenderPlan) throws Exception {
+        int nSections = 20;
+        TubeModel tm = new TubeModel(nSections);
+        TubeModel tmNasal = new TubeModel(8);
+        tm.setLength(.17);
+        tmNasal.setLength(.11);
+        for(int i=0;i<nSections;i++) {
+            tm.setRadius(i,.01);
+        }
+        for(int i=0;i<8;i++) {
+            tmNasal.setRadius(i,.005);
+        }
+        RightLoadedWebsterTube filter = new RightLoadedWebsterTube(SRATE,tm,.15,tmNasal,.11,.5);
+        filter.useLipModel = false;
+        FilterContainer filterContainer = new FilterContainer(SRATE,BUFFER_SIZE,filter);
+        GlottalWave source = new GlottalWave(SRATE,BUFFER_SIZE);
+        TwoMassModel twoMassSource = new TwoMassModel(BUFFER_SIZE,SRATE);
+        filter.setTwoMassModel(twoMassSource);
+        filterContainer.addSource(source);
+        filter.changeTubeModel();
+        filter.reset();
+        twoMassSource.reset();
+        twoMassSource.getVars().setVars(); // start at the slider values, no ramp
+        SourcePlayer player = new SourcePlayer(BUFFER_SIZE,SRATE);
+        player.setUseRenderPlan(useRenderPlan);
+        player.addSource(filterContainer);
+        short[] out = new short[BUFFER_SIZE];
+        double[] stats = new double[3];
+        // warm up with the same loop, lets lazy initialization and the JIT settle
+        render(player,filterContainer,out,N_WARMUP,stats);
+        com.sun.management.ThreadMXBean mx =
+            (com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        // A deoptimization of the compiled pull path can reallocate a few
+        // hundred bytes once, late (seen in InOut.callSources()), so up to
+        // three windows are measured. An allocation per frame shows up in all.
+        long allocated = 0;
+        for(int attempt=0;attempt<3;attempt++) {
+            stats[0] = stats[1] = stats[2] = 0;
+            long before = mx.getThreadAllocatedBytes(id);
+            render(player,filterContainer,out,N_FRAMES,stats);
+            allocated = mx.getThreadAllocatedBytes(id) - before;
+            System.out.println("useRenderPlan="+useRenderPlan+": "+allocated+" bytes allocated in "+N_FRAMES+
+                               " frames, output rms "+Math.sqrt(stats[0]/(N_FRAMES*BUFFER_SIZE))+" max "+stats[1]);
+            if(allocated == 0) {
+                break;
+            }
+        }
+        double rms = Math.sqrt(stats[0]/(N_FRAMES*BUFFER_SIZE));
+        double maxAbs = stats[1];
+        boolean finite = stats[2] == 0;
+        boolean ok = true;
+        if(allocated != 0) {
+            System.out.println("render thread allocated");
+            ok = false;
+        }
+        if(!finite || maxAbs > MAX_ABS) {
+            System.out.println("output not finite or out of range");
+            ok = false;
+        }
+        if(rms < MIN_RMS) {
+            System.out.println("output silent");
+            ok = false;
+        }
+        return ok;
+    }
+
+    /* Render n frames, add sum of squares of tube output to stats[0], take
+       maximum absolute value in stats[1] and count non-finite samples in stats[2]. */
+    private static void render(SourcePlayer player, Out tube, short[] out, int n, double[] stats) throws BufferNotAvailableException {
+        for(int i=0;i<n;i++) {
+            player.getNextBuffer(out);
+            float[] y = tube.peekAtBuffer();
+            for(int k=0;k<BUFFER_SIZE;k++) {
+                if(Float.isNaN(y[k]) || Float.isInfinite(y[k])) {
+                    stats[2]++;
+                } else {
+                    stats[0] += y[k]*y[k];
+                    stats[1] = Math.max(stats[1],Math.abs(y[k]));
+                }
+            }
+        }
+    }
+}
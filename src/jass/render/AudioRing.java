@@ -0,0 +1,121 @@
+package jass.render;
+import java.util.concurrent.atomic.*;
+
+/**
+   Lock-free single producer, single consumer ring of audio buffers of
+   fixed size. All storage is allocated when created; offer() and poll()
+   copy a buffer in or out and never block or allocate. One thread
+   (the render thread) may call the producer methods and one other thread
+   (the device writer) the consumer methods.
+*/
+
+public final class AudioRing {
+    private final float[] data;
+    private final int bufferSize;
+    private final int depth;
+    private final AtomicLong writeIndex = new AtomicLong(); // buffers written, owned by producer
+    private final AtomicLong readIndex = new AtomicLong();  // buffers read, owned by consumer
+    private volatile long underruns = 0;  // poll() on an empty ring, written by consumer
+    private volatile long minFill;        // lowest fill seen by consumer, written by consumer
+
+    /** Create ring.
+        @param bufferSize size of one buffer in samples.
+        @param depth number of buffers the ring holds.
+    */
+    public AudioRing(int bufferSize,int depth) {
+        if(depth < 1) {
+            depth = 1;
+        }
+        this.bufferSize = bufferSize;
+        this.depth = depth;
+        data = new float[bufferSize*depth];
+        minFill = depth;
+    }
+
+    /** Get size of one buffer.
+        @return buffer size in samples.
+    */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Get number of buffers the ring holds.
+        @return depth.
+    */
+    public int getDepth() {
+        return depth;
+    }
+
+    /** Copy a buffer into the ring. Producer only.
+        @param buf buffer of at least getBufferSize() samples.
+        @return false if the ring was full and nothing was copied.
+    */
+    public boolean offer(float[] buf) {
+        long w = writeIndex.get();
+        if(w - readIndex.get() >= depth) {
+            return false;
+        }
+        System.arraycopy(buf,0,data,(int)(w % depth)*bufferSize,bufferSize);
+        writeIndex.lazySet(w+1); // publishes the copy
+        return true;
+    }
+
+    /** Copy the oldest buffer out of the ring. Consumer only. If the ring
+        is empty the output is silence and an underrun is counted.
+        @param buf buffer of at least getBufferSize() samples to copy into.
+        @return false on underrun.
+    */
+    public boolean poll(float[] buf) {
+        long r = readIndex.get();
+        long fill = writeIndex.get() - r;
+        if(fill < minFill) {
+            minFill = fill;
+        }
+        if(fill == 0) {
+            underruns = underruns+1;
+            for(int k=0;k<bufferSize;k++) {
+                buf[k] = 0;
+            }
+            return false;
+        }
+        System.arraycopy(data,(int)(r % depth)*bufferSize,buf,0,bufferSize);
+        readIndex.lazySet(r+1); // frees the slot
+        return true;
+    }
+
+    /** Get number of buffers waiting to be read.
+        @return fill.
+    */
+    public int getFill() {
+        return (int)(writeIndex.get() - readIndex.get());
+    }
+
+    /** Check if there is no room for another buffer.
+        @return true if full.
+    */
+    public boolean isFull() {
+        return getFill() >= depth;
+    }
+
+    /** Get number of times the consumer found the ring empty.
+        @return underrun count.
+    */
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    /** Get lowest fill seen by the consumer before reading, a measure of
+        how close the render thread came to an underrun.
+        @return lowest fill in buffers.
+    */
+    public int getMinFill() {
+        return (int)minFill;
+    }
+
+    /** Reset the counters. Call from the consumer thread or when it is idle.
+     */
+    public void resetCounters() {
+        underruns = 0;
+        minFill = depth;
+    }
+}
@@ -0,0 +1,276 @@
+package jass.render;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import jass.engine.*;
+
+/**
+   Renders many independent jobs with the same patch concurrently. Each
+   worker thread builds one Patch from the factory and reuses it for
+   all the jobs it takes: Patch.configure() applies the parameters of a
+   job and resets the state of the units instead of allocating a new
+   graph. The graph of a worker is compiled into a RenderPlan once.
+   Jobs are handed out one at a time, so workers stay busy when job
+   lengths differ. Output of a job is streamed buffer by buffer to a
+   JobWriter obtained from an Output, e.g., a .wav file per job
+   (wavFiles()) or memory (MemoryOutput).
+*/
+
+public class BatchRenderer<J> {
+
+    /** A graph instance owned by one worker.
+     */
+    public interface Patch<J> {
+        /** Set parameters for a job and reset the state of the graph.
+            @param job job parameters.
+        */
+        void configure(J job);
+
+        /** Get the unit whose output is rendered. Must be the same for all jobs.
+            @return output of the graph.
+        */
+        Source getOutput();
+
+        /** Get length of a job.
+            @param job job parameters.
+            @return number of buffers to render.
+        */
+        long getNFrames(J job);
+    }
+
+    /** Creates a Patch for each worker.
+     */
+    public interface PatchFactory<J> {
+        /** Build a new graph instance.
+            @return patch.
+        */
+        Patch<J> create();
+    }
+
+    /** Receives the output of one job, from one worker thread.
+     */
+    public interface JobWriter {
+        /** Append samples.
+            @param buf samples.
+            @param n number of samples from buf.
+        */
+        void write(float[] buf,int n) throws IOException;
+
+        /** Job is complete.
+         */
+        void close() throws IOException;
+    }
+
+    /** Provides a JobWriter per job. Called from worker threads concurrently.
+     */
+    public interface Output<J> {
+        /** Start output of a job.
+            @param index index of job in the list passed to render().
+            @param job job parameters.
+            @return writer for the output of the job.
+        */
+        JobWriter open(int index,J job) throws IOException;
+    }
+
+    private final PatchFactory<J> factory;
+    private final int nThreads;
+    private final int bufferSize;
+    private final float srate;
+    private volatile long framesRendered;
+    private volatile long wallNanos;
+
+    /** Create renderer.
+        @param factory builds one graph per worker.
+        @param nThreads number of worker threads, 0 for one per core.
+        @param bufferSize buffer size of the graphs.
+        @param srate sampling rate in Hz.
+    */
+    public BatchRenderer(PatchFactory<J> factory,int nThreads,int bufferSize,float srate) {
+        this.factory = factory;
+        if(nThreads <= 0) {
+            nThreads = Runtime.getRuntime().availableProcessors();
+        }
+        this.nThreads = nThreads;
+        this.bufferSize = bufferSize;
+        this.srate = srate;
+    }
+
+    /** Get number of worker threads.
+        @return number of workers.
+    */
+    public int getNThreads() {
+        return nThreads;
+    }
+
+    /** Render all jobs and wait until done. A job that fails is reported
+        and skipped; its writer is closed.
+        @param jobs parameters of each job.
+        @param output where the results go.
+        @return number of jobs that failed.
+    */
+    public int render(final List<J> jobs,final Output<J> output) {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicLong frames = new AtomicLong();
+        int nWorkers = Math.min(nThreads,jobs.size());
+        Thread[] workers = new Thread[nWorkers];
+        long startNanos = System.nanoTime();
+        for(int w=0;w<nWorkers;w++) {
+            workers[w] = new Thread("BatchRenderer-"+w) {
+                    public void run() {
+                        Patch<J> patch = factory.create();
+                        Source out = patch.getOutput();
+                        RenderPlan plan = RenderPlan.compile(new Source[] {out});
+                        int i;
+                        while((i = next.getAndIncrement()) < jobs.size()) {
+                            J job = jobs.get(i);
+                            JobWriter writer = null;
+                            try {
+                                patch.configure(job);
+                                long n = patch.getNFrames(job);
+                                writer = output.open(i,job);
+                                for(long k=0;k<n;k++) {
+                                    plan.run(plan.getTime()+1);
+                                    writer.write(plan.getOutput(0),bufferSize);
+                                }
+                                frames.addAndGet(n);
+                            } catch(Exception e) {
+                                System.out.println("BatchRenderer: job "+i+" failed: "+e);
+                                failed.incrementAndGet();
+                            } finally {
+                                if(writer != null) {
+                                    try {
+                                        writer.close();
+                                    } catch(IOException e) {
+                                        System.out.println("BatchRenderer: job "+i+" failed: "+e);
+                                        failed.incrementAndGet();
+                                    }
+                                }
+                            }
+                        }
+                    }
+                };
+            workers[w].start();
+        }
+        for(int w=0;w<nWorkers;w++) {
+            try {
+                workers[w].join();
+            } catch(InterruptedException e) {
+                System.out.println("BatchRenderer: interrupted");
+            }
+        }
+        wallNanos = System.nanoTime()-startNanos;
+        framesRendered = frames.get();
+        return failed.get();
+    }
+
+    /** Get speed of last render(), all workers together.
+        @return seconds of audio per second of wall clock time.
+    */
+    public double getRealTimeFactor() {
+        if(wallNanos == 0) {
+            return 0;
+        }
+        return (framesRendered*bufferSize/(double)srate)/(wallNanos/1.e9);
+    }
+
+    /** Get wall clock time of last render().
+        @return seconds.
+    */
+    public double getElapsedSeconds() {
+        return wallNanos/1.e9;
+    }
+
+    /** Output writing a .wav file per job, named prefix+index+".wav".
+        @param prefix path and start of file names.
+        @param srate sampling rate in Hz.
+        @param format one of WavFileWriter.PCM_16, PCM_24, FLOAT_32.
+        @return output.
+    */
+    public static <J> Output<J> wavFiles(final String prefix,final float srate,final int format) {
+        return wavFiles(prefix,srate,format,1,null);
+    }
+
+    /** Output writing a .wav file per job, named prefix+index+".wav",
+        scaled by a gain, as OfflineRenderer.setGain() does.
+        @param prefix path and start of file names.
+        @param srate sampling rate in Hz.
+        @param format one of WavFileWriter.PCM_16, PCM_24, FLOAT_32.
+        @param gain gain applied before writing.
+        @param peaks if not null, receives the largest absolute sample
+        written (after the gain) of each job, indexed like the jobs. PCM
+        output is clipped if above 1.
+        @return output.
+    */
+    public static <J> Output<J> wavFiles(final String prefix,final float srate,final int format,
+                                         final float gain,final float[] peaks) {
+        return new Output<J>() {
+            public JobWriter open(final int index,J job) throws IOException {
+                final WavFileWriter w = new WavFileWriter(prefix+index+".wav",srate,1,format);
+                return new JobWriter() {
+                    private float[] scaled = new float[0];
+                    private float peak = 0;
+                    public void write(float[] buf,int n) throws IOException {
+                        if(scaled.length < n) {
+                            scaled = new float[n];
+                        }
+                        for(int k=0;k<n;k++) {
+                            float y = gain*buf[k];
+                            scaled[k] = y;
+                            peak = Math.max(peak,Math.abs(y));
+                        }
+                        w.write(scaled,n);
+                    }
+                    public void close() throws IOException {
+                        if(peaks != null) {
+                            peaks[index] = peak;
+                        }
+                        w.close();
+                    }
+                };
+            }
+        };
+    }
+
+    /** Output keeping the samples of each job in memory.
+     */
+    public static class MemoryOutput<J> implements Output<J> {
+        private final float[][] results;
+
+        /** Create.
+            @param nJobs number of jobs.
+        */
+        public MemoryOutput(int nJobs) {
+            results = new float[nJobs][];
+        }
+
+        public JobWriter open(final int index,J job) {
+            return new JobWriter() {
+                private float[] data = new float[1<<14];
+                private int len = 0;
+                public void write(float[] buf,int n) {
+                    if(len+n > data.length) {
+                        data = Arrays.copyOf(data,Math.max(2*data.length,len+n));
+                    }
+                    System.arraycopy(buf,0,data,len,n);
+                    len += n;
+                }
+                public void close() {
+                    synchronized(results) {
+                        results[index] = Arrays.copyOf(data,len);
+                    }
+                }
+            };
+        }
+
+        /** Get output of a job after render().
+            @param index index of job.
+            @return samples, or null if the job failed.
+        */
+        public float[] getSamples(int index) {
+            synchronized(results) {
+                return results[index];
+            }
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package jass.render;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import jass.engine.*;
+import jass.generators.*;
+
+/**
+   Tracks the formants of its input while passing it through unchanged,
+   e.g., placed between a FilterContainer with a RightLoadedWebsterTube
+   and the SourcePlayer. The render thread only copies each buffer into
+   an AudioRing (dropping it if the ring is full) and never blocks. A
+   background thread decimates the signal to about 11 kHz, and at the
+   control rate computes an LPC model of the last window (pre-emphasis,
+   Hamming window, autocorrelation, Levinson-Durbin) and finds its poles
+   by Durand-Kerner iteration, started from the poles of the previous
+   frame so it usually converges in a few iterations. F1-F4 and their
+   bandwidths are published with a sequence counter so control threads
+   can read a consistent set without locking. All buffers are allocated
+   when created.
+   <pre>
+   FormantTracker tracker = new FormantTracker(bufferSize,srate);
+   tracker.addSource(filterContainer);
+   player.addSource(tracker);
+   tracker.start();
+   ...
+   int n = tracker.getFormants(f,bw); // any thread
+   </pre>
+*/
+
+public class FormantTracker extends FilterUG {
+    /** Maximum number of formants reported. */
+    public static final int N_FORMANTS = 4;
+    static final double ANALYSIS_RATE = 11025; // approximate
+    static final double PRE_EMPHASIS = .97;
+    static final double F_MIN = 90; // lowest formant (Hz)
+    static final double BW_MAX = 600; // widest formant (Hz)
+    static final int MAX_ITERATIONS = 50;
+
+    private float srate;
+    private float analysisRate;
+    private int factor; // decimation factor
+    private int order; // LPC order
+    private int windowSize; // in decimated samples
+    private int hopSize; // in decimated samples
+    private AudioRing ring;
+    private volatile long dropped = 0; // buffers not analysed because the ring was full
+
+    // analysis thread state
+    private volatile Thread thread = null;
+    private volatile boolean running = false;
+    private PolyphaseDecimator decimator;
+    private float[] inBuf;
+    private double[] inDouble;
+    private float[] decBuf;
+    private float[] history; // circular, last windowSize decimated samples
+    private int historyPos = 0;
+    private int sinceHop = 0;
+    private double[] window;
+    private double[] frame;
+    private double[] r; // autocorrelation
+    private double[] a, aTmp; // prediction polynomial, a[0] = 1
+    private double[] rootRe, rootIm; // poles
+    private boolean rootsValid = false;
+    private double[] fTmp, bwTmp;
+
+    // published results: frame count, number of formants, then formants and
+    // bandwidths as raw long bits. Volatile elements, so the sequence check is safe
+    private volatile int seq = 0; // odd while writing
+    private final AtomicLongArray published = new AtomicLongArray(2+2*N_FORMANTS);
+
+    /** Create with 100 Hz control rate, 25 ms window.
+        @param bufferSize Buffer size used for real-time rendering.
+        @param srate sampling rate in Hertz.
+    */
+    public FormantTracker(int bufferSize, float srate) {
+        this(bufferSize,srate,100,.025,32);
+    }
+
+    /** Create.
+        @param bufferSize Buffer size used for real-time rendering.
+        @param srate sampling rate in Hertz.
+        @param controlRate number of analyses per second.
+        @param windowLength analysis window in seconds.
+        @param ringDepth number of buffers the ring to the analysis thread holds.
+    */
+    public FormantTracker(int bufferSize, float srate, double controlRate, double windowLength, int ringDepth) {
+        super(bufferSize);
+        this.srate = srate;
+        // largest factor that divides the buffer size
+        factor = Math.max(1,(int)Math.round(srate/ANALYSIS_RATE));
+        while(bufferSize%factor != 0) {
+            factor--;
+        }
+        analysisRate = srate/factor;
+        order = 2+(int)(analysisRate/1000);
+        windowSize = (int)(windowLength*analysisRate);
+        hopSize = Math.max(1,(int)(analysisRate/controlRate));
+        ring = new AudioRing(bufferSize,ringDepth);
+        decimator = factor > 1 ? new PolyphaseDecimator(factor) : null;
+        inBuf = new float[bufferSize];
+        inDouble = new double[bufferSize];
+        decBuf = new float[bufferSize/factor];
+        history = new float[windowSize];
+        window = new double[windowSize];
+        for(int i=0;i<windowSize;i++) {
+            window[i] = .54-.46*Math.cos(2*Math.PI*i/(windowSize-1));
+        }
+        frame = new double[windowSize];
+        r = new double[order+1];
+        a = new double[order+1];
+        aTmp = new double[order+1];
+        rootRe = new double[order];
+        rootIm = new double[order];
+        fTmp = new double[order];
+        bwTmp = new double[order];
+    }
+
+    /** Start the analysis thread.
+     */
+    public synchronized void start() {
+        if(thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread("FormantTracker") {
+                public void run() {
+                    analyse();
+                }
+            };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /** Stop the analysis thread and wait for it to finish.
+     */
+    public synchronized void stop() {
+        if(thread == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch(InterruptedException e) {
+        }
+        thread = null;
+    }
+
+    /** Get the latest formants. Never blocks.
+        @param f at least N_FORMANTS elements for the frequencies in Hz.
+        @param bw at least N_FORMANTS elements for the bandwidths in Hz.
+        @return number of formants found (0 for silence).
+    */
+    public int getFormants(double[] f, double[] bw) {
+        int n, s;
+        do {
+            s = seq;
+            n = (int)published.get(1);
+            for(int i=0;i<N_FORMANTS;i++) {
+                f[i] = Double.longBitsToDouble(published.get(2+i));
+                bw[i] = Double.longBitsToDouble(published.get(2+N_FORMANTS+i));
+            }
+        } while((s & 1) != 0 || s != seq);
+        return n;
+    }
+
+    /** Get number of analysis frames published so far.
+        @return frame count.
+    */
+    public long getFrameCount() {
+        return published.get(0);
+    }
+
+    /** Get number of buffers dropped because the analysis thread fell behind.
+        @return dropped buffers.
+    */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /** Get the LPC order.
+        @return order.
+    */
+    public int getOrder() {
+        return order;
+    }
+
+    /** Get sampling rate of the analysis.
+        @return rate in Hz.
+    */
+    public float getAnalysisRate() {
+        return analysisRate;
+    }
+
+    /** Compute the next buffer and store in member float[] buf.
+     */
+    protected void computeBuffer() {
+        int bufsz = getBufferSize();
+        float[] tmpsrc = srcBuffers[0];
+        for(int k=0;k<bufsz;k++) {
+            buf[k] = tmpsrc[k];
+        }
+        if(!ring.offer(buf)) {
+            dropped = dropped+1;
+        }
+        Thread t = thread;
+        if(t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /* Analysis thread loop. */
+    private void analyse() {
+        long bufferNanos = (long)(1.e9*getBufferSize()/srate);
+        int bufsz = getBufferSize();
+        int ndec = bufsz/factor;
+        while(running) {
+            if(ring.getFill() == 0) {
+                LockSupport.parkNanos(bufferNanos);
+                continue;
+            }
+            ring.poll(inBuf);
+            if(decimator != null) {
+                for(int k=0;k<bufsz;k++) {
+                    inDouble[k] = inBuf[k];
+                }
+                decimator.decimate(inDouble,decBuf,ndec);
+            } else {
+                System.arraycopy(inBuf,0,decBuf,0,bufsz);
+            }
+            for(int k=0;k<ndec;k++) {
+                history[historyPos] = decBuf[k];
+                historyPos = historyPos+1 == windowSize ? 0 : historyPos+1;
+                if(++sinceHop == hopSize) {
+                    sinceHop = 0;
+                    analyseFrame();
+                }
+            }
+        }
+    }
+
+    /* LPC analysis of the last window and publish. */
+    private void analyseFrame() {
+        double prev = 0;
+        for(int i=0,j=historyPos;i<windowSize;i++) {
+            double x = history[j];
+            frame[i] = (x-PRE_EMPHASIS*prev)*window[i];
+            prev = x;
+            j = j+1 == windowSize ? 0 : j+1;
+        }
+        for(int lag=0;lag<=order;lag++) {
+            double sum = 0;
+            for(int i=lag;i<windowSize;i++) {
+                sum += frame[i]*frame[i-lag];
+            }
+            r[lag] = sum;
+        }
+        int n = 0;
+        if(r[0] > 1.e-12 && levinson()) {
+            if(findRoots()) {
+                n = collectFormants();
+            } else {
+                rootsValid = false;
+            }
+        }
+        seq = seq+1;
+        published.set(1,n);
+        for(int i=0;i<N_FORMANTS;i++) {
+            published.set(2+i,Double.doubleToRawLongBits(i<n ? fTmp[i] : 0));
+            published.set(2+N_FORMANTS+i,Double.doubleToRawLongBits(i<n ? bwTmp[i] : 0));
+        }
+        published.set(0,published.get(0)+1);
+        seq = seq+1;
+    }
+
+    /* Levinson-Durbin recursion for a[] from r[], false if unstable. */
+    private boolean levinson() {
+        r[0] *= 1+1.e-9; // white noise correction
+        a[0] = 1;
+        for(int i=1;i<=order;i++) {
+            a[i] = 0;
+        }
+        double err = r[0];
+        for(int i=1;i<=order;i++) {
+            double acc = r[i];
+            for(int j=1;j<i;j++) {
+                acc += a[j]*r[i-j];
+            }
+            double k = -acc/err;
+            if(Math.abs(k) >= 1) {
+                return false;
+            }
+            for(int j=1;j<i;j++) {
+                aTmp[j] = a[j]+k*a[i-j];
+            }
+            for(int j=1;j<i;j++) {
+                a[j] = aTmp[j];
+            }
+            a[i] = k;
+            err *= 1-k*k;
+        }
+        return true;
+    }
+
+    /* Roots of z^p + a[1] z^(p-1) + ... + a[p] by Durand-Kerner iteration,
+       starting from the previous roots if there are any. */
+    private boolean findRoots() {
+        if(!rootsValid) {
+            for(int i=0;i<order;i++) {
+                double phi = Math.PI*(i+.5)/order + .1;
+                rootRe[i] = .9*Math.cos(phi);
+                rootIm[i] = .9*Math.sin(phi) * (i%2==0 ? 1 : -1);
+            }
+        }
+        for(int it=0;it<MAX_ITERATIONS;it++) {
+            double maxStep = 0;
+            for(int i=0;i<order;i++) {
+                double zr = rootRe[i], zi = rootIm[i];
+                // p(z) by Horner
+                double pr = 1, pi = 0;
+                for(int j=1;j<=order;j++) {
+                    double t = pr*zr-pi*zi+a[j];
+                    pi = pr*zi+pi*zr;
+                    pr = t;
+                }
+                // product of differences to the other roots
+                double qr = 1, qi = 0;
+                for(int j=0;j<order;j++) {
+                    if(j != i) {
+                        double dr = zr-rootRe[j], di = zi-rootIm[j];
+                        double t = qr*dr-qi*di;
+                        qi = qr*di+qi*dr;
+                        qr = t;
+                    }
+                }
+                double den = qr*qr+qi*qi;
+                if(den == 0) {
+                    return false;
+                }
+                double sr = (pr*qr+pi*qi)/den, si = (pi*qr-pr*qi)/den;
+                rootRe[i] = zr-sr;
+                rootIm[i] = zi-si;
+                maxStep = Math.max(maxStep,Math.abs(sr)+Math.abs(si));
+            }
+            if(maxStep < 1.e-10) {
+                rootsValid = true;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Formants from the roots in the upper half plane, sorted by frequency. */
+    private int collectFormants() {
+        int n = 0;
+        for(int i=0;i<order;i++) {
+            if(rootIm[i] <= 0) {
+                continue;
+            }
+            double f = Math.atan2(rootIm[i],rootRe[i])*analysisRate/(2*Math.PI);
+            double mag = Math.sqrt(rootRe[i]*rootRe[i]+rootIm[i]*rootIm[i]);
+            double bw = -Math.log(mag)*analysisRate/Math.PI;
+            if(f < F_MIN || bw > BW_MAX || bw <= 0) {
+                continue;
+            }
+            // insertion sort
+            int j = n++;
+            while(j > 0 && fTmp[j-1] > f) {
+                fTmp[j] = fTmp[j-1];
+                bwTmp[j] = bwTmp[j-1];
+                j--;
+            }
+            fTmp[j] = f;
+            bwTmp[j] = bw;
+        }
+        return Math.min(n,N_FORMANTS);
+    }
+}
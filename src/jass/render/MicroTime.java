@@ -22,7 +22,7 @@ public class MicroTime {
         if(useNative) {
             return getMicroTime();
         } else {
-            return System.currentTimeMillis()/1000.;
+            return System.nanoTime()/1.e9;
         }
     }
     
@@ -0,0 +1,191 @@
+package jass.render;
+import java.io.*;
+import java.util.*;
+import jass.engine.*;
+
+/**
+   Renders Sources to a .wav file as fast as possible. The graph below
+   the sources is compiled into a RenderPlan and the mixed output is
+   written directly by a WavFileWriter, so there is no raw file and no
+   second conversion pass as with SourcePlayer(bufferSize,srate,fn) and
+   ConvertRawToWav. There is no AGC; the mix is scaled by a fixed gain.
+   Usage:
+   <pre>
+   OfflineRenderer r = new OfflineRenderer(bufferSize,srate);
+   r.addSource(source);
+   r.render("out.wav",2.0,WavFileWriter.PCM_16);
+   System.out.println(r.getRealTimeFactor());
+   </pre>
+   or open(), renderFrames() as often as needed (e.g., changing
+   parameters in between) and close().
+*/
+
+public class OfflineRenderer {
+    private int bufferSize;
+    private float srate;
+    private float gain = 1;
+    private Vector<Source> sourceContainer = new Vector<Source>();
+    private RenderPlan renderPlan = null;
+    private float[] mixBuf;
+    private WavFileWriter writer = null;
+    private long renderNanos = 0; // wall time spent since open()
+    private long framesRendered = 0;
+    private float peak = 0; // largest absolute output sample since open()
+
+    /** Create renderer.
+        @param bufferSize buffer size of the graph.
+        @param srate sampling rate in Hz.
+    */
+    public OfflineRenderer(int bufferSize,float srate) {
+        this.bufferSize = bufferSize;
+        this.srate = srate;
+        mixBuf = new float[bufferSize];
+    }
+
+    /** Add a source to the mix.
+        @param s source.
+    */
+    public void addSource(Source s) {
+        sourceContainer.addElement(s);
+        renderPlan = null;
+    }
+
+    /** Remove a source from the mix.
+        @param s source.
+    */
+    public void removeSource(Source s) {
+        sourceContainer.removeElement(s);
+        renderPlan = null;
+    }
+
+    /** Get the sources.
+        @return sources.
+    */
+    public Source[] getSources() {
+        return sourceContainer.toArray(new Source[0]);
+    }
+
+    /** Set gain applied to the mix.
+        @param gain gain.
+    */
+    public void setGain(float gain) {
+        this.gain = gain;
+    }
+
+    /** Get gain applied to the mix.
+        @return gain.
+    */
+    public float getGain() {
+        return gain;
+    }
+
+    /** Open output file. Rendering continues from the current time of the sources.
+        @param fn file name.
+        @param format one of WavFileWriter.PCM_16, PCM_24, FLOAT_32.
+    */
+    public void open(String fn,int format) throws IOException {
+        if(writer != null) {
+            close();
+        }
+        writer = new WavFileWriter(fn,srate,1,format);
+        renderPlan = RenderPlan.compile(getSources());
+        renderNanos = 0;
+        framesRendered = 0;
+        peak = 0;
+    }
+
+    /** Render buffers and append them to the open file.
+        @param nframes number of buffers to render.
+    */
+    public void renderFrames(long nframes) throws IOException, BufferNotAvailableException {
+        if(writer == null) {
+            throw new IOException("OfflineRenderer: no file open");
+        }
+        if(renderPlan == null) {
+            renderPlan = RenderPlan.compile(getSources());
+        }
+        long startNanos = System.nanoTime();
+        int nsources = renderPlan.getNRoots();
+        for(long n=0;n<nframes;n++) {
+            renderPlan.run(renderPlan.getTime()+1);
+            for(int k=0;k<bufferSize;k++) {
+                mixBuf[k] = 0;
+            }
+            for(int is=0;is<nsources;is++) {
+                float[] y = renderPlan.getOutput(is);
+                for(int k=0;k<bufferSize;k++) {
+                    mixBuf[k] += y[k];
+                }
+            }
+            if(gain != 1) {
+                for(int k=0;k<bufferSize;k++) {
+                    mixBuf[k] *= gain;
+                }
+            }
+            for(int k=0;k<bufferSize;k++) {
+                peak = Math.max(peak,Math.abs(mixBuf[k]));
+            }
+            writer.write(mixBuf,bufferSize);
+        }
+        framesRendered += nframes;
+        renderNanos += System.nanoTime()-startNanos;
+    }
+
+    /** Render for a duration and append to the open file. Rounded up to whole buffers.
+        @param seconds duration in seconds.
+    */
+    public void renderSeconds(double seconds) throws IOException, BufferNotAvailableException {
+        renderFrames((long)Math.ceil(seconds*srate/bufferSize));
+    }
+
+    /** Finish the file.
+     */
+    public void close() throws IOException {
+        if(writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /** Render to a file in one go.
+        @param fn file name.
+        @param seconds duration in seconds.
+        @param format one of WavFileWriter.PCM_16, PCM_24, FLOAT_32.
+        @return realtime factor, seconds of audio per second of rendering.
+    */
+    public double render(String fn,double seconds,int format) throws IOException, BufferNotAvailableException {
+        open(fn,format);
+        try {
+            renderSeconds(seconds);
+        } finally {
+            close();
+        }
+        return getRealTimeFactor();
+    }
+
+    /** Get rendering speed since open(), including writing. File
+        system flushes in close() are not included.
+        @return seconds of audio per second of wall clock time.
+    */
+    public double getRealTimeFactor() {
+        if(renderNanos == 0) {
+            return 0;
+        }
+        return (framesRendered*bufferSize/(double)srate)/(renderNanos/1.e9);
+    }
+
+    /** Get largest absolute sample written since open(), after the
+        gain. PCM output clipped if above 1.
+        @return peak level.
+    */
+    public float getPeak() {
+        return peak;
+    }
+
+    /** Get number of buffers rendered since open().
+        @return number of buffers.
+    */
+    public long getFramesRendered() {
+        return framesRendered;
+    }
+}
@@ -1,5 +1,6 @@
 package jass.render;
 import java.io.*;
+import java.util.concurrent.locks.LockSupport;
 import jass.engine.*;
 import jass.generators.*;
 
@@ -22,7 +23,7 @@ public class SourcePlayer extends In {
     private byte[] byteBuf; // to dump to output
     private FileOutputStream outStream=null;
     private PrintStream printStream=null;
-    private boolean stopFlag = false; // set to true to stop
+    private volatile boolean stopFlag = false; // set to true to stop, polled by the device writer thread
     private String preferredMixer = null; // use this Mixer if possible
     private boolean muted = false; // to mute/unmute
     private boolean useNativeSound = false;
@@ -40,6 +41,11 @@ public class SourcePlayer extends In {
     private RTAudioFullDuplexRtAudio rtfd = null; // for full duplex with native RtAudio libs
     private boolean renderToFile = false;
     private float playVolume = 1;
+    private boolean useRenderPlan = false; // run compiled plan instead of pulling sources
+    private RenderPlan renderPlan = null;
+    private RenderProfiler profiler = null; // times each frame if set
+    private int renderAheadDepth = 0; // buffers rendered ahead of the device, 0 is off
+    private AudioRing audioRing = null;
 	
     /** Initialize the ASIO libraries this is done in JassASIO.dll
         The system will begin running once the initialization has occurred
@@ -238,6 +244,79 @@ public class SourcePlayer extends In {
 	return this.playVolume;
     }
 	
+    /** Set whether to render through a compiled RenderPlan rather than pulling the sources
+        recursively. The plan is compiled on the first buffer, call invalidateRenderPlan()
+        after changing the graph.
+        @param value true to use a compiled plan
+    */
+    public void setUseRenderPlan(boolean value) {
+        this.useRenderPlan = value;
+        renderPlan = null;
+    }
+
+    /** Get whether rendering goes through a compiled RenderPlan.
+        @return true if using a compiled plan
+    */
+    public boolean getUseRenderPlan() {
+        return useRenderPlan;
+    }
+
+    /** Discard the compiled plan so it will be rebuilt on the next buffer.
+     */
+    public void invalidateRenderPlan() {
+        renderPlan = null;
+    }
+
+    /** Set profiler to report frame render times to, or null for none. Units are
+        timed only if attached to the profiler with RenderProfiler.attach().
+        @param profiler profiler
+    */
+    public void setRenderProfiler(RenderProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /** Get profiler.
+        @return profiler, or null if not profiling.
+    */
+    public RenderProfiler getRenderProfiler() {
+        return profiler;
+    }
+
+    /** Set render-ahead mode. Instead of writing each buffer to the device
+        as soon as it is computed, the player renders into a ring of depth
+        buffers which a separate device thread drains. This adds a fixed
+        latency of depth*bufferSize/srate seconds, and frames that take
+        longer than real-time to compute are absorbed as long as the ring
+        does not run empty. An empty ring plays silence and counts an
+        underrun. Must be called before the player is started. Not used with
+        native full duplex audio.
+        @param depth number of buffers to render ahead, 0 to write directly.
+    */
+    public void setRenderAhead(int depth) {
+        this.renderAheadDepth = depth;
+    }
+
+    /** Get render-ahead depth.
+        @return number of buffers rendered ahead, 0 if off.
+    */
+    public int getRenderAhead() {
+        return renderAheadDepth;
+    }
+
+    /** Get number of buffers the device found no rendered audio for in render-ahead mode.
+        @return underrun count.
+    */
+    public long getUnderruns() {
+        return audioRing == null ? 0 : audioRing.getUnderruns();
+    }
+
+    /** Get ring between render and device thread, e.g., to watch its fill.
+        @return ring, or null if not playing in render-ahead mode.
+    */
+    public AudioRing getAudioRing() {
+        return audioRing;
+    }
+
     /** Enable AGC */
     public void AGCOn() {
         agc = true;
@@ -360,13 +439,21 @@ public class SourcePlayer extends In {
     public void getNextBuffer(short[] myData) throws BufferNotAvailableException {
         //counter++;
         int nsources = sourceContainer.size();
+        long startNanos = profiler != null ? System.nanoTime() : 0;
         for(int k=0;k<bufferSize;k++) {
             tempBuf[k] = 0;
         }
 		
+        if(useRenderPlan) {
+            if(renderPlan == null || renderPlan.getNRoots() != nsources) {
+                renderPlan = RenderPlan.compile(getSources());
+            }
+            renderPlan.run(t);
+        }
         // Mixdown all sources
         for(int is=0;is<nsources;is++) {
-            float[] y = ((Source) sourceContainer.elementAt(is)).getBuffer(t);
+            float[] y = useRenderPlan ? renderPlan.getOutput(is) :
+                ((Source) sourceContainer.elementAt(is)).getBuffer(t);
             if(!muted) {
                 for(int k=0;k<bufferSize;k++) {
                     tempBuf[k] += y[k];
@@ -390,6 +477,9 @@ public class SourcePlayer extends In {
 		tempBuf[i] *= playVolume;
 	    }
 	}
+        if(profiler != null) {
+            profiler.frameDone(t,System.nanoTime()-startNanos);
+        }
 		
         t++;
 		
@@ -403,12 +493,20 @@ public class SourcePlayer extends In {
     */
     private float[] getNextBuffer() throws BufferNotAvailableException {
         int nsources = sourceContainer.size();
+        long startNanos = profiler != null ? System.nanoTime() : 0;
         for(int k=0;k<bufferSize;k++) {
             tempBuf[k] = 0;
         }
+        if(useRenderPlan) {
+            if(renderPlan == null || renderPlan.getNRoots() != nsources) {
+                renderPlan = RenderPlan.compile(getSources());
+            }
+            renderPlan.run(t);
+        }
         // Mixdown all sources
         for(int is=0;is<nsources;is++) {
-            float[] y = ((Source) sourceContainer.elementAt(is)).getBuffer(t);
+            float[] y = useRenderPlan ? renderPlan.getOutput(is) :
+                ((Source) sourceContainer.elementAt(is)).getBuffer(t);
             if(!muted) {
                 for(int k=0;k<bufferSize;k++) {
                     tempBuf[k] += y[k];
@@ -432,6 +530,9 @@ public class SourcePlayer extends In {
 		tempBuf[i] *= playVolume;
 	    }
 	}
+        if(profiler != null) {
+            profiler.frameDone(t,System.nanoTime()-startNanos);
+        }
         t++;
         return tempBuf;
     }
@@ -474,6 +575,10 @@ public class SourcePlayer extends In {
             for(int is=0;is<nsources;is++) {
                 ((Source) sourceContainer.elementAt(is)).setTime(t);
             }
+            renderPlan = null;
+            if(renderAheadDepth > 0 && !useNativeSoundFullDuplex) {
+                runRenderAhead();
+            }
             while(!stopFlag) {
                 try {
                     if(useNativeSoundFullDuplex) {
@@ -495,6 +600,50 @@ public class SourcePlayer extends In {
         }
     }
 	
+    /* Render into the ring on this thread and write to the device from
+       another until stopped. The device thread waits for the ring to fill
+       before it starts, so playback begins with the full margin.
+    */
+    private void runRenderAhead() {
+        final AudioRing ring = new AudioRing(bufferSize,renderAheadDepth);
+        final Thread renderThread = Thread.currentThread();
+        final long bufferNanos = (long)(1.e9*bufferSize/srate);
+        audioRing = ring;
+        Thread deviceWriter = new Thread() {
+                public void run() {
+                    float[] devBuf = new float[bufferSize];
+                    while(!stopFlag && !ring.isFull()) {
+                        LockSupport.parkNanos(bufferNanos/4);
+                    }
+                    while(!stopFlag) {
+                        ring.poll(devBuf);
+                        LockSupport.unpark(renderThread);
+                        pb.write(devBuf);
+                    }
+                }
+            };
+        deviceWriter.setPriority(Thread.MAX_PRIORITY);
+        deviceWriter.start();
+        while(!stopFlag) {
+            float[] y;
+            try {
+                y = getNextBuffer();
+            } catch(BufferNotAvailableException ee) {
+                System.out.println(ee+" Sourceplayer could not get play buffer");
+                System.exit(0);
+                return;
+            }
+            // woken by the device thread when it frees a slot
+            while(!ring.offer(y) && !stopFlag) {
+                LockSupport.parkNanos(bufferNanos);
+            }
+        }
+        try {
+            deviceWriter.join();
+        } catch(InterruptedException e) {
+        }
+    }
+
     /** Initialize the ASIO system and start it up.
         This must be done through JassAsio.dll.
         Once this method is called the ASIO streaming proccess will begin and the getNextBuffer(short[])
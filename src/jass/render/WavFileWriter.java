@@ -0,0 +1,202 @@
+package jass.render;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+   Writes float audio to a .wav file as 16 or 24 bit PCM or 32 bit
+   float. The header is written when opened with the lengths left at
+   zero and patched by close(), so the file is written in one pass
+   through a FileChannel from a large direct buffer. Samples are clipped
+   to [-1 1] for PCM. Multichannel data is passed interleaved.
+*/
+
+public class WavFileWriter {
+    /** 16 bit signed PCM. */
+    public static final int PCM_16 = 0;
+    /** 24 bit signed PCM. */
+    public static final int PCM_24 = 1;
+    /** 32 bit IEEE float. */
+    public static final int FLOAT_32 = 2;
+
+    private static final int DEFAULT_BYTEBUFFERSIZE = 1<<20;
+    private static final short WAVE_FORMAT_PCM = 1;
+    private static final short WAVE_FORMAT_IEEE_FLOAT = 3;
+
+    private final FileChannel channel;
+    private final ByteBuffer bb;
+    private final int format;
+    private final int nchannels;
+    private final int bytesPerSample;
+    private final int headerSize;
+    private long samplesWritten = 0;
+    private boolean closed = false;
+
+    /** Create file and write header.
+        @param fn file name.
+        @param srate sampling rate in Hz.
+        @param nchannels number of channels.
+        @param format one of PCM_16, PCM_24, FLOAT_32.
+    */
+    public WavFileWriter(String fn,float srate,int nchannels,int format) throws IOException {
+        this(fn,srate,nchannels,format,DEFAULT_BYTEBUFFERSIZE);
+    }
+
+    /** Create file and write header.
+        @param fn file name.
+        @param srate sampling rate in Hz.
+        @param nchannels number of channels.
+        @param format one of PCM_16, PCM_24, FLOAT_32.
+        @param byteBufferSize size of the write buffer in bytes.
+    */
+    public WavFileWriter(String fn,float srate,int nchannels,int format,int byteBufferSize) throws IOException {
+        switch(format) {
+        case PCM_16:
+            bytesPerSample = 2;
+            break;
+        case PCM_24:
+            bytesPerSample = 3;
+            break;
+        case FLOAT_32:
+            bytesPerSample = 4;
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown wav format "+format);
+        }
+        this.format = format;
+        this.nchannels = nchannels;
+        // at least one frame of 4 byte samples, rounded to whole frames below
+        int frameBytes = nchannels*bytesPerSample;
+        byteBufferSize = Math.max(byteBufferSize,4*frameBytes);
+        bb = ByteBuffer.allocateDirect(byteBufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        channel = FileChannel.open(Paths.get(fn),StandardOpenOption.CREATE,
+                                   StandardOpenOption.TRUNCATE_EXISTING,StandardOpenOption.WRITE);
+        headerSize = format == FLOAT_32 ? 58 : 44;
+        writeHeader((int)srate);
+    }
+
+    /*
+      RIFF header with zero lengths, patched in close(). Float data needs
+      an extended fmt chunk and a fact chunk.
+    */
+    private void writeHeader(int srate) throws IOException {
+        boolean isFloat = format == FLOAT_32;
+        int blockAlign = nchannels*bytesPerSample;
+        bb.clear();
+        bb.put((byte)'R').put((byte)'I').put((byte)'F').put((byte)'F');
+        bb.putInt(0);
+        bb.put((byte)'W').put((byte)'A').put((byte)'V').put((byte)'E');
+        bb.put((byte)'f').put((byte)'m').put((byte)'t').put((byte)' ');
+        bb.putInt(isFloat ? 18 : 16);
+        bb.putShort(isFloat ? WAVE_FORMAT_IEEE_FLOAT : WAVE_FORMAT_PCM);
+        bb.putShort((short)nchannels);
+        bb.putInt(srate);
+        bb.putInt(srate*blockAlign);
+        bb.putShort((short)blockAlign);
+        bb.putShort((short)(8*bytesPerSample));
+        if(isFloat) {
+            bb.putShort((short)0);
+            bb.put((byte)'f').put((byte)'a').put((byte)'c').put((byte)'t');
+            bb.putInt(4);
+            bb.putInt(0);
+        }
+        bb.put((byte)'d').put((byte)'a').put((byte)'t').put((byte)'a');
+        bb.putInt(0);
+        flush();
+    }
+
+    /** Append samples.
+        @param buf samples, interleaved if multichannel.
+        @param n number of samples to write from buf.
+    */
+    public void write(float[] buf,int n) throws IOException {
+        int k = 0;
+        while(k < n) {
+            if(bb.remaining() < bytesPerSample) {
+                flush();
+            }
+            int m = Math.min(n-k,bb.remaining()/bytesPerSample);
+            switch(format) {
+            case PCM_16:
+                for(int i=0;i<m;i++) {
+                    bb.putShort((short)(32767. * clip(buf[k+i])));
+                }
+                break;
+            case PCM_24:
+                for(int i=0;i<m;i++) {
+                    int v = (int)(8388607. * clip(buf[k+i]));
+                    bb.put((byte)v);
+                    bb.put((byte)(v >> 8));
+                    bb.put((byte)(v >> 16));
+                }
+                break;
+            default:
+                for(int i=0;i<m;i++) {
+                    bb.putFloat(buf[k+i]);
+                }
+                break;
+            }
+            k += m;
+        }
+        samplesWritten += n;
+    }
+
+    /** Append samples.
+        @param buf samples, interleaved if multichannel.
+    */
+    public void write(float[] buf) throws IOException {
+        write(buf,buf.length);
+    }
+
+    private static float clip(float x) {
+        return x > 1 ? 1 : (x < -1 ? -1 : x);
+    }
+
+    private void flush() throws IOException {
+        bb.flip();
+        while(bb.hasRemaining()) {
+            channel.write(bb);
+        }
+        bb.clear();
+    }
+
+    /** Get number of frames (samples per channel) written so far.
+        @return number of frames.
+    */
+    public long getFramesWritten() {
+        return samplesWritten/nchannels;
+    }
+
+    /** Flush, patch the lengths in the header and close the file.
+     */
+    public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+            long dataBytes = samplesWritten*bytesPerSample;
+            if(dataBytes > 0xffffffffL-headerSize) {
+                System.out.println("WavFileWriter: "+dataBytes+" bytes of data do not fit in a wav header");
+            }
+            bb.clear();
+            bb.putInt((int)(headerSize-8+dataBytes));
+            bb.flip();
+            channel.write(bb,4);
+            if(format == FLOAT_32) {
+                bb.clear();
+                bb.putInt((int)(samplesWritten/nchannels));
+                bb.flip();
+                channel.write(bb,46);
+            }
+            bb.clear();
+            bb.putInt((int)dataBytes);
+            bb.flip();
+            channel.write(bb,headerSize-4);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -3,7 +3,10 @@ import jass.generators.*;
 
 /**
    Plot spectral response of a jass.generators.Filter and display.
-   Also compute resonance frequencies ("formants").
+   Also compute resonance frequencies ("formants"). For a
+   RightLoadedWebsterTube the response can be computed directly from the
+   tube shape with a TubeTransferFunction, which is much faster than
+   rendering the impulse response.
 */
 
 
@@ -20,6 +23,8 @@ public class FormantsPlotter {
     protected int bits = 15;
 
     protected int n = 1<<bits; // FFT window size
+    protected double df = 10; // frequency resolution of transfer function plot
+    protected double[] formants, bandwidths;
     protected int topleft_x=600;
     protected int topleft_y=0;
 
@@ -62,25 +67,14 @@ public class FormantsPlotter {
             irpFilter = new IRPFilter();
         }
         float[][]res = irpFilter.computeIRP(filter,bits,srate);
-        if(plotData==null) {
+        if(plotData==null || plotData[0].length != np) {
             plotData = new double[2][np];
         }
         for(int i=0;i<np;i++) {
             plotData[0][i] = res[i][1]; //x
             plotData[1][i] = res[i][0]; //y (i.e., dB)
         }
-        if(plotGraph == null) {
-            System.out.println("CREATE new graph");
-            plotGraph = new PlotGraph(plotData);
-            plotGraph.setCloseChoice(0); //0 hide, 1 exit
-            plotGraph.rescaleX(.5);
-            plotGraph.rescaleY(.5);
-        } else {
-            plotGraph.initialise(plotData);
-        }
-        plotGraph.setLocation(topleft_x,topleft_y);
-        plotGraph.setLine(1);
-        plotGraph.setPoint(0);
+        showGraph();
 
         // find formants
 	String str = "Formants: ";
@@ -138,6 +132,54 @@ public class FormantsPlotter {
         plotGraph.plot();
     }  
     
+    /** Plot transfer function of a tube up to srate/3 with resolution df
+        and find the formants and bandwidths. Fast enough to call on every
+        change of the tube.
+        @param tf transfer function of the tube.
+        @param srate sampling rate in Hz.
+    */
+    public void plotFormants(TubeTransferFunction tf, float srate) {
+        int np = (int)(srate/(3*df));
+        if(plotData==null || plotData[0].length != np) {
+            plotData = new double[2][np];
+        }
+        for(int i=0;i<np;i++) {
+            plotData[0][i] = (i+1)*df;
+        }
+        tf.magnitudeDb(plotData[0],plotData[1],np);
+        showGraph();
+        if(formants==null || formants.length != MAX_FORMANTS) {
+            formants = new double[MAX_FORMANTS];
+            bandwidths = new double[MAX_FORMANTS];
+        }
+        nFormants = tf.findFormants(plotData[0],plotData[1],np,formants,bandwidths);
+        String str = "Formants: ";
+        String str2 = "Bandwidth: ";
+        for(int i=0;i<nFormants;i++) {
+            formantIndex[i] = (int)Math.round(formants[i]/df)-1;
+            str += (int)formants[i] + "Hz, ";
+            str2 += (int)bandwidths[i] + "Hz, ";
+        }
+        plotGraph.setGraphTitle(str);
+        plotGraph.setGraphTitle2(str2);
+        plotGraph.plot();
+    }
+
+    private void showGraph() {
+        if(plotGraph == null) {
+            System.out.println("CREATE new graph");
+            plotGraph = new PlotGraph(plotData);
+            plotGraph.setCloseChoice(0); //0 hide, 1 exit
+            plotGraph.rescaleX(.5);
+            plotGraph.rescaleY(.5);
+        } else {
+            plotGraph.initialise(plotData);
+        }
+        plotGraph.setLocation(topleft_x,topleft_y);
+        plotGraph.setLine(1);
+        plotGraph.setPoint(0);
+    }
+
     private double search(double max, int idx, int np, boolean up) 
 	{
 	    double x_tmp;
@@ -26,6 +26,126 @@ public class ThomasAlg {
         }
         return true;
     }
+
+    /**
+       Factor tridiagonal matrix for repeated solves with different right hand sides,
+       see solveFactored(). a, b and c are not modified.
+       @param m returns the elimination multipliers.
+       @param invb returns the reciprocal pivots.
+       Return false if there is a problem.
+     */
+    public static final boolean factor(double[] a, double[] b, double[] c, double[] m, double[] invb, int n) {
+        double piv = b[0];
+        for(int i=1;i<n;i++) {
+            if(piv==0) {
+                return false;
+            }
+            invb[i-1] = 1/piv;
+            m[i] = a[i]*invb[i-1];
+            piv = b[i] - m[i]*c[i-1];
+        }
+        if(piv==0) {
+            return false;
+        }
+        invb[n-1] = 1/piv;
+        return true;
+    }
+
+    /**
+       Solve tridiagonal system factored by factor(). d holds the solution.
+     */
+    public static final void solveFactored(double[] m, double[] invb, double[] c, double[] d, int n) {
+        for(int i=1;i<n;i++) {
+            d[i] -= m[i]*d[i-1];
+        }
+        d[n-1] *= invb[n-1];
+        for(int i=n-2;i>=0;i--) {
+            d[i] = (d[i]-c[i]*d[i+1])*invb[i];
+        }
+    }
+
+    /**
+       Single precision version of thomas().
+     */
+    public static final boolean thomas(float[] a, float[] b, float[] c, float[] d, int n) {
+        for(int i=1;i<n;i++) {
+            if(b[i-1]==0) {
+                return false;
+            }
+            float m = a[i]/b[i-1];
+            b[i] -= m*c[i-1];
+            d[i] -= m*d[i-1];
+        }
+        d[n-1] = d[n-1]/b[n-1];
+        for(int i=n-2;i>=0;i--) {
+            d[i]=(d[i]-c[i]*d[i+1])/b[i];
+        }
+        return true;
+    }
+
+    /**
+       Single precision version of solveFactored().
+     */
+    public static final void solveFactored(float[] m, float[] invb, float[] c, float[] d, int n) {
+        for(int i=1;i<n;i++) {
+            d[i] -= m[i]*d[i-1];
+        }
+        d[n-1] *= invb[n-1];
+        for(int i=n-2;i>=0;i--) {
+            d[i] = (d[i]-c[i]*d[i+1])*invb[i];
+        }
+    }
+
+    /**
+       Solve m tridiagonal systems of size n together, as thomas(). Element i
+       of system v is at index i*m+v of a, b, c and d, so the inner loops run
+       over the systems with unit stride. Pivots are not checked, the
+       systems should be diagonally dominant. d holds the solutions, b is
+       modified.
+     */
+    public static final void thomasBatch(double[] a, double[] b, double[] c, double[] d, int n, int m) {
+        for(int i=1;i<n;i++) {
+            int k = i*m;
+            for(int v=0;v<m;v++) {
+                double f = a[k+v]/b[k-m+v];
+                b[k+v] -= f*c[k-m+v];
+                d[k+v] -= f*d[k-m+v];
+            }
+        }
+        int k = (n-1)*m;
+        for(int v=0;v<m;v++) {
+            d[k+v] = d[k+v]/b[k+v];
+        }
+        for(int i=n-2;i>=0;i--) {
+            k = i*m;
+            for(int v=0;v<m;v++) {
+                d[k+v] = (d[k+v]-c[k+v]*d[k+m+v])/b[k+v];
+            }
+        }
+    }
+
+    /**
+       Solve m tridiagonal systems of size n factored by factor(), with the
+       interleaved layout of thomasBatch(). d holds the solutions.
+     */
+    public static final void solveFactoredBatch(double[] mult, double[] invb, double[] c, double[] d, int n, int m) {
+        for(int i=1;i<n;i++) {
+            int k = i*m;
+            for(int v=0;v<m;v++) {
+                d[k+v] -= mult[k+v]*d[k-m+v];
+            }
+        }
+        int k = (n-1)*m;
+        for(int v=0;v<m;v++) {
+            d[k+v] *= invb[k+v];
+        }
+        for(int i=n-2;i>=0;i--) {
+            k = i*m;
+            for(int v=0;v<m;v++) {
+                d[k+v] = (d[k+v]-c[k+v]*d[k+m+v])*invb[k+v];
+            }
+        }
+    }
 }
 
 class ThomasTest {
@@ -62,5 +182,42 @@ class ThomasTest {
         i=n-1;
         res = a[i]*d[i-1]+bb[i]*d[i] -dd[i];
         System.out.println(res);
+
+        // factored solve must give the same solution
+        double[] m = new double[n];
+        double[] invb = new double[n];
+        ThomasAlg.factor(a,bb,c,m,invb,n);
+        ThomasAlg.solveFactored(m,invb,c,dd,n);
+        double maxDiff = 0;
+        for(i=0;i<n;i++) {
+            maxDiff = Math.max(maxDiff,Math.abs(dd[i]-d[i]));
+        }
+        System.out.println("factored: "+maxDiff);
+
+        // batch of systems must give the same solutions
+        int nsys = 5;
+        double[] ab = new double[n*nsys];
+        double[] bb2 = new double[n*nsys];
+        double[] cb = new double[n*nsys];
+        double[] db = new double[n*nsys];
+        double[][] x = new double[nsys][n];
+        for(int v=0;v<nsys;v++) {
+            double[] bv = new double[n];
+            for(i=0;i<n;i++) {
+                ab[i*nsys+v] = a[i];
+                cb[i*nsys+v] = c[i];
+                bb2[i*nsys+v] = bv[i] = 2+Math.random();
+                db[i*nsys+v] = x[v][i] = Math.random()-.5;
+            }
+            ThomasAlg.thomas(a,bv,c,x[v],n);
+        }
+        ThomasAlg.thomasBatch(ab,bb2,cb,db,n,nsys);
+        maxDiff = 0;
+        for(int v=0;v<nsys;v++) {
+            for(i=0;i<n;i++) {
+                maxDiff = Math.max(maxDiff,Math.abs(db[i*nsys+v]-x[v][i]));
+            }
+        }
+        System.out.println("batch: "+maxDiff);
     }
 }